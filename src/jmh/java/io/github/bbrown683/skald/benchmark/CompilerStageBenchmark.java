@@ -0,0 +1,94 @@
+package io.github.bbrown683.skald.benchmark;
+
+import io.github.bbrown683.skald.antlr4.CompilerVisitor;
+import io.github.bbrown683.skald.antlr4.SkaldLexer;
+import io.github.bbrown683.skald.antlr4.SkaldParser;
+import io.github.bbrown683.skald.antlr4.SymbolVisitor;
+import io.github.bbrown683.skald.compiler.SkaldCompiler;
+import io.github.bbrown683.skald.compiler.SourceParser;
+import io.github.bbrown683.skald.diagnostics.Diagnostics;
+import io.github.bbrown683.skald.diagnostics.TextDiagnosticSink;
+import io.github.bbrown683.skald.symbol.external.ExternalSymbolCache;
+import io.github.bbrown683.skald.symbol.external.ExternalSymbolTable;
+import io.github.bbrown683.skald.symbol.local.LocalSymbolTable;
+import org.antlr.v4.runtime.*;
+import org.antlr.v4.runtime.atn.PredictionMode;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Each stage of compiling one file, measured on its own by preparing the output of the stages before it.
+// Imports are served from the warm shared cache here; see ImportBenchmark for the cost of loading them.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CompilerStageBenchmark {
+    @Param({"10", "100", "1000"})
+    public int functions;
+
+    private String source;
+    private List<? extends Token> tokens;
+    private SkaldParser.ClassFileContext classFileContext;
+    private LocalSymbolTable localSymbolTable;
+    private ExternalSymbolTable externalSymbolTable;
+    private SkaldCompiler compiler;
+
+    @Setup
+    public void setup() {
+        Diagnostics.configure(Diagnostics.Level.WARNING, new TextDiagnosticSink(Diagnostics.newErrorStream()));
+        source = SyntheticSources.generate(functions);
+        tokens = new SkaldLexer(CharStreams.fromString(source)).getAllTokens();
+        classFileContext = new SourceParser().parse("Benchmark", CharStreams.fromString(source));
+
+        var symbolVisitor = new SymbolVisitor("Benchmark", new ExternalSymbolTable(ExternalSymbolCache.shared()));
+        symbolVisitor.visit(classFileContext);
+        localSymbolTable = symbolVisitor.getLocalSymbolTable();
+        externalSymbolTable = symbolVisitor.getExternalSymbolTable();
+        compiler = new SkaldCompiler();
+    }
+
+    @Benchmark
+    public List<? extends Token> lex() {
+        return new SkaldLexer(CharStreams.fromString(source)).getAllTokens();
+    }
+
+    @Benchmark
+    public SkaldParser.ClassFileContext parseTwoStage() {
+        return parse(true);
+    }
+
+    @Benchmark
+    public SkaldParser.ClassFileContext parseLL() {
+        return parse(false);
+    }
+
+    private SkaldParser.ClassFileContext parse(boolean twoStage) {
+        var parser = new SkaldParser(new CommonTokenStream(new ListTokenSource(tokens)));
+        if (twoStage) {
+            parser.getInterpreter().setPredictionMode(PredictionMode.SLL);
+            parser.setErrorHandler(new BailErrorStrategy());
+        }
+        return parser.classFile();
+    }
+
+    @Benchmark
+    public LocalSymbolTable symbols() {
+        var symbolVisitor = new SymbolVisitor("Benchmark", new ExternalSymbolTable(ExternalSymbolCache.shared()));
+        symbolVisitor.visit(classFileContext);
+        return symbolVisitor.getLocalSymbolTable();
+    }
+
+    @Benchmark
+    public byte[] codegen() {
+        return (byte[]) new CompilerVisitor("Benchmark", localSymbolTable, externalSymbolTable).visit(classFileContext);
+    }
+
+    @Benchmark
+    public byte[] endToEnd() {
+        return compiler.compile("Benchmark", CharStreams.fromString(source)).bytes();
+    }
+}
@@ -0,0 +1,52 @@
+package io.github.bbrown683.skald.benchmark;
+
+import io.github.bbrown683.skald.symbol.external.ExternalReferenceLoader;
+import io.github.bbrown683.skald.symbol.external.ExternalSymbolCache;
+import io.github.bbrown683.skald.symbol.external.ExternalSymbolIndex;
+import io.github.bbrown683.skald.symbol.external.ExternalSymbolTable;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// ExternalSymbolTable.addImport for whole packages. Cold imports load the package through a new loader,
+// either by reading the class files of the runtime or from the on-disk symbol index, while warm imports
+// are served by a cache that already holds the package, as in a long-running daemon.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ImportBenchmark {
+    @Param({"java.lang.*", "java.util.*"})
+    public String importPath;
+
+    private ExternalSymbolCache warmCache;
+
+    @Setup
+    public void setup() {
+        warmCache = new ExternalSymbolCache(new ExternalReferenceLoader());
+        new ExternalSymbolTable(warmCache).addImport(importPath);
+    }
+
+    @Benchmark
+    public ExternalSymbolTable coldClassFiles() {
+        var externalSymbolTable = new ExternalSymbolTable(new ExternalSymbolCache(new ExternalReferenceLoader(null)));
+        externalSymbolTable.addImport(importPath);
+        return externalSymbolTable;
+    }
+
+    @Benchmark
+    public ExternalSymbolTable coldIndexed() {
+        var externalSymbolTable = new ExternalSymbolTable(new ExternalSymbolCache(new ExternalReferenceLoader(ExternalSymbolIndex.forRuntime())));
+        externalSymbolTable.addImport(importPath);
+        return externalSymbolTable;
+    }
+
+    @Benchmark
+    public ExternalSymbolTable warm() {
+        var externalSymbolTable = new ExternalSymbolTable(warmCache);
+        externalSymbolTable.addImport(importPath);
+        return externalSymbolTable;
+    }
+}
@@ -0,0 +1,49 @@
+package io.github.bbrown683.skald.benchmark;
+
+// Sources for the benchmarks, scaled up from the test resources: the imports of Import.lang followed by
+// the given number of functions with the local variables of Variable.lang, and its fields once at the top.
+public class SyntheticSources {
+    private static final String IMPORTS = """
+            import java.io.PrintStream;
+            import java.util.*;
+            """;
+
+    private static final String FIELDS = """
+            var testGlobalBoolTrue : boolean = true;
+            var testGlobalByte : byte = 127;
+            var testGlobalShort : short = 32767;
+            var testGlobalInt : int = 32767;
+            var testGlobalLong : long = 9223372036854775807;
+            var testGlobalFloat : float = 3.4028235;
+            var testGlobalDouble : double = 1.7976931348623157;
+            var testGlobalChar : char = 'a';
+            var testGlobalString : string = "Hello, World!";
+            mut var testGlobalBoolTrueMut : boolean = true;
+            """;
+
+    private static final String FUNCTION = """
+            pub static fn main%d(args: string[]) {
+                var testBoolTrue : boolean = true;
+                var testByte : byte = 127;
+                var testShort : short = 32767;
+                var testInt : int  = 2147483647;
+                var testLong : long = 9223372036854775807;
+                var testFloat : float = 3.4028235;
+                var testDouble : double = 1.7976931348623157;
+                var testChar : char = 'a';
+                var testString : string = "Hello, World!";
+                mut var testBoolTrueMut : boolean = true;
+                var printStream : PrintStream = System.out;
+                printStream.println();
+            }
+            """;
+
+    public static String generate(int functionCount) {
+        var source = new StringBuilder(IMPORTS.length() + FIELDS.length() + functionCount * FUNCTION.length());
+        source.append(IMPORTS).append('\n').append(FIELDS).append('\n');
+        for (int i = 0; i < functionCount; i++) {
+            source.append(FUNCTION.formatted(i)).append('\n');
+        }
+        return source.toString();
+    }
+}
@@ -17,11 +17,25 @@ FOR: 'for';
 IN: 'in';
 OF: 'of';
 MATCH: 'match';
+FROM: 'from';
+WHERE: 'where';
+LET: 'let';
+SELECT: 'select';
+AGGREGATE: 'aggregate';
+INTO: 'into';
 STATIC: 'static';
 
 PLUS: '+';
 MINUS: '-';
 STAR: '*';
+SLASH: '/';
+PERCENT: '%';
+DOUBLE_EQUALS: '==';
+NOT_EQUALS: '!=';
+LESS_THAN_EQUALS: '<=';
+GREATER_THAN_EQUALS: '>=';
+LESS_THAN: '<';
+GREATER_THAN: '>';
 EQUALS: '=';
 COLON: ':';
 UNDERSCORE: '_';
@@ -53,7 +67,7 @@ CHAR: 'char';
 
 STRING_LITERAL: '"' ~["\r\n]* '"';
 CHAR_LITERAL: '\'' ~['\r\n]* '\'';
-INTEGER_LITERAL: '-'? [0-9]+;
+INTEGER_LITERAL: [0-9]+;
 FLOAT_LITERAL: [0-9]+ '.' [0-9]+;
 TRUE: 'true';
 FALSE: 'false';
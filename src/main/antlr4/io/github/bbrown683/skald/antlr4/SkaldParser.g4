@@ -11,7 +11,21 @@ packagePath : PACKAGE path SEMICOLON;
 importPath : IMPORT path SEMICOLON;
 
 variable
-    : PUBLIC? STATIC? MUTABLE? VARIABLE IDENTIFIER (COLON typeName array*)? (EQUALS (literals | reference | expression))? SEMICOLON
+    : PUBLIC? STATIC? MUTABLE? VARIABLE IDENTIFIER (COLON typeName array*)? (EQUALS (literals | reference | operation | expression | lambda | query))? SEMICOLON
+    ;
+
+// Arithmetic, comparisons, string joins and calls of function values. A lone literal or reference is matched
+// by variable directly.
+operation
+    : LEFT_PAREN operation RIGHT_PAREN                                                                      # parenthesizedOperation
+    | MINUS operation                                                                                       # negationOperation
+    | operation operator=(STAR | SLASH | PERCENT) operation                                                 # multiplicativeOperation
+    | operation operator=(PLUS | MINUS) operation                                                           # additiveOperation
+    | operation operator=(LESS_THAN | GREATER_THAN | LESS_THAN_EQUALS | GREATER_THAN_EQUALS) operation      # relationalOperation
+    | operation operator=(DOUBLE_EQUALS | NOT_EQUALS) operation                                             # equalityOperation
+    | reference LEFT_PAREN (operation (COMMA operation)*)? RIGHT_PAREN                                      # callOperation
+    | literals                                                                                              # literalOperation
+    | reference                                                                                             # referenceOperation
     ;
 
 array
@@ -33,6 +47,11 @@ functionParameter
     : MUTABLE? IDENTIFIER COLON typeName array*
     ;
 
+// An anonymous function. Its body is a single operation, whose value it returns.
+lambda
+    : FUNCTION LEFT_PAREN (functionParameter (COMMA functionParameter)*)? RIGHT_PAREN ARROW operation
+    ;
+
 object
     : TYPE IDENTIFIER LEFT_BRACE (variable | function)* RIGHT_BRACE
     ;
@@ -79,12 +98,41 @@ matchStatement
     : MATCH IDENTIFIER LEFT_BRACE matchCase* matchDefaultCase? RIGHT_BRACE
     ;
 
+// Case keys are literals or constants of the matched variable's type, or members of its union. A union
+// member can bind its value to a name for the body of the case.
 matchCase
-    : IDENTIFIER ARROW expression
+    : (literals | reference (LEFT_PAREN matchBinding RIGHT_PAREN)?) ARROW (expression | LEFT_BRACE expression* RIGHT_BRACE)
+    ;
+
+matchBinding
+    : IDENTIFIER
     ;
 
 matchDefaultCase
-    : UNDERSCORE ARROW expression
+    : UNDERSCORE ARROW (expression | LEFT_BRACE expression* RIGHT_BRACE)
+    ;
+
+// A query over the elements of an array or Iterable, after C#'s query syntax. Its clauses are fused into a
+// single loop, which folds the selected values into the result of the query. The elements of an Iterable are
+// Objects, unless the range variable is given a type.
+query
+    : FROM queryVariable IN reference queryClause* queryResult
+    ;
+
+queryVariable
+    : IDENTIFIER (COLON typeName)?
+    ;
+
+queryClause
+    : WHERE operation                                                                                       # whereClause
+    | LET IDENTIFIER EQUALS operation                                                                       # letClause
+    ;
+
+// The selected values are reduced by the aggregate named after them: count, sum, min or max. An aggregate
+// clause instead folds every element into an accumulator, starting from its initial value.
+queryResult
+    : SELECT operation IDENTIFIER                                                                           # selectResult
+    | AGGREGATE IDENTIFIER EQUALS operation INTO operation                                                  # aggregateResult
     ;
 
 functionCall
@@ -100,7 +148,12 @@ expression
     ;
 
 typeName
-    : baseTypes | reference
+    : baseTypes | functionType | reference
+    ;
+
+// The type of a function value, from its parameter types to its return type.
+functionType
+    : FUNCTION LEFT_PAREN (typeName (COMMA typeName)*)? RIGHT_PAREN ARROW typeName
     ;
 
 reference
@@ -110,4 +163,5 @@ reference
 path : (IDENTIFIER PERIOD)+ (IDENTIFIER | STAR);
 
 baseTypes: BYTE | UNSIGNED_BYTE | SHORT | UNSIGNED_SHORT | INT | UNSIGNED_INT | LONG | UNSIGNED_LONG | FLOAT | DOUBLE | BOOLEAN | STRING | CHAR;
-literals: STRING_LITERAL | CHAR_LITERAL | INTEGER_LITERAL | FLOAT_LITERAL | TRUE | FALSE;
\ No newline at end of file
+// The sign of a negative number is not part of its token, so that a-1 lexes as a subtraction.
+literals: STRING_LITERAL | CHAR_LITERAL | MINUS? INTEGER_LITERAL | MINUS? FLOAT_LITERAL | TRUE | FALSE;
\ No newline at end of file
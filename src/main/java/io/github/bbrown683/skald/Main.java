@@ -1,7 +1,182 @@
 package io.github.bbrown683.skald;
 
+import io.github.bbrown683.skald.compiler.CompileMetrics;
+import io.github.bbrown683.skald.compiler.CompiledClass;
+import io.github.bbrown683.skald.compiler.DirectoryClassOutput;
+import io.github.bbrown683.skald.compiler.IncrementalCompiler;
+import io.github.bbrown683.skald.compiler.JarClassOutput;
+import io.github.bbrown683.skald.compiler.ParallelCompiler;
+import io.github.bbrown683.skald.compiler.SkaldCompiler;
+import io.github.bbrown683.skald.compiler.SourceParser;
+import io.github.bbrown683.skald.daemon.CompileClient;
+import io.github.bbrown683.skald.daemon.CompileDaemon;
+import io.github.bbrown683.skald.diagnostics.Diagnostics;
+import io.github.bbrown683.skald.diagnostics.JsonDiagnosticSink;
+import io.github.bbrown683.skald.diagnostics.TextDiagnosticSink;
+import io.github.bbrown683.skald.jvm.PeepholeOptimizer;
+import io.github.bbrown683.skald.symbol.external.ExternalSymbolCache;
+import org.apache.commons.cli.*;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
 public class Main {
     public static void main(String[] args) {
+        System.exit(run(args));
+    }
+
+    public static int run(String[] args) {
+        return run(List.of(args), Path.of("").toAbsolutePath(), System.out, System.err);
+    }
+
+    // Relative paths are resolved against the working directory, which is the client's when running in the daemon.
+    public static int run(List<String> args, Path workingDirectory, PrintStream out, PrintStream err) {
+        var options = new Options();
+        options.addOption(Option.builder("d").longOpt("output").hasArg().argName("directory")
+                .desc("Directory or .jar file to write class files to (defaults to the current directory)").build());
+        options.addOption(Option.builder("j").longOpt("threads").hasArg().argName("count")
+                .desc("Number of files to compile in parallel (defaults to the number of processors)").build());
+        options.addOption(Option.builder("i").longOpt("incremental")
+                .desc("Only compile files that changed since the last build, and the files that depend on their signatures").build());
+        options.addOption(Option.builder().longOpt("ll")
+                .desc("Parse with full LL prediction only, instead of trying the faster SLL prediction first").build());
+        options.addOption(Option.builder().longOpt("no-optimize")
+                .desc("Keep the generated instructions as they are, without the peephole optimizer").build());
+        options.addOption(Option.builder("m").longOpt("metrics")
+                .desc("Print the time, allocations and work of each compile phase, per file and in total").build());
+        options.addOption(Option.builder().longOpt("log-level").hasArg().argName("level")
+                .desc("Level of compiler diagnostics: OFF, ERROR, WARNING, INFO, DEBUG or TRACE (defaults to WARNING)").build());
+        options.addOption(Option.builder().longOpt("trace")
+                .desc("Write every compiler diagnostic to standard error as one JSON object per line").build());
+        options.addOption(Option.builder().longOpt("daemon").hasArg().argName("socket")
+                .desc("Run as a compile daemon listening on the given Unix domain socket").build());
+        options.addOption(Option.builder().longOpt("server").hasArg().argName("socket")
+                .desc("Compile through the daemon listening on the given socket instead of in this process").build());
+        options.addOption(Option.builder().longOpt("shutdown")
+                .desc("Stop the daemon given with --server").build());
+        options.addOption(Option.builder("h").longOpt("help").desc("Print this message").build());
+
+        CommandLine commandLine;
+        try {
+            commandLine = new DefaultParser().parse(options, args.toArray(new String[0]));
+        } catch (ParseException e) {
+            err.println(e.getMessage());
+            printHelp(options, out);
+            return 2;
+        }
+        if (commandLine.hasOption("daemon")) {
+            try (var daemon = new CompileDaemon(workingDirectory.resolve(commandLine.getOptionValue("daemon")), Main::run)) {
+                out.println("Listening on " + daemon.getSocketFile());
+                daemon.serve();
+                return 0;
+            } catch (IOException e) {
+                err.println(e.getMessage());
+                return 1;
+            }
+        }
+        if (commandLine.hasOption("server")) {
+            var client = new CompileClient(workingDirectory.resolve(commandLine.getOptionValue("server")));
+            try {
+                if (commandLine.hasOption("shutdown")) {
+                    client.shutdown();
+                    return 0;
+                }
+                var forwardedArgs = new ArrayList<>(args);
+                int serverIndex = forwardedArgs.indexOf("--server");
+                if (serverIndex >= 0) {
+                    forwardedArgs.subList(serverIndex, serverIndex + 2).clear();
+                } else {
+                    forwardedArgs.removeIf(arg -> arg.startsWith("--server="));
+                }
+                return client.compile(forwardedArgs, workingDirectory, out, err);
+            } catch (IOException e) {
+                err.println("Could not reach the compile daemon: " + e.getMessage());
+                return 1;
+            }
+        }
+        if (commandLine.hasOption("help") || commandLine.getArgList().isEmpty()) {
+            printHelp(options, out);
+            return commandLine.hasOption("help") ? 0 : 2;
+        }
+
+        var diagnostics = Diagnostics.open(getDiagnosticsConfiguration(commandLine, err));
+        try {
+            var outputDirectory = workingDirectory.resolve(commandLine.getOptionValue("output", ""));
+            int threads = Integer.parseInt(commandLine.getOptionValue("threads", String.valueOf(Runtime.getRuntime().availableProcessors())));
+
+            List<Path> paths = new ArrayList<>();
+            commandLine.getArgList().forEach(arg -> paths.add(workingDirectory.resolve(arg)));
+            var sourceFiles = ParallelCompiler.findSourceFiles(paths);
+
+            var sourceParser = new SourceParser(!commandLine.hasOption("ll") && SourceParser.DEFAULT_TWO_STAGE);
+            var compiler = new ParallelCompiler(threads, threads * 4, new SkaldCompiler(ExternalSymbolCache.shared(), sourceParser,
+                    !commandLine.hasOption("no-optimize") && PeepholeOptimizer.DEFAULT_ENABLED));
+            var metrics = new ArrayList<CompileMetrics>();
+            BiConsumer<Path, CompiledClass> listener = (sourceFile, compiledClass) -> metrics.add(compiledClass.metrics());
+            Map<Path, Throwable> failures;
+            boolean isJar = outputDirectory.toString().endsWith(".jar");
+            if (commandLine.hasOption("incremental")) {
+                if (isJar) {
+                    err.println("Incremental builds need an output directory");
+                    return 2;
+                }
+                var result = new IncrementalCompiler(compiler).compile(sourceFiles, outputDirectory, listener);
+                failures = result.failures();
+                int upToDate = sourceFiles.size() - result.compiledFiles().size();
+                out.println("Compiled " + (result.compiledFiles().size() - failures.size()) + " of " + sourceFiles.size() + " file(s), " + upToDate + " up to date");
+            } else {
+                try (var classOutput = isJar ? new JarClassOutput(outputDirectory) : new DirectoryClassOutput(outputDirectory)) {
+                    failures = compiler.compile(sourceFiles, classOutput, listener);
+                }
+                out.println("Compiled " + (sourceFiles.size() - failures.size()) + " of " + sourceFiles.size() + " file(s)");
+            }
+            if (commandLine.hasOption("metrics")) {
+                printMetrics(metrics, out);
+            }
+            failures.forEach((path, error) -> err.println(path + ": " + error.getMessage()));
+            return failures.isEmpty() ? 0 : 1;
+        } catch (Exception e) {
+            err.println(e.getMessage());
+            return 1;
+        } finally {
+            Diagnostics.flush();
+            diagnostics.close();
+        }
+    }
+
+    // Diagnostics are written to the error stream of the run, which is the client's when running in the
+    // daemon, so the options of one request do not change the output of another.
+    private static Diagnostics.Configuration getDiagnosticsConfiguration(CommandLine commandLine, PrintStream err) {
+        var output = Diagnostics.newBufferedStream(err);
+        if (commandLine.hasOption("trace")) {
+            return new Diagnostics.Configuration(Diagnostics.Level.TRACE, new JsonDiagnosticSink(output));
+        }
+        var level = commandLine.hasOption("log-level")
+                ? Diagnostics.Level.valueOf(commandLine.getOptionValue("log-level").toUpperCase()) : Diagnostics.getLevel();
+        return new Diagnostics.Configuration(level, new TextDiagnosticSink(output));
+    }
+
+    // Slowest files first, followed by the totals of the build.
+    private static void printMetrics(List<CompileMetrics> metrics, PrintStream out) {
+        metrics.stream()
+                .sorted(Comparator.comparingLong(CompileMetrics::getTotalWallNanos).reversed())
+                .forEach(fileMetrics -> out.println(fileMetrics.format()));
+        var total = CompileMetrics.sum("Total of " + metrics.size() + " file(s)", metrics);
+        out.println(total.format());
+    }
 
+    private static void printHelp(Options options, PrintStream out) {
+        var writer = new PrintWriter(out);
+        var formatter = new HelpFormatter();
+        formatter.printHelp(writer, formatter.getWidth(), "skald [options] <source files or directories>", null,
+                options, formatter.getLeftPadding(), formatter.getDescPadding(), null);
+        writer.flush();
     }
 }
@@ -1,19 +1,29 @@
 package io.github.bbrown683.skald.antlr4;
 
+import io.github.bbrown683.skald.compiler.ClassOutput;
+import io.github.bbrown683.skald.compiler.CompileMetrics;
+import io.github.bbrown683.skald.diagnostics.Diagnostics;
+import io.github.bbrown683.skald.jvm.DynamicConstantPoolGen;
+import io.github.bbrown683.skald.jvm.FunctionInterfaceGenerator;
+import io.github.bbrown683.skald.jvm.FunctionType;
 import io.github.bbrown683.skald.jvm.InstructionGenerator;
 import io.github.bbrown683.skald.jvm.InstructionUtil;
+import io.github.bbrown683.skald.jvm.PeepholeOptimizer;
+import io.github.bbrown683.skald.jvm.StringConcatenation;
+import io.github.bbrown683.skald.jvm.UnionGenerator;
+import io.github.bbrown683.skald.jvm.UnsignedType;
 import io.github.bbrown683.skald.symbol.external.ExternalFunctionSymbol;
 import io.github.bbrown683.skald.symbol.external.ExternalSymbol;
 import io.github.bbrown683.skald.symbol.external.ExternalSymbolTable;
 import io.github.bbrown683.skald.symbol.external.ExternalVariableSymbol;
 import io.github.bbrown683.skald.symbol.local.*;
 import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.tree.ParseTree;
 import org.apache.bcel.Const;
 import org.apache.bcel.generic.*;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.tuple.Pair;
 
-import java.io.FileOutputStream;
 import java.util.*;
 
 public class CompilerVisitor extends SkaldParserBaseVisitor<Object> {
@@ -24,11 +34,45 @@ public class CompilerVisitor extends SkaldParserBaseVisitor<Object> {
     private final LocalSymbolTable localSymbolTable;
     private final ExternalSymbolTable externalSymbolTable;
     private final Map<LocalSymbol,LocalVariableGen> localVariables = new HashMap<>();
+    private final Map<String, byte[]> nestedClasses = new LinkedHashMap<>();
+    private final ClassOutput classOutput;
+    private final CompileMetrics metrics;
+    private final PeepholeOptimizer peepholeOptimizer;
+    private int lambdaCount;
 
+    // The generated class is only returned by visitClassFile, leaving it to the caller to store it.
     public CompilerVisitor(String className, LocalSymbolTable localSymbolTable, ExternalSymbolTable externalSymbolTable) {
+        this(className, localSymbolTable, externalSymbolTable, null);
+    }
+
+    // A null output skips writing the class, leaving it to the caller to store the returned bytes.
+    public CompilerVisitor(String className, LocalSymbolTable localSymbolTable, ExternalSymbolTable externalSymbolTable, ClassOutput classOutput) {
+        this(className, localSymbolTable, externalSymbolTable, classOutput, new CompileMetrics(className));
+    }
+
+    // Symbol lookups, emitted instructions and constant-pool entries are counted in the metrics.
+    public CompilerVisitor(String className, LocalSymbolTable localSymbolTable, ExternalSymbolTable externalSymbolTable, ClassOutput classOutput, CompileMetrics metrics) {
+        this(className, localSymbolTable, externalSymbolTable, classOutput, metrics, PeepholeOptimizer.DEFAULT_ENABLED ? new PeepholeOptimizer() : null);
+    }
+
+    // Every generated method is passed through the optimizer, unless it is null.
+    public CompilerVisitor(String className, LocalSymbolTable localSymbolTable, ExternalSymbolTable externalSymbolTable, ClassOutput classOutput, CompileMetrics metrics, PeepholeOptimizer peepholeOptimizer) {
         this.className = className;
         this.localSymbolTable = localSymbolTable;
         this.externalSymbolTable = externalSymbolTable;
+        this.classOutput = classOutput;
+        this.metrics = metrics;
+        this.peepholeOptimizer = peepholeOptimizer;
+    }
+
+    // The fully qualified name of the class being generated.
+    public String getGeneratedClassName() {
+        return classGen.getClassName();
+    }
+
+    // The classes generated for the unions and function types of the file, by fully qualified name.
+    public Map<String, byte[]> getNestedClasses() {
+        return nestedClasses;
     }
 
     @Override
@@ -38,7 +82,8 @@ public class CompilerVisitor extends SkaldParserBaseVisitor<Object> {
                 "java.lang.Object",
                 className + ".lang",
                 Const.ACC_PUBLIC | Const.ACC_SUPER | Const.ACC_FINAL,
-                null);
+                null,
+                new DynamicConstantPoolGen());
         classGen.setMajor(Const.MAJOR_23);
         classGen.setMinor(0);
 
@@ -47,31 +92,57 @@ public class CompilerVisitor extends SkaldParserBaseVisitor<Object> {
 
         // Create empty constructor.
         generateConstructor(ctx);
+        generateStaticInitializer(ctx);
 
         var functions = ctx.function();
         if(functions != null) functions.forEach(this::visitFunction);
+        ctx.union().forEach(this::visitUnion);
+        var functionInterfaceGenerator = new FunctionInterfaceGenerator(className + ".lang");
+        for (var functionType : localSymbolTable.getFunctionTypes()) {
+            nestedClasses.put(functionType.getClassName(), functionInterfaceGenerator.generateInterface(functionType));
+        }
 
-        var javaClass = classGen.getJavaClass();
-        try(FileOutputStream fileOutputStream = new FileOutputStream(className + ".class")) {
-            javaClass.dump(fileOutputStream);
-        } catch (Exception e) {
-            e.printStackTrace();
+        var bytes = classGen.getJavaClass().getBytes();
+        metrics.addConstantPoolEntries(constantPoolGen.getSize());
+        if(classOutput != null) {
+            try {
+                classOutput.write(classGen.getClassName(), bytes);
+                for (var nestedClass : nestedClasses.entrySet()) {
+                    classOutput.write(nestedClass.getKey(), nestedClass.getValue());
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
         }
-        return javaClass.getBytes();
+        return bytes;
+    }
+
+    // Each union is generated as a class of its own, followed by a class for each of its members.
+    @Override
+    public Object visitUnion(SkaldParser.UnionContext ctx) {
+        var unionSymbol = (LocalUnionSymbol) localSymbolTable.getSymbol(ctx);
+        var unionGenerator = new UnionGenerator(className + ".lang");
+        var members = unionSymbol.getMembers();
+        nestedClasses.put(unionSymbol.getClassName(), unionGenerator.generateUnion(unionSymbol.getClassName(),
+                members.stream().map(LocalUnionSymbol.Member::className).toList()));
+        for (var member : members) {
+            nestedClasses.put(member.className(), unionGenerator.generateMember(member.className(), unionSymbol.getClassName(), member.tag(), member.type()));
+        }
+        return null;
     }
 
     @Override
     public Object visitPackagePath(SkaldParser.PackagePathContext ctx) {
         String path = visitPath(ctx.path());
         classGen.setClassName(path + "." + className);
-        System.out.println("Package: " + path);
+        Diagnostics.debug("package", "path", path);
         return path;
     }
 
     @Override
     public Object visitImportPath(SkaldParser.ImportPathContext ctx) {
         String path = visitPath(ctx.path());
-        System.out.println("Import: " + path);
+        Diagnostics.debug("import", "path", path);
         return path;
     }
 
@@ -86,18 +157,17 @@ public class CompilerVisitor extends SkaldParserBaseVisitor<Object> {
         var identifierName = symbol.getName();
         var type = symbol.getType();
 
-        System.out.println("Parameter: " + identifierName + ", Type: " + type);
+        Diagnostics.debug("parameter", "name", identifierName, "type", type);
 
         var array = ctx.array();
-        if(array != null) {
+        if(array != null && !array.isEmpty()) {
             return Pair.of(identifierName, new ArrayType(type, array.size()));
         }
         return Pair.of(identifierName, type);
     }
 
     private Object generateConstructor(ParserRuleContext ctx) {
-        System.out.println("===================================");
-        System.out.println("Generating Constructor");
+        Diagnostics.debug("constructor", "class", className);
 
         List<String> parameterNames = new ArrayList<>();
         List<Type> parameterTypes = new ArrayList<>();
@@ -110,7 +180,7 @@ public class CompilerVisitor extends SkaldParserBaseVisitor<Object> {
             });
         }
 
-        var instructionGenerator = new InstructionGenerator(classGen, constantPoolGen);
+        var instructionGenerator = new InstructionGenerator(instructionUtil);
         var methodGen = instructionGenerator.getMethodGen(Const.ACC_PUBLIC, "<init>", Type.VOID, parameterTypes, parameterNames);
 
         var parameters = Map.of(
@@ -124,7 +194,9 @@ public class CompilerVisitor extends SkaldParserBaseVisitor<Object> {
         if (ctx instanceof SkaldParser.ClassFileContext classFileContext) {
             var variables = classFileContext.variable();
             if (variables != null) {
-                variables.forEach((fieldCtx) -> visitVariable(fieldCtx, parameters));
+                variables.stream()
+                        .filter(fieldCtx -> fieldCtx.STATIC() == null)
+                        .forEach((fieldCtx) -> visitVariable(fieldCtx, parameters));
             }
         } else if (ctx instanceof SkaldParser.ConstructorContext constructorCtx) {
             var expressions = constructorCtx.expression();
@@ -139,12 +211,42 @@ public class CompilerVisitor extends SkaldParserBaseVisitor<Object> {
         methodGen.addLineNumber(returnInstruction, ctx.stop.getLine());
 
         LocalSymbol symbol = localSymbolTable.getSymbol(ctx); // Probably refer to this for updating scopes later.
-        instructionGenerator.updateVariableScope();
-        instructionGenerator.completeFunction();
-        System.out.println("===================================");
+        metrics.addInstructionsEmitted(constructorInstructions.getLength());
+        instructionGenerator.completeFunction(peepholeOptimizer);
         return null;
     }
 
+    // Static fields are initialized once when the class is initialized, instead of by every constructor.
+    // The method is left out when all of them are constants, which need no code.
+    private void generateStaticInitializer(SkaldParser.ClassFileContext ctx) {
+        var variables = ctx.variable().stream().filter(fieldCtx -> fieldCtx.STATIC() != null).toList();
+        if (variables.isEmpty()) {
+            return;
+        }
+        Diagnostics.debug("static-initializer", "class", className);
+
+        var instructionGenerator = new InstructionGenerator(instructionUtil);
+        var methodGen = instructionGenerator.getMethodGen(Const.ACC_STATIC, "<clinit>", Type.VOID, List.of(), List.of());
+
+        var parameters = Map.of(
+                MethodGen.class, methodGen,
+                InstructionGenerator.class, instructionGenerator
+        );
+
+        variables.forEach((fieldCtx) -> visitVariable(fieldCtx, parameters));
+
+        var initializerInstructions = instructionGenerator.getInstructionList();
+        if (initializerInstructions.isEmpty()) {
+            initializerInstructions.dispose();
+            return;
+        }
+        instructionGenerator.insertReturn(Type.VOID);
+        methodGen.addLineNumber(initializerInstructions.getEnd(), ctx.stop.getLine());
+
+        metrics.addInstructionsEmitted(initializerInstructions.getLength());
+        instructionGenerator.completeFunction(peepholeOptimizer);
+    }
+
     @Override
     public Object visitConstructor(SkaldParser.ConstructorContext ctx) {
         return generateConstructor(ctx);
@@ -156,9 +258,7 @@ public class CompilerVisitor extends SkaldParserBaseVisitor<Object> {
 
         String functionName = symbol.getName();
         Type returnType = symbol.getReturnType();
-        System.out.println("===================================");
-        System.out.println("Function: " + functionName);
-        System.out.println("Return: " + returnType);
+        Diagnostics.debug("function", "name", functionName, "return", returnType);
 
         List<String> parameterNames = new ArrayList<>();
         List<Type> parameterTypes = new ArrayList<>();
@@ -168,7 +268,7 @@ public class CompilerVisitor extends SkaldParserBaseVisitor<Object> {
             parameterTypes.add(pair.getRight());
         });
 
-        var instructionGenerator = new InstructionGenerator(classGen, constantPoolGen);
+        var instructionGenerator = new InstructionGenerator(instructionUtil);
 
         var isPublic = ctx.PUBLIC() != null ? Const.ACC_PUBLIC : 0;
         var isStatic = ctx.STATIC() != null || ctx.parent instanceof SkaldParser.ClassFileContext ? Const.ACC_STATIC : 0;
@@ -187,15 +287,13 @@ public class CompilerVisitor extends SkaldParserBaseVisitor<Object> {
         var returnInstruction = methodInstructions.getEnd();
         methodGen.addLineNumber(returnInstruction, ctx.stop.getLine());
 
-        instructionGenerator.updateVariableScope();
-        instructionGenerator.completeFunction();
-        System.out.println("===================================");
+        metrics.addInstructionsEmitted(methodInstructions.getLength());
+        instructionGenerator.completeFunction(peepholeOptimizer);
         return null;
     }
 
     public Object visitVariable(SkaldParser.VariableContext ctx, Map<Class<?>, Object> parameters) {
         var symbol = (LocalVariableSymbol) localSymbolTable.getSymbol(ctx);
-        System.out.println("-----------------------------------");
         String variableName = symbol.getName();
         var isPublic = symbol.isPublic() ? Const.ACC_PUBLIC : 0;
         var isStatic = symbol.isStatic() ? Const.ACC_STATIC : 0;
@@ -203,37 +301,61 @@ public class CompilerVisitor extends SkaldParserBaseVisitor<Object> {
         var type = symbol.getType();
         var value = symbol.getValue();
 
-        System.out.println("Variable: " + variableName +
-                ", Type: " + type +
-                ", Public: " + (isPublic == Const.ACC_PUBLIC) +
-                ", Static: " + (isStatic == Const.ACC_STATIC) +
-                ", Mutable: " + (isMutable != Const.ACC_FINAL));
+        Diagnostics.log(Diagnostics.Level.DEBUG, "variable", "name", variableName, "type", type,
+                "public", symbol.isPublic(), "static", symbol.isStatic());
 
         var methodGen = (MethodGen)parameters.get(MethodGen.class);
-        var instructionGenerator = new InstructionGenerator(classGen, constantPoolGen, methodGen);
+        var instructionGenerator = new InstructionGenerator(instructionUtil, methodGen);
 
         var literals = ctx.literals();
         var reference = ctx.reference();
+        var operation = ctx.operation();
         var expression = ctx.expression();
-        if (literals != null) {
-            System.out.println("Literal: " + value + ", Type: " + value.getClass().getSimpleName());
+        var lambda = ctx.lambda();
+        var query = ctx.query();
+        var constantValue = symbol.getConstantValue();
+        if (constantValue != null || literals != null) {
+            // Folded operations and references to constants are pushed as literals, converted to the variable's type.
+            if (constantValue != null) {
+                value = constantValue;
+            }
+            Diagnostics.debug("literal", "value", value, "type", value.getClass().getSimpleName());
 
             // If we are in a constructor, we need to create a field and store the value in it.
             // Otherwise, we need to create a local variable and store the value in it.
-            if(methodGen.getName().equals("<init>")) {
-                instructionGenerator.addVariableAsLiteralField(variableName, value, type, isPublic | isStatic | isMutable, className);
+            if(isFieldInitializer(methodGen)) {
+                instructionGenerator.addVariableAsLiteralField(variableName, value, type, isPublic | isStatic | isMutable, classGen.getClassName());
             } else {
                 var localVariable = instructionGenerator.addVariableLiteralAsLiteralLocalVariable(variableName, value, type);
                 localVariables.put(symbol, localVariable);
             }
+        } else if (lambda != null || (reference != null && getReferencedFunction(symbol) != null)) {
+            if (lambda != null) {
+                generateLambda(lambda, (FunctionType) type, methodGen, instructionGenerator);
+            } else {
+                var functionSymbol = getReferencedFunction(symbol);
+                Diagnostics.debug("function-reference", "name", functionSymbol.getName());
+                instructionGenerator.createFunction((FunctionType) type, classGen.getClassName(), functionSymbol.getName(), new Type[0]);
+            }
+            if(isFieldInitializer(methodGen)) {
+                instructionGenerator.storeAsField(variableName, type, isPublic | isStatic | isMutable, classGen.getClassName());
+            } else {
+                localVariables.put(symbol, instructionGenerator.storeAsLocalVariable(variableName, type));
+            }
         } else if (reference != null) {
             String symbolName = (String)symbol.getValue();
-            System.out.println("Reference: " + symbolName);
+            Diagnostics.debug("reference", "name", symbolName);
             // Check symbol table first
             var localSymbol = symbol.findSymbol(symbolName, LocalVariableSymbol.class);
+            metrics.addSymbolsResolved(1);
             if(localSymbol != null) {
-                if (localSymbol.isStatic()) {
-                    instructionGenerator.addVariableAsStaticReference(symbolName, variableName, className, type);
+                if (localSymbol.isStatic()) { // Not a constant, so it is read from its field
+                    instructionGenerator.loadField(classGen.getClassName(), symbolName, localSymbol.getType(), true);
+                    if (isFieldInitializer(methodGen)) {
+                        instructionGenerator.storeAsField(variableName, type, isPublic | isStatic | isMutable, classGen.getClassName());
+                    } else {
+                        localVariables.put(symbol, instructionGenerator.storeAsLocalVariable(variableName, type));
+                    }
                 } else {
                     instructionGenerator.addVariableAsReference(variableName, localVariables.get(localSymbol));
                 }
@@ -250,32 +372,411 @@ public class CompilerVisitor extends SkaldParserBaseVisitor<Object> {
                     var externalSymbols = externalSymbolTable.getSymbol(symbolName, null, ExternalVariableSymbol.class);
                     externalSymbol = externalSymbols.getFirst();
                 }
+                metrics.addSymbolsResolved(1);
 
                 if (externalSymbol != null) {
                     if (externalSymbol.isStatic()) {
-                        instructionGenerator.addVariableAsStaticReference(variableName, symbolParentName, actualSymbolName, externalSymbol.getType());
+                        instructionGenerator.loadField(symbolParentName, actualSymbolName, externalSymbol.getType(), true);
+                        if (isFieldInitializer(methodGen)) {
+                            instructionGenerator.storeAsField(variableName, type, isPublic | isStatic | isMutable, classGen.getClassName());
+                        } else {
+                            localVariables.put(symbol, instructionGenerator.storeAsLocalVariable(variableName, type));
+                        }
                     } else {
                         instructionGenerator.addVariableAsReference(variableName, localVariables.get(localSymbol));
                     }
                 }
             }
+        } else if (operation != null || query != null) {
+            if (operation != null) {
+                var constantFolder = new ConstantFolder(name -> symbol.findSymbol(name, LocalVariableSymbol.class));
+                generateOperation(operation, type, constantFolder, methodGen, instructionGenerator);
+            } else {
+                generateQuery(query, type, methodGen, instructionGenerator);
+            }
+            if(isFieldInitializer(methodGen)) {
+                instructionGenerator.storeAsField(variableName, type, isPublic | isStatic | isMutable, classGen.getClassName());
+            } else {
+                localVariables.put(symbol, instructionGenerator.storeAsLocalVariable(variableName, type));
+            }
         } else if (expression != null) {
             visitExpression(expression, parameters);
         }
 
         var variableInstructions = instructionGenerator.getInstructionList();
-        methodGen.addLineNumber(variableInstructions.getStart(), ctx.stop.getLine());
+        if (!variableInstructions.isEmpty()) { // Constant fields have no initialization code
+            methodGen.addLineNumber(variableInstructions.getStart(), ctx.stop.getLine());
 
-        var methodInstructions = (InstructionGenerator)parameters.get(InstructionGenerator.class);
-        methodInstructions.getInstructionList().append(variableInstructions);
+            var methodInstructions = (InstructionGenerator)parameters.get(InstructionGenerator.class);
+            methodInstructions.getInstructionList().append(variableInstructions);
+        }
         return null;
     }
 
+    // Variables declared while generating a constructor or static initializer are fields of the class.
+    private boolean isFieldInitializer(MethodGen methodGen) {
+        return methodGen.getName().equals("<init>") || methodGen.getName().equals("<clinit>");
+    }
+
     @Override
     public Object visitVariable(SkaldParser.VariableContext ctx) {
         return visitVariable(ctx, Collections.emptyMap());
     }
 
+    // Pushes the value of an operation converted to the given type. Subtrees the folder can evaluate
+    // are pushed as a single literal, so only the parts involving runtime values emit arithmetic.
+    private void generateOperation(SkaldParser.OperationContext ctx,
+                                   Type type,
+                                   ConstantFolder constantFolder,
+                                   MethodGen methodGen,
+                                   InstructionGenerator instructionGenerator) {
+        var operand = constantFolder.visit(ctx);
+        if (operand.isConstant()) {
+            instructionGenerator.pushLiteral(ConstantFolder.coerce(operand, type));
+            return;
+        }
+
+        switch (ctx) {
+            case SkaldParser.ParenthesizedOperationContext parenthesized ->
+                    generateOperation(parenthesized.operation(), type, constantFolder, methodGen, instructionGenerator);
+            case SkaldParser.NegationOperationContext negation -> {
+                generateOperation(negation.operation(), operand.type(), constantFolder, methodGen, instructionGenerator);
+                instructionGenerator.negate(operand.type());
+                instructionGenerator.convert(operand.type(), type);
+            }
+            case SkaldParser.ReferenceOperationContext referenceOperation -> {
+                var referencedSymbol = constantFolder.resolve(visitReference(referenceOperation.reference()));
+                metrics.addSymbolsResolved(1);
+                loadVariable(referencedSymbol, methodGen, instructionGenerator);
+                instructionGenerator.convert(referencedSymbol.getType(), type);
+            }
+            case SkaldParser.CallOperationContext callOperation -> {
+                var functionSymbol = constantFolder.resolve(visitReference(callOperation.reference()));
+                metrics.addSymbolsResolved(1);
+                var functionType = (FunctionType) functionSymbol.getType();
+                var parameterTypes = functionType.getParameterTypes();
+                var arguments = callOperation.operation();
+                if (arguments.size() != parameterTypes.length) {
+                    throw new RuntimeException("Function " + functionSymbol.getName() + " of type " + functionType + " called with " + arguments.size() + " arguments");
+                }
+                loadVariable(functionSymbol, methodGen, instructionGenerator);
+                for (int i = 0; i < parameterTypes.length; i++) {
+                    generateOperation(arguments.get(i), parameterTypes[i], constantFolder, methodGen, instructionGenerator);
+                }
+                callFunctionValue(functionType, instructionGenerator);
+                instructionGenerator.convert(functionType.getReturnType(), type);
+            }
+            default -> {
+                var left = ctx.getChild(SkaldParser.OperationContext.class, 0);
+                var right = ctx.getChild(SkaldParser.OperationContext.class, 1);
+                String operator = ctx.getChild(1).getText();
+                if (operand.type().equals(Type.STRING)) {
+                    var concatenation = new StringConcatenation();
+                    appendOperation(ctx, constantFolder, methodGen, instructionGenerator, concatenation);
+                    instructionGenerator.concatenate(concatenation);
+                } else {
+                    // Comparisons convert their operands to a common type, like arithmetic, but produce a boolean.
+                    var operandType = ConstantFolder.getOperandType(operator, constantFolder.visit(left), constantFolder.visit(right));
+                    generateOperation(left, operandType, constantFolder, methodGen, instructionGenerator);
+                    generateOperation(right, operandType, constantFolder, methodGen, instructionGenerator);
+                    if (ConstantFolder.isComparison(operator)) {
+                        instructionGenerator.compare(operator, operandType);
+                    } else {
+                        instructionGenerator.binaryOperation(operator, operandType);
+                    }
+                    instructionGenerator.convert(operand.type(), type);
+                }
+            }
+        }
+    }
+
+    // Adds the operands of a string join to the concatenation. Nested joins add to the same one, so a chain
+    // of joins builds a single string. Constant operands become text of the recipe and push nothing.
+    private void appendOperation(SkaldParser.OperationContext ctx,
+                                 ConstantFolder constantFolder,
+                                 MethodGen methodGen,
+                                 InstructionGenerator instructionGenerator,
+                                 StringConcatenation concatenation) {
+        while (ctx instanceof SkaldParser.ParenthesizedOperationContext parenthesized) {
+            ctx = parenthesized.operation();
+        }
+        var operand = constantFolder.visit(ctx);
+        if (operand.isConstant()) {
+            concatenation.appendConstant(ConstantFolder.toString(operand));
+        } else if (operand.type().equals(Type.STRING) && ctx instanceof SkaldParser.AdditiveOperationContext join) {
+            appendOperation(join.operation(0), constantFolder, methodGen, instructionGenerator, concatenation);
+            appendOperation(join.operation(1), constantFolder, methodGen, instructionGenerator, concatenation);
+        } else {
+            instructionGenerator.reserveConcatArgument(concatenation, operand.type());
+            generateOperation(ctx, operand.type(), constantFolder, methodGen, instructionGenerator);
+            instructionGenerator.appendConcatArgument(concatenation, operand.type());
+        }
+    }
+
+    // A query is fused into a single loop over its source, so no intermediate collection or stream is created.
+    // Each element is stored in the range variable, of the element type, so the elements of primitive arrays
+    // stay unboxed. A where clause that is false skips to the next element, a let clause stores its value in
+    // a variable of its own, and the selected value is folded into an accumulator, whose value is pushed once
+    // the loop ends. Elements of an Iterable are read through its iterator.
+    private void generateQuery(SkaldParser.QueryContext ctx, Type type, MethodGen methodGen, InstructionGenerator instructionGenerator) {
+        var scope = localSymbolTable.getSymbol(ctx);
+        var constantFolder = new ConstantFolder(name -> scope.findVisibleSymbol(name, LocalVariableSymbol.class));
+        var source = scope.findSymbol(visitReference(ctx.reference()), LocalVariableSymbol.class);
+        metrics.addSymbolsResolved(1);
+        var element = (LocalVariableSymbol) localSymbolTable.getSymbol(ctx.queryVariable());
+        var elementType = element.getType();
+        var name = element.getName();
+        Diagnostics.log(Diagnostics.Level.DEBUG, "query", "source", source.getName(), "element", elementType, "clauses", ctx.queryClause().size());
+
+        // The accumulator starts from zero, or the initial value of an aggregate clause. Minimums and maximums
+        // also track whether any element was selected, as they start from the first one.
+        var result = ctx.queryResult();
+        var selectResult = result instanceof SkaldParser.SelectResultContext select ? select : null;
+        var aggregateResult = result instanceof SkaldParser.AggregateResultContext aggregate ? aggregate : null;
+        String aggregateName = selectResult != null ? selectResult.IDENTIFIER().getText() : "aggregate";
+        Type accumulatorType;
+        LocalVariableGen accumulator;
+        LocalVariableGen selected = null;
+        if (selectResult != null) {
+            accumulatorType = ConstantFolder.getAggregateType(aggregateName, constantFolder.visit(selectResult.operation()).type());
+            instructionGenerator.pushLiteral(ConstantFolder.coerce(0, accumulatorType));
+            accumulator = instructionGenerator.storeAsLocalVariable(name + "$" + aggregateName, accumulatorType);
+            if (aggregateName.equals("min") || aggregateName.equals("max")) {
+                instructionGenerator.pushLiteral(false);
+                selected = instructionGenerator.storeAsLocalVariable(name + "$selected", Type.BOOLEAN);
+            }
+        } else {
+            var accumulatorSymbol = (LocalVariableSymbol) localSymbolTable.getSymbol(aggregateResult);
+            accumulatorType = accumulatorSymbol.getType();
+            generateOperation(aggregateResult.operation(0), accumulatorType, constantFolder, methodGen, instructionGenerator);
+            accumulator = instructionGenerator.storeAsLocalVariable(accumulatorSymbol.getName(), accumulatorType);
+            localVariables.put(accumulatorSymbol, accumulator);
+        }
+
+        // The loop tests for another element at its head, and loads it into the range variable.
+        loadVariable(source, methodGen, instructionGenerator);
+        LocalVariableGen index = null;
+        LocalVariableGen iterable;
+        InstructionHandle head;
+        BranchHandle exit;
+        if (source.isArray()) {
+            iterable = instructionGenerator.storeAsLocalVariable(name + "$array", new ArrayType(elementType, 1));
+            instructionGenerator.pushLiteral(0);
+            index = instructionGenerator.storeAsLocalVariable(name + "$index", Type.INT);
+            head = instructionGenerator.insertLabel();
+            instructionGenerator.loadVariable(index);
+            instructionGenerator.loadVariable(iterable);
+            instructionGenerator.arrayLength();
+            exit = instructionGenerator.insertBranch(Const.IF_ICMPGE);
+            instructionGenerator.loadVariable(iterable);
+            instructionGenerator.loadVariable(index);
+            instructionGenerator.loadArrayElement(elementType);
+            if (elementType == UnsignedType.UBYTE) {
+                instructionGenerator.convert(Type.BYTE, UnsignedType.UBYTE);
+            }
+        } else {
+            var iteratorType = new ObjectType("java.util.Iterator");
+            instructionGenerator.callInterfaceFunction("java.lang.Iterable", "iterator", iteratorType, Type.NO_ARGS);
+            iterable = instructionGenerator.storeAsLocalVariable(name + "$iterator", iteratorType);
+            head = instructionGenerator.insertLabel();
+            instructionGenerator.loadVariable(iterable);
+            instructionGenerator.callInterfaceFunction(iteratorType.getClassName(), "hasNext", Type.BOOLEAN, Type.NO_ARGS);
+            exit = instructionGenerator.insertBranch(Const.IFEQ);
+            instructionGenerator.loadVariable(iterable);
+            instructionGenerator.callInterfaceFunction(iteratorType.getClassName(), "next", Type.OBJECT, Type.NO_ARGS);
+            instructionGenerator.unbox(elementType);
+            if (elementType == UnsignedType.UBYTE) {
+                instructionGenerator.convert(Type.BYTE, UnsignedType.UBYTE);
+            }
+        }
+        localVariables.put(element, instructionGenerator.storeAsLocalVariable(name, elementType));
+
+        List<BranchHandle> skips = new ArrayList<>();
+        for (var clauseCtx : ctx.queryClause()) {
+            if (clauseCtx instanceof SkaldParser.WhereClauseContext whereCtx) {
+                generateOperation(whereCtx.operation(), Type.BOOLEAN, constantFolder, methodGen, instructionGenerator);
+                skips.add(instructionGenerator.insertBranch(Const.IFEQ));
+            } else if (clauseCtx instanceof SkaldParser.LetClauseContext letCtx) {
+                var letSymbol = (LocalVariableSymbol) localSymbolTable.getSymbol(letCtx);
+                if (!ConstantFolder.getOperand(letSymbol).isConstant()) { // Constants are folded where they are read
+                    generateOperation(letCtx.operation(), letSymbol.getType(), constantFolder, methodGen, instructionGenerator);
+                    localVariables.put(letSymbol, instructionGenerator.storeAsLocalVariable(letSymbol.getName(), letSymbol.getType()));
+                }
+            }
+        }
+
+        if (aggregateResult != null) {
+            generateOperation(aggregateResult.operation(1), accumulatorType, constantFolder, methodGen, instructionGenerator);
+            instructionGenerator.storeVariable(accumulator);
+        } else if (aggregateName.equals("count")) {
+            // The selected value is still computed, as it may call a function.
+            var selectedType = constantFolder.visit(selectResult.operation()).type();
+            generateOperation(selectResult.operation(), selectedType, constantFolder, methodGen, instructionGenerator);
+            instructionGenerator.discard(selectedType);
+            instructionGenerator.increment(accumulator, 1);
+        } else if (aggregateName.equals("sum")) {
+            instructionGenerator.loadVariable(accumulator);
+            generateOperation(selectResult.operation(), accumulatorType, constantFolder, methodGen, instructionGenerator);
+            instructionGenerator.binaryOperation("+", accumulatorType);
+            instructionGenerator.storeVariable(accumulator);
+        } else {
+            // The first selected value is taken as it is, and every later one replaces a larger (or smaller) one.
+            generateOperation(selectResult.operation(), accumulatorType, constantFolder, methodGen, instructionGenerator);
+            var value = instructionGenerator.storeAsLocalVariable(name + "$value", accumulatorType);
+            instructionGenerator.loadVariable(selected);
+            var first = instructionGenerator.insertBranch(Const.IFEQ);
+            instructionGenerator.loadVariable(value);
+            instructionGenerator.loadVariable(accumulator);
+            instructionGenerator.compare(aggregateName.equals("min") ? "<" : ">", accumulatorType);
+            skips.add(instructionGenerator.insertBranch(Const.IFEQ));
+            first.setTarget(instructionGenerator.insertLabel());
+            instructionGenerator.loadVariable(value);
+            instructionGenerator.storeVariable(accumulator);
+            instructionGenerator.pushLiteral(true);
+            instructionGenerator.storeVariable(selected);
+        }
+
+        var next = instructionGenerator.insertLabel();
+        skips.forEach((skip) -> skip.setTarget(next));
+        if (index != null) {
+            instructionGenerator.increment(index, 1);
+        }
+        instructionGenerator.insertBranch(Const.GOTO).setTarget(head);
+        exit.setTarget(instructionGenerator.insertLabel());
+
+        // Like C#, a minimum or maximum of no elements is an error rather than a made-up value.
+        if (selected != null) {
+            instructionGenerator.loadVariable(selected);
+            var found = instructionGenerator.insertBranch(Const.IFNE);
+            instructionGenerator.throwException("java.util.NoSuchElementException", "Query selected no elements for " + aggregateName);
+            found.setTarget(instructionGenerator.insertLabel());
+        }
+        instructionGenerator.loadVariable(accumulator);
+        instructionGenerator.convert(accumulatorType, type);
+    }
+
+    // A lambda is compiled to a private static method taking the variables it captures, followed by its own
+    // parameters, and its value is created by LambdaMetafactory from the captured values. They are passed by
+    // value, which cannot be told apart from sharing them, as no variable is assigned after its declaration.
+    private void generateLambda(SkaldParser.LambdaContext ctx, FunctionType functionType, MethodGen methodGen, InstructionGenerator instructionGenerator) {
+        var scope = localSymbolTable.getSymbol(ctx);
+        var constantFolder = new ConstantFolder(name -> scope.findVisibleSymbol(name, LocalVariableSymbol.class));
+        List<LocalVariableSymbol> captured = new ArrayList<>();
+        findCapturedVariables(ctx.operation(), scope, constantFolder, captured);
+
+        // Named like the lambdas javac generates, after the method they appear in.
+        String enclosingName = switch (methodGen.getName()) {
+            case "<init>" -> "new";
+            case "<clinit>" -> "static";
+            default -> methodGen.getName();
+        };
+        String methodName = "lambda$" + enclosingName + "$" + lambdaCount++;
+        Diagnostics.debug("lambda", "method", methodName, "captures", captured.size());
+
+        List<String> parameterNames = new ArrayList<>();
+        List<Type> parameterTypes = new ArrayList<>();
+        for (var capturedSymbol : captured) {
+            loadVariable(capturedSymbol, methodGen, instructionGenerator);
+            parameterNames.add(capturedSymbol.getName());
+            parameterTypes.add(capturedSymbol.getType());
+        }
+        var capturedTypes = parameterTypes.toArray(new Type[0]);
+        ctx.functionParameter().forEach((parameterCtx) -> {
+            var pair = visitFunctionParameter(parameterCtx);
+            parameterNames.add(pair.getLeft());
+            parameterTypes.add(pair.getRight());
+        });
+
+        var lambdaGenerator = new InstructionGenerator(instructionUtil);
+        var returnType = functionType.getReturnType();
+        var lambdaMethod = lambdaGenerator.getMethodGen(Const.ACC_PRIVATE | Const.ACC_STATIC | Const.ACC_SYNTHETIC, methodName, returnType, parameterTypes, parameterNames);
+
+        // Within the lambda, captured variables are read from its parameters instead of their own slots.
+        var lambdaParameters = lambdaMethod.getLocalVariables();
+        Map<LocalSymbol, LocalVariableGen> enclosingVariables = new HashMap<>();
+        for (int i = 0; i < captured.size(); i++) {
+            enclosingVariables.put(captured.get(i), localVariables.put(captured.get(i), lambdaParameters[i]));
+        }
+        generateOperation(ctx.operation(), returnType, constantFolder, lambdaMethod, lambdaGenerator);
+        enclosingVariables.forEach((capturedSymbol, localVariable) -> {
+            if (localVariable != null) {
+                localVariables.put(capturedSymbol, localVariable);
+            } else {
+                localVariables.remove(capturedSymbol);
+            }
+        });
+        lambdaGenerator.insertReturn(returnType);
+
+        var lambdaInstructions = lambdaGenerator.getInstructionList();
+        lambdaMethod.addLineNumber(lambdaInstructions.getStart(), ctx.start.getLine());
+        metrics.addInstructionsEmitted(lambdaInstructions.getLength());
+        lambdaGenerator.completeFunction(peepholeOptimizer);
+
+        instructionGenerator.createFunction(functionType, classGen.getClassName(), methodName, capturedTypes);
+    }
+
+    // Collects the variables of enclosing scopes that a lambda body reads at runtime, in the order they are
+    // first read. Fields are read by the lambda itself, and constants are folded into it.
+    private void findCapturedVariables(ParseTree ctx, LocalSymbol scope, ConstantFolder constantFolder, List<LocalVariableSymbol> captured) {
+        var reference = switch (ctx) {
+            case SkaldParser.ReferenceOperationContext referenceOperation -> referenceOperation.reference();
+            case SkaldParser.CallOperationContext callOperation -> callOperation.reference();
+            default -> null;
+        };
+        if (reference != null) {
+            var symbol = constantFolder.resolve(visitReference(reference));
+            metrics.addSymbolsResolved(1);
+            var parent = symbol.getParent();
+            if (parent != scope && !parent.isTopLevel() && !ConstantFolder.getOperand(symbol).isConstant() && !captured.contains(symbol)) {
+                captured.add(symbol);
+            }
+        }
+        for (int i = 0; i < ctx.getChildCount(); i++) {
+            findCapturedVariables(ctx.getChild(i), scope, constantFolder, captured);
+        }
+    }
+
+    // The function a variable is initialized with, when its initializer names a function rather than a variable.
+    private LocalFunctionSymbol getReferencedFunction(LocalVariableSymbol symbol) {
+        if (!(symbol.getType() instanceof FunctionType) || !(symbol.getValue() instanceof String symbolName)
+                || symbol.findSymbol(symbolName, LocalVariableSymbol.class) != null) {
+            return null;
+        }
+        return symbol.findSymbol(symbolName, LocalFunctionSymbol.class);
+    }
+
+    // The interface method returns a ubyte as a byte, which the JVM sign-extends.
+    private void callFunctionValue(FunctionType functionType, InstructionGenerator instructionGenerator) {
+        instructionGenerator.callFunctionValue(functionType);
+        if (functionType.getReturnType() == UnsignedType.UBYTE) {
+            instructionGenerator.convert(Type.BYTE, UnsignedType.UBYTE);
+        }
+    }
+
+    // Local variables and parameters are read from their slot, and top-level variables from their field.
+    // Locals of type ubyte always hold a zero-extended value, but a field or parameter holds a signed byte.
+    private void loadVariable(LocalVariableSymbol symbol, MethodGen methodGen, InstructionGenerator instructionGenerator) {
+        var localVariable = localVariables.get(symbol);
+        if (localVariable == null && symbol.isParameter()) {
+            for (var parameter : methodGen.getLocalVariables()) {
+                if (parameter.getName().equals(symbol.getName())) {
+                    localVariable = parameter;
+                    break;
+                }
+            }
+        }
+        if (localVariable != null) {
+            instructionGenerator.loadVariable(localVariable);
+        } else if (symbol.getParent() != null && symbol.getParent().isTopLevel() && (symbol.isStatic() || !methodGen.isStatic())) {
+            instructionGenerator.loadField(classGen.getClassName(), symbol.getName(), symbol.getType(), symbol.isStatic());
+        } else {
+            throw new RuntimeException("Variable " + symbol.getName() + " cannot be read in " + methodGen.getName());
+        }
+        if (symbol.getType() == UnsignedType.UBYTE && !symbol.isArray() && (symbol.isParameter() || localVariable == null)) {
+            instructionGenerator.convert(Type.BYTE, UnsignedType.UBYTE);
+        }
+    }
+
     public Object visitFunctionCallArgument(SkaldParser.FunctionCallArgumentContext ctx, Map<Class<?>, Object> parameters) {
         var literals = ctx.literals();
         if(literals != null) {
@@ -301,7 +802,6 @@ public class CompilerVisitor extends SkaldParserBaseVisitor<Object> {
 
     public Object visitFunctionCall(SkaldParser.FunctionCallContext ctx, Map<Class<?>, Object> parameters) {
         var localSymbol = (LocalMarkerSymbol)localSymbolTable.getSymbol(ctx);
-        System.out.println("-----------------------------------");
         String reference = visitReference(ctx.reference());
 
         var arguments = ctx.functionCallArgument();
@@ -313,33 +813,75 @@ public class CompilerVisitor extends SkaldParserBaseVisitor<Object> {
             String functionName = StringUtils.substringAfterLast(reference, ".");
             var referenceSymbol = localSymbol.findSymbol(referenceName, LocalVariableSymbol.class);
             var type = referenceSymbol.getType();
+            metrics.addSymbolsResolved(1);
 
-            System.out.println("Reference: " + referenceName + ", Function: " + functionName);
-            var externalSymbols = externalSymbolTable.getSymbol(functionName, type.getClassName(), ExternalFunctionSymbol.class);
+            Diagnostics.debug("call", "reference", referenceName, "function", functionName);
 
             // Find matching function, due to overloading
             int argumentCount;
             if (arguments != null) argumentCount = arguments.size();
             else argumentCount = 0;
 
-            var externalSymbol = externalSymbols
-                    .stream()
-                    .filter(s -> s.getParameters().size() == argumentCount)
-                    .findFirst()
-                    .orElse(null);
+            var externalSymbols = externalSymbolTable.getFunctions(functionName, type.getClassName(), argumentCount);
+            metrics.addSymbolsResolved(1);
+            var externalSymbol = externalSymbols.isEmpty() ? null : externalSymbols.getFirst();
 
             var instructionGenerator = (InstructionGenerator)parameters.get(InstructionGenerator.class);
 
             List<Type> argumentTypes = externalSymbol.getParameters().stream().map(ExternalVariableSymbol::getType).toList();
             instructionGenerator.callFunction(type.getClassName(), functionName, externalSymbol.getReturnType(), argumentTypes.toArray(new Type[0]), externalSymbol.isStatic());
         } else {
-            System.out.println("Local Function: " + reference);
+            Diagnostics.debug("call", "function", reference);
+            var functionSymbol = localSymbol.findSymbol(reference, LocalVariableSymbol.class);
+            metrics.addSymbolsResolved(1);
+            if (functionSymbol != null && functionSymbol.getType() instanceof FunctionType functionType) {
+                callFunctionValue(ctx, functionSymbol, functionType, parameters);
+            }
             //externalSymbol = externalSymbolTable.getSymbol(reference, null, ExternalFunctionSymbol.class);
         }
 
         return null;
     }
 
+    // A call of a function value as a statement, whose result is discarded. Arguments are literals and
+    // variables, converted to the types of the function's parameters.
+    private void callFunctionValue(SkaldParser.FunctionCallContext ctx, LocalVariableSymbol functionSymbol, FunctionType functionType, Map<Class<?>, Object> parameters) {
+        var methodGen = (MethodGen)parameters.get(MethodGen.class);
+        var instructionGenerator = (InstructionGenerator)parameters.get(InstructionGenerator.class);
+        var parameterTypes = functionType.getParameterTypes();
+        var arguments = ctx.functionCallArgument();
+        if (arguments.size() != parameterTypes.length) {
+            throw new RuntimeException("Function " + functionSymbol.getName() + " of type " + functionType + " called with " + arguments.size() + " arguments");
+        }
+
+        loadVariable(functionSymbol, methodGen, instructionGenerator);
+        for (int i = 0; i < parameterTypes.length; i++) {
+            var argument = arguments.get(i);
+            if (argument.literals() != null) {
+                var operand = ConstantFolder.getOperand(ConstantFolder.parseLiteral(argument.literals()));
+                instructionGenerator.pushLiteral(ConstantFolder.coerce(operand, parameterTypes[i]));
+            } else if (argument.reference() != null) {
+                String symbolName = visitReference(argument.reference());
+                var argumentSymbol = localSymbolTable.getSymbol(ctx).findSymbol(symbolName, LocalVariableSymbol.class);
+                metrics.addSymbolsResolved(1);
+                if (argumentSymbol == null) {
+                    throw new RuntimeException("Unknown variable in call: " + symbolName);
+                }
+                var operand = ConstantFolder.getOperand(argumentSymbol);
+                if (operand.isConstant()) {
+                    instructionGenerator.pushLiteral(ConstantFolder.coerce(operand, parameterTypes[i]));
+                } else {
+                    loadVariable(argumentSymbol, methodGen, instructionGenerator);
+                    instructionGenerator.convert(argumentSymbol.getType(), parameterTypes[i]);
+                }
+            } else {
+                throw new RuntimeException("Unsupported argument of " + functionSymbol.getName() + ": " + argument.getText());
+            }
+        }
+        callFunctionValue(functionType, instructionGenerator);
+        instructionGenerator.discard(functionType.getReturnType());
+    }
+
     @Override
     public Object visitFunctionCall(SkaldParser.FunctionCallContext ctx) {
         return visitFunctionCall(ctx, Collections.emptyMap());
@@ -354,9 +896,305 @@ public class CompilerVisitor extends SkaldParserBaseVisitor<Object> {
         if (functionCall != null) {
             return visitFunctionCall(functionCall, parameters);
         }
+        var ifStatement = ctx.ifStatement();
+        if (ifStatement != null) {
+            return visitIfStatement(ifStatement, parameters);
+        }
+        var whileLoop = ctx.whileLoop();
+        if (whileLoop != null) {
+            return visitWhileLoop(whileLoop, parameters);
+        }
+        var matchStatement = ctx.matchStatement();
+        if (matchStatement != null) {
+            return visitMatchStatement(matchStatement, parameters);
+        }
         return null;
     }
 
+    // Each clause tests its condition and skips its block when it is false, and each block jumps past the
+    // remaining clauses. Clauses whose condition is constant are decided here instead: a false one is left
+    // out, and a true one ends the chain.
+    public Object visitIfStatement(SkaldParser.IfStatementContext ctx, Map<Class<?>, Object> parameters) {
+        var methodGen = (MethodGen)parameters.get(MethodGen.class);
+        var instructionGenerator = (InstructionGenerator)parameters.get(InstructionGenerator.class);
+
+        List<SkaldParser.ExpressionContext> conditions = new ArrayList<>();
+        List<List<SkaldParser.ExpressionContext>> blocks = new ArrayList<>();
+        List<LocalSymbol> scopes = new ArrayList<>();
+        conditions.add(ctx.expression(0));
+        blocks.add(ctx.expression().subList(1, ctx.expression().size()));
+        scopes.add(localSymbolTable.getSymbol(ctx));
+        for (var elseIfCtx : ctx.elseIfStatement()) {
+            conditions.add(elseIfCtx.expression(0));
+            blocks.add(elseIfCtx.expression().subList(1, elseIfCtx.expression().size()));
+            scopes.add(localSymbolTable.getSymbol(elseIfCtx));
+        }
+        var elseCtx = ctx.elseStatement();
+
+        List<BranchHandle> exits = new ArrayList<>();
+        boolean isDecided = false;
+        for (int i = 0; i < conditions.size() && !isDecided; i++) {
+            var condition = getCondition(conditions.get(i), scopes.get(i));
+            var operand = ConstantFolder.getOperand(condition);
+            Diagnostics.debug("if", "condition", condition.getName(), "constant", operand.value());
+            if (operand.isConstant()) {
+                if (operand.value().equals(Boolean.TRUE)) {
+                    blocks.get(i).forEach((expressionCtx) -> visitExpression(expressionCtx, parameters));
+                    isDecided = true;
+                }
+                continue;
+            }
+
+            loadVariable(condition, methodGen, instructionGenerator);
+            var skip = instructionGenerator.insertBranch(Const.IFEQ);
+            blocks.get(i).forEach((expressionCtx) -> visitExpression(expressionCtx, parameters));
+            if (i < conditions.size() - 1 || elseCtx != null) {
+                exits.add(instructionGenerator.insertBranch(Const.GOTO));
+            }
+            skip.setTarget(instructionGenerator.insertLabel());
+        }
+        if (!isDecided && elseCtx != null) {
+            elseCtx.expression().forEach((expressionCtx) -> visitExpression(expressionCtx, parameters));
+        }
+
+        if (!exits.isEmpty()) {
+            var end = instructionGenerator.insertLabel();
+            exits.forEach((exit) -> exit.setTarget(end));
+        }
+        return null;
+    }
+
+    @Override
+    public Object visitIfStatement(SkaldParser.IfStatementContext ctx) {
+        return visitIfStatement(ctx, Collections.emptyMap());
+    }
+
+    // The condition is tested at the head of the loop and the block jumps back to it. A loop whose condition
+    // is constantly false is left out.
+    public Object visitWhileLoop(SkaldParser.WhileLoopContext ctx, Map<Class<?>, Object> parameters) {
+        var methodGen = (MethodGen)parameters.get(MethodGen.class);
+        var instructionGenerator = (InstructionGenerator)parameters.get(InstructionGenerator.class);
+
+        var condition = getCondition(ctx.expression(0), localSymbolTable.getSymbol(ctx));
+        var operand = ConstantFolder.getOperand(condition);
+        Diagnostics.debug("while", "condition", condition.getName(), "constant", operand.value());
+        if (operand.isConstant() && operand.value().equals(Boolean.FALSE)) {
+            return null;
+        }
+
+        var head = instructionGenerator.insertLabel();
+        BranchHandle exit = null;
+        if (!operand.isConstant()) {
+            loadVariable(condition, methodGen, instructionGenerator);
+            exit = instructionGenerator.insertBranch(Const.IFEQ);
+        }
+        ctx.expression().subList(1, ctx.expression().size()).forEach((expressionCtx) -> visitExpression(expressionCtx, parameters));
+        instructionGenerator.insertBranch(Const.GOTO).setTarget(head);
+        if (exit != null) {
+            exit.setTarget(instructionGenerator.insertLabel());
+        }
+        return null;
+    }
+
+    @Override
+    public Object visitWhileLoop(SkaldParser.WhileLoopContext ctx) {
+        return visitWhileLoop(ctx, Collections.emptyMap());
+    }
+
+    // Finds a case in constant time, whatever the number of cases. Integral keys index a tableswitch, or
+    // search a lookupswitch when they are too sparse for a table. String and long keys switch on their hash
+    // code and then compare the few keys that share it. A union switches on the tag of its member, and a
+    // case that binds the member's value casts to the member once it is selected. A constant variable
+    // selects its case here instead.
+    public Object visitMatchStatement(SkaldParser.MatchStatementContext ctx, Map<Class<?>, Object> parameters) {
+        var methodGen = (MethodGen)parameters.get(MethodGen.class);
+        var instructionGenerator = (InstructionGenerator)parameters.get(InstructionGenerator.class);
+
+        String symbolName = ctx.IDENTIFIER().getText();
+        var symbol = localSymbolTable.getSymbol(ctx).findSymbol(symbolName, LocalVariableSymbol.class);
+        metrics.addSymbolsResolved(1);
+        if (symbol == null) {
+            throw new RuntimeException("Unknown variable in match: " + symbolName);
+        }
+        var type = symbol.getType();
+        var unionSymbol = localSymbolTable.findUnion(type);
+        boolean isHashed = type.equals(Type.STRING) || type.equals(Type.LONG);
+        boolean isIntegral = type.equals(Type.BOOLEAN) || type.equals(Type.BYTE) || type.equals(Type.SHORT) || type.equals(Type.CHAR) || type.equals(Type.INT)
+                || unionSymbol != null;
+        if (!isHashed && !isIntegral) {
+            throw new RuntimeException("Cannot match on " + symbolName + " of type " + type);
+        }
+
+        var cases = ctx.matchCase();
+        var defaultCase = ctx.matchDefaultCase();
+        List<Object> keys = new ArrayList<>();
+        for (var caseCtx : cases) {
+            var key = unionSymbol != null ? getUnionMember(caseCtx, unionSymbol).tag() : getMatchKey(caseCtx, type);
+            if (keys.contains(key)) {
+                throw new RuntimeException("Duplicate case " + caseCtx.getChild(0).getText() + " in match on " + symbolName);
+            }
+            keys.add(key);
+        }
+        Diagnostics.log(Diagnostics.Level.DEBUG, "match", "variable", symbolName, "type", type, "cases", keys.size());
+
+        var operand = ConstantFolder.getOperand(symbol);
+        if (operand.isConstant() || cases.isEmpty()) {
+            int index = operand.isConstant() ? keys.indexOf(ConstantFolder.coerce(operand, type)) : -1;
+            var body = index >= 0 ? cases.get(index).expression() : defaultCase != null ? defaultCase.expression() : List.<SkaldParser.ExpressionContext>of();
+            body.forEach((expressionCtx) -> visitExpression(expressionCtx, parameters));
+            return null;
+        }
+
+        // The switch jumps to a case directly, or for hashed keys to the comparisons of its bucket.
+        loadVariable(symbol, methodGen, instructionGenerator);
+        if (unionSymbol != null) {
+            instructionGenerator.loadObjectField(unionSymbol.getClassName(), UnionGenerator.TAG_FIELD, Type.INT);
+        }
+        Map<Integer, Integer> caseIndices = new HashMap<>();
+        Map<Integer, List<Integer>> buckets = new TreeMap<>();
+        BranchHandle switchHandle;
+        if (isHashed) {
+            if (type.equals(Type.STRING)) {
+                instructionGenerator.callFunction("java.lang.String", "hashCode", Type.INT, Type.NO_ARGS, false);
+            } else {
+                instructionGenerator.callFunction("java.lang.Long", "hashCode", Type.INT, new Type[] { Type.LONG }, true);
+            }
+            for (int i = 0; i < keys.size(); i++) {
+                buckets.computeIfAbsent(keys.get(i).hashCode(), k -> new ArrayList<>()).add(i);
+            }
+            switchHandle = instructionGenerator.insertSwitch(buckets.keySet().stream().mapToInt(Integer::intValue).toArray());
+        } else {
+            for (int i = 0; i < keys.size(); i++) {
+                caseIndices.put(getSwitchKey(keys.get(i)), i);
+            }
+            switchHandle = instructionGenerator.insertSwitch(caseIndices.keySet().stream().mapToInt(Integer::intValue).toArray());
+        }
+
+        Map<Integer, InstructionHandle> bucketLabels = new HashMap<>();
+        List<Pair<BranchHandle, Integer>> caseJumps = new ArrayList<>();
+        List<BranchHandle> misses = new ArrayList<>();
+        buckets.forEach((hash, bucket) -> {
+            bucketLabels.put(hash, instructionGenerator.insertLabel());
+            for (int caseIndex : bucket) {
+                if (type.equals(Type.STRING)) {
+                    instructionGenerator.pushLiteral(keys.get(caseIndex));
+                    loadVariable(symbol, methodGen, instructionGenerator);
+                    instructionGenerator.callFunction("java.lang.String", "equals", Type.BOOLEAN, new Type[] { Type.OBJECT }, false);
+                    caseJumps.add(Pair.of(instructionGenerator.insertBranch(Const.IFNE), caseIndex));
+                } else {
+                    loadVariable(symbol, methodGen, instructionGenerator);
+                    instructionGenerator.pushLiteral(keys.get(caseIndex));
+                    instructionGenerator.compare("!=", type);
+                    caseJumps.add(Pair.of(instructionGenerator.insertBranch(Const.IFEQ), caseIndex));
+                }
+            }
+            misses.add(instructionGenerator.insertBranch(Const.GOTO));
+        });
+
+        var caseLabels = new ArrayList<InstructionHandle>();
+        List<BranchHandle> exits = new ArrayList<>();
+        for (var caseCtx : cases) {
+            caseLabels.add(instructionGenerator.insertLabel());
+            if (caseCtx.matchBinding() != null) {
+                bindUnionMember(caseCtx, symbol, getUnionMember(caseCtx, unionSymbol), methodGen, instructionGenerator);
+            }
+            caseCtx.expression().forEach((expressionCtx) -> visitExpression(expressionCtx, parameters));
+            exits.add(instructionGenerator.insertBranch(Const.GOTO));
+        }
+        var defaultLabel = instructionGenerator.insertLabel();
+        if (defaultCase != null) {
+            defaultCase.expression().forEach((expressionCtx) -> visitExpression(expressionCtx, parameters));
+        }
+        var end = instructionGenerator.insertLabel();
+
+        // Keys missing from a table, and values matching no key, go to the default case.
+        var select = (Select) switchHandle.getInstruction();
+        var match = select.getMatchs();
+        for (int i = 0; i < match.length; i++) {
+            var caseIndex = caseIndices.get(match[i]);
+            var target = isHashed ? bucketLabels.get(match[i]) : caseIndex != null ? caseLabels.get(caseIndex) : null;
+            select.setTarget(i, target != null ? target : defaultLabel);
+        }
+        select.setTarget(defaultLabel);
+        caseJumps.forEach((jump) -> jump.getLeft().setTarget(caseLabels.get(jump.getRight())));
+        misses.forEach((miss) -> miss.setTarget(defaultLabel));
+        exits.forEach((exit) -> exit.setTarget(end));
+        return null;
+    }
+
+    @Override
+    public Object visitMatchStatement(SkaldParser.MatchStatementContext ctx) {
+        return visitMatchStatement(ctx, Collections.emptyMap());
+    }
+
+    // Case keys are literals or constant variables, converted to the type of the matched variable.
+    private Object getMatchKey(SkaldParser.MatchCaseContext ctx, Type type) {
+        ConstantFolder.Operand operand;
+        if (ctx.literals() != null) {
+            operand = ConstantFolder.getOperand(ConstantFolder.parseLiteral(ctx.literals()));
+        } else {
+            String symbolName = visitReference(ctx.reference());
+            var keySymbol = localSymbolTable.getSymbol(ctx).findSymbol(symbolName, LocalVariableSymbol.class);
+            metrics.addSymbolsResolved(1);
+            if (keySymbol == null) {
+                throw new RuntimeException("Unknown variable in case: " + symbolName);
+            }
+            operand = ConstantFolder.getOperand(keySymbol);
+            if (!operand.isConstant()) {
+                throw new RuntimeException("Case " + symbolName + " is not a constant");
+            }
+        }
+        return ConstantFolder.coerce(operand, type);
+    }
+
+    // Cases of a match on a union name one of its members.
+    private LocalUnionSymbol.Member getUnionMember(SkaldParser.MatchCaseContext ctx, LocalUnionSymbol unionSymbol) {
+        var reference = ctx.reference();
+        var member = reference != null ? unionSymbol.findMember(visitReference(reference)) : null;
+        if (member == null) {
+            throw new RuntimeException("Case " + ctx.getChild(0).getText() + " is not a member of union " + unionSymbol.getName());
+        }
+        return member;
+    }
+
+    // Stores the value of the member in the variable the case binds it to.
+    private void bindUnionMember(SkaldParser.MatchCaseContext ctx, LocalVariableSymbol symbol, LocalUnionSymbol.Member member,
+                                 MethodGen methodGen, InstructionGenerator instructionGenerator) {
+        var bindingSymbol = (LocalVariableSymbol) localSymbolTable.getSymbol(ctx.matchBinding());
+        loadVariable(symbol, methodGen, instructionGenerator);
+        instructionGenerator.castTo(new ObjectType(member.className()));
+        instructionGenerator.loadObjectField(member.className(), UnionGenerator.VALUE_FIELD, member.type());
+        if (member.type() == UnsignedType.UBYTE) {
+            instructionGenerator.convert(Type.BYTE, UnsignedType.UBYTE);
+        }
+        localVariables.put(bindingSymbol, instructionGenerator.storeAsLocalVariable(bindingSymbol.getName(), member.type()));
+    }
+
+    // The int a key is compared as, matching the value of its type on the operand stack.
+    private int getSwitchKey(Object key) {
+        return switch (key) {
+            case Boolean b -> b ? 1 : 0;
+            case Character c -> c;
+            case Number n -> n.intValue();
+            default -> throw new IllegalStateException("Unexpected case key: " + key);
+        };
+    }
+
+    // Conditions are boolean variables, looked up from the statement that tests them.
+    private LocalVariableSymbol getCondition(SkaldParser.ExpressionContext ctx, LocalSymbol scope) {
+        var reference = ctx.reference();
+        if (reference == null) {
+            throw new RuntimeException("Condition must be a boolean variable: " + ctx.getText());
+        }
+        String symbolName = visitReference(reference);
+        var symbol = scope.findSymbol(symbolName, LocalVariableSymbol.class);
+        metrics.addSymbolsResolved(1);
+        if (symbol == null || !symbol.getType().equals(Type.BOOLEAN)) {
+            throw new RuntimeException("Condition must be a boolean variable: " + symbolName);
+        }
+        return symbol;
+    }
+
     @Override
     public Object visitExpression(SkaldParser.ExpressionContext ctx) {
         return visitExpression(ctx, Collections.emptyMap());
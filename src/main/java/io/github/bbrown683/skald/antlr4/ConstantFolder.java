@@ -0,0 +1,431 @@
+package io.github.bbrown683.skald.antlr4;
+
+import io.github.bbrown683.skald.jvm.FunctionType;
+import io.github.bbrown683.skald.jvm.UnsignedType;
+import io.github.bbrown683.skald.symbol.local.LocalVariableSymbol;
+import org.apache.bcel.generic.Type;
+
+import java.math.BigInteger;
+import java.util.function.Function;
+
+// Types operations and evaluates the ones that only involve literals and immutable variables with constant
+// initializers, following Java's rules for binary numeric promotion and string conversion. Such operations
+// are emitted as a single constant push, and the variables they initialize become constants in turn, so
+// constants propagate through chains of declarations.
+//
+// ubyte and ushort promote to int, like char. uint and ulong only combine with each other, with wider
+// signed types that hold all of their values, and with non-negative constants, which take their type.
+public class ConstantFolder extends SkaldParserBaseVisitor<ConstantFolder.Operand> {
+    // The static type of an operation, and its value when known at compile time (otherwise null).
+    public record Operand(Type type, Object value) {
+        public boolean isConstant() {
+            return value != null;
+        }
+    }
+
+    private final Function<String, LocalVariableSymbol> symbolResolver;
+
+    // The resolver finds the variables visible where the operation appears, or returns null.
+    public ConstantFolder(Function<String, LocalVariableSymbol> symbolResolver) {
+        this.symbolResolver = symbolResolver;
+    }
+
+    @Override
+    public Operand visitParenthesizedOperation(SkaldParser.ParenthesizedOperationContext ctx) {
+        return visit(ctx.operation());
+    }
+
+    // Negation promotes like arithmetic, so a byte or char is negated as an int. Unsigned values have no negation.
+    @Override
+    public Operand visitNegationOperation(SkaldParser.NegationOperationContext ctx) {
+        var operand = visit(ctx.operation());
+        if (!isNumeric(operand.type()) || operand.type() instanceof UnsignedType) {
+            throw new RuntimeException("Operator - cannot be applied to " + operand.type());
+        }
+        var type = getOperandType("-", operand, operand);
+        if (!operand.isConstant()) {
+            return new Operand(type, null);
+        }
+        return new Operand(type, switch (coerce(operand, type)) {
+            case Integer i -> -i;
+            case Long l -> -l;
+            case Float f -> -f;
+            case Double d -> -d;
+            default -> throw new IllegalStateException("Unexpected constant: " + operand.value());
+        });
+    }
+
+    @Override
+    public Operand visitMultiplicativeOperation(SkaldParser.MultiplicativeOperationContext ctx) {
+        return fold(ctx.operator.getText(), visit(ctx.operation(0)), visit(ctx.operation(1)));
+    }
+
+    @Override
+    public Operand visitAdditiveOperation(SkaldParser.AdditiveOperationContext ctx) {
+        return fold(ctx.operator.getText(), visit(ctx.operation(0)), visit(ctx.operation(1)));
+    }
+
+    @Override
+    public Operand visitRelationalOperation(SkaldParser.RelationalOperationContext ctx) {
+        return fold(ctx.operator.getText(), visit(ctx.operation(0)), visit(ctx.operation(1)));
+    }
+
+    @Override
+    public Operand visitEqualityOperation(SkaldParser.EqualityOperationContext ctx) {
+        return fold(ctx.operator.getText(), visit(ctx.operation(0)), visit(ctx.operation(1)));
+    }
+
+    @Override
+    public Operand visitLiteralOperation(SkaldParser.LiteralOperationContext ctx) {
+        return getOperand(parseLiteral(ctx.literals()));
+    }
+
+    @Override
+    public Operand visitReferenceOperation(SkaldParser.ReferenceOperationContext ctx) {
+        return getOperand(resolve(ctx.reference().getText()));
+    }
+
+    // Calls are never constant, and have the return type of the function value called.
+    @Override
+    public Operand visitCallOperation(SkaldParser.CallOperationContext ctx) {
+        String name = ctx.reference().getText();
+        if (!(resolve(name).getType() instanceof FunctionType functionType)) {
+            throw new RuntimeException("Variable " + name + " is not a function");
+        }
+        if (functionType.getReturnType().equals(Type.VOID)) {
+            throw new RuntimeException("Function " + name + " returns no value");
+        }
+        return new Operand(functionType.getReturnType(), null);
+    }
+
+    // Finds a variable an operation refers to.
+    public LocalVariableSymbol resolve(String name) {
+        var symbol = symbolResolver.apply(name);
+        if (symbol == null) {
+            throw new RuntimeException("Unknown variable in operation: " + name);
+        }
+        return symbol;
+    }
+
+    // Only immutable variables can be replaced by the value they were initialized with.
+    public static Operand getOperand(LocalVariableSymbol symbol) {
+        return new Operand(symbol.getType(), symbol.isMutable() ? null : symbol.getConstantValue());
+    }
+
+    public static Operand getOperand(Object literal) {
+        return switch (literal) {
+            case Byte b -> new Operand(Type.INT, b.intValue());
+            case Short s -> new Operand(Type.INT, s.intValue());
+            case BigInteger i -> new Operand(UnsignedType.ULONG, i.longValue());
+            default -> new Operand(getType(literal), literal);
+        };
+    }
+
+    public static Type getType(Object literal) {
+        return switch (literal) {
+            case Byte b -> Type.INT; // Integer literals are ints unless they need a long, as in Java
+            case Short s -> Type.INT;
+            case Integer i -> Type.INT;
+            case Long l -> Type.LONG;
+            case BigInteger i -> UnsignedType.ULONG; // Only literals above Long.MAX_VALUE are parsed as BigInteger
+            case Float f -> Type.FLOAT;
+            case Double d -> Type.DOUBLE;
+            case Character c -> Type.CHAR;
+            case Boolean b -> Type.BOOLEAN;
+            case String s -> Type.STRING;
+            default -> throw new RuntimeException("Unsupported literal type: " + literal.getClass().getName());
+        };
+    }
+
+    // Integer literals are the smallest of byte, short, int and long that holds them, and literals up to
+    // the largest ulong that no long holds are a BigInteger. Floating-point literals are doubles, so that
+    // they keep their precision until converted to the declared type.
+    public static Object parseLiteral(SkaldParser.LiteralsContext ctx) {
+        var integerLiteral = ctx.INTEGER_LITERAL();
+        if (integerLiteral != null) {
+            var text = (ctx.MINUS() != null ? "-" : "") + integerLiteral.getText();
+            var value = new BigInteger(text);
+            if (value.bitLength() > 63) {
+                if (value.signum() < 0 || value.bitLength() > 64) {
+                    throw new RuntimeException("Integer literal out of range: " + text);
+                }
+                return value;
+            }
+            long number = value.longValue();
+            if (number == (byte) number) return (byte) number;
+            if (number == (short) number) return (short) number;
+            if (number == (int) number) return (int) number;
+            return number;
+        }
+
+        var floatLiteral = ctx.FLOAT_LITERAL();
+        if (floatLiteral != null) {
+            double value = Double.parseDouble(floatLiteral.getText());
+            return ctx.MINUS() != null ? -value : value;
+        }
+
+        var stringLiteral = ctx.STRING_LITERAL();
+        if (stringLiteral != null) {
+            String literal = stringLiteral.getText();
+            return literal.substring(1, literal.length() - 1);
+        }
+
+        var charLiteral = ctx.CHAR_LITERAL();
+        if (charLiteral != null) {
+            String literal = charLiteral.getText();
+            return literal.charAt(1);
+        }
+
+        if (ctx.TRUE() != null) return Boolean.TRUE;
+        if (ctx.FALSE() != null) return Boolean.FALSE;
+        return null;
+    }
+
+    public static boolean isComparison(String operator) {
+        return switch (operator) {
+            case "<", ">", "<=", ">=", "==", "!=" -> true;
+            default -> false;
+        };
+    }
+
+    // The type both operands of a binary operation are converted to: string for joins, boolean for comparing
+    // booleans, and otherwise the promoted numeric type of the operands.
+    public static Type getOperandType(String operator, Operand left, Operand right) {
+        if (operator.equals("+") && (isString(left.type()) || isString(right.type()))) {
+            return Type.STRING;
+        }
+        if ((operator.equals("==") || operator.equals("!=")) && isBoolean(left.type()) && isBoolean(right.type())) {
+            return Type.BOOLEAN;
+        }
+        if (!isNumeric(left.type()) || !isNumeric(right.type())) {
+            throw new RuntimeException("Operator " + operator + " cannot be applied to " + left.type() + " and " + right.type());
+        }
+
+        // Constants such as the 1 in x + 1 take the unsigned type of the other operand when they fit it.
+        var leftType = getUnsignedConstantType(left, right.type());
+        var rightType = getUnsignedConstantType(right, left.type());
+        leftType = leftType == UnsignedType.UBYTE || leftType == UnsignedType.USHORT ? Type.INT : leftType;
+        rightType = rightType == UnsignedType.UBYTE || rightType == UnsignedType.USHORT ? Type.INT : rightType;
+
+        boolean isLeftUnsigned = leftType instanceof UnsignedType;
+        boolean isRightUnsigned = rightType instanceof UnsignedType;
+        if (isLeftUnsigned && isRightUnsigned) {
+            return leftType == UnsignedType.ULONG || rightType == UnsignedType.ULONG ? UnsignedType.ULONG : UnsignedType.UINT;
+        }
+        if (isLeftUnsigned || isRightUnsigned) {
+            var unsignedType = isLeftUnsigned ? leftType : rightType;
+            var signedType = isLeftUnsigned ? rightType : leftType;
+            boolean holdsUnsigned = unsignedType == UnsignedType.UINT
+                    && (signedType.equals(Type.LONG) || signedType.equals(Type.FLOAT) || signedType.equals(Type.DOUBLE));
+            if (!holdsUnsigned) {
+                throw new RuntimeException("Operator " + operator + " cannot be applied to " + left.type() + " and " + right.type()
+                        + " without a conversion between signed and unsigned");
+            }
+            return signedType;
+        }
+
+        if (leftType.equals(Type.DOUBLE) || rightType.equals(Type.DOUBLE)) return Type.DOUBLE;
+        if (leftType.equals(Type.FLOAT) || rightType.equals(Type.FLOAT)) return Type.FLOAT;
+        if (leftType.equals(Type.LONG) || rightType.equals(Type.LONG)) return Type.LONG;
+        return Type.INT;
+    }
+
+    // The type a query aggregate reduces values of the selected type to. Counts are ints, and sums, minimums
+    // and maximums have the type the values are promoted to in arithmetic.
+    public static Type getAggregateType(String aggregate, Type selectedType) {
+        return switch (aggregate) {
+            case "count" -> Type.INT;
+            case "sum", "min", "max" -> {
+                if (!isNumeric(selectedType)) {
+                    throw new RuntimeException("Cannot " + aggregate + " values of type " + selectedType);
+                }
+                var operand = new Operand(selectedType, null);
+                yield getOperandType("+", operand, operand);
+            }
+            default -> throw new RuntimeException("Unknown aggregate: " + aggregate);
+        };
+    }
+
+    private static Type getUnsignedConstantType(Operand operand, Type otherType) {
+        boolean isSignedIntegral = !(operand.type() instanceof UnsignedType) && !isString(operand.type())
+                && (operand.value() instanceof Integer || operand.value() instanceof Long || operand.value() instanceof Character);
+        if ((otherType == UnsignedType.UINT || otherType == UnsignedType.ULONG) && operand.isConstant() && isSignedIntegral) {
+            long value = operand.value() instanceof Character c ? c : ((Number) operand.value()).longValue();
+            if (((UnsignedType) otherType).fits(value)) {
+                return otherType;
+            }
+        }
+        return operand.type();
+    }
+
+    // Unsigned types share the tag of the primitive they are stored as, so they count as numeric here.
+    public static boolean isNumeric(Type type) {
+        return type.equals(Type.BYTE) || type.equals(Type.SHORT) || type.equals(Type.CHAR) || type.equals(Type.INT)
+                || type.equals(Type.LONG) || type.equals(Type.FLOAT) || type.equals(Type.DOUBLE);
+    }
+
+    private static boolean isString(Type type) {
+        return type.equals(Type.STRING);
+    }
+
+    private static boolean isBoolean(Type type) {
+        return type.equals(Type.BOOLEAN);
+    }
+
+    private static Operand fold(String operator, Operand left, Operand right) {
+        var operandType = getOperandType(operator, left, right);
+        var type = isComparison(operator) ? Type.BOOLEAN : operandType;
+        if (!left.isConstant() || !right.isConstant()) {
+            return new Operand(type, null);
+        }
+        if (operandType.equals(Type.STRING)) {
+            return new Operand(type, toString(left) + toString(right));
+        }
+
+        var a = coerce(left, operandType);
+        var b = coerce(right, operandType);
+        boolean isUnsigned = operandType instanceof UnsignedType;
+        if (isComparison(operator)) {
+            return new Operand(type, compare(operator, a, b, isUnsigned));
+        }
+        if ((operator.equals("/") || operator.equals("%")) && (b.equals(0) || b.equals(0L))) {
+            return new Operand(type, null); // Left to throw at runtime, as Java does
+        }
+
+        Object value = switch (a) { // Arithmetic wraps around on overflow, as it would at runtime
+            case Integer x -> {
+                int y = (Integer) b;
+                yield switch (operator) {
+                    case "+" -> x + y;
+                    case "-" -> x - y;
+                    case "*" -> x * y;
+                    case "/" -> isUnsigned ? Integer.divideUnsigned(x, y) : x / y;
+                    default -> isUnsigned ? Integer.remainderUnsigned(x, y) : x % y;
+                };
+            }
+            case Long x -> {
+                long y = (Long) b;
+                yield switch (operator) {
+                    case "+" -> x + y;
+                    case "-" -> x - y;
+                    case "*" -> x * y;
+                    case "/" -> isUnsigned ? Long.divideUnsigned(x, y) : x / y;
+                    default -> isUnsigned ? Long.remainderUnsigned(x, y) : x % y;
+                };
+            }
+            case Float x -> {
+                float y = (Float) b;
+                yield switch (operator) {
+                    case "+" -> x + y;
+                    case "-" -> x - y;
+                    case "*" -> x * y;
+                    case "/" -> x / y;
+                    default -> x % y;
+                };
+            }
+            case Double x -> {
+                double y = (Double) b;
+                yield switch (operator) {
+                    case "+" -> x + y;
+                    case "-" -> x - y;
+                    case "*" -> x * y;
+                    case "/" -> x / y;
+                    default -> x % y;
+                };
+            }
+            default -> throw new IllegalStateException("Unexpected operand: " + a);
+        };
+        return new Operand(type, value);
+    }
+
+    private static boolean compare(String operator, Object a, Object b, boolean isUnsigned) {
+        if (a instanceof Float || a instanceof Double) { // Every comparison but != is false for NaN
+            double x = ((Number) a).doubleValue();
+            double y = ((Number) b).doubleValue();
+            return switch (operator) {
+                case "<" -> x < y;
+                case ">" -> x > y;
+                case "<=" -> x <= y;
+                case ">=" -> x >= y;
+                case "==" -> x == y;
+                default -> x != y;
+            };
+        }
+
+        int comparison = switch (a) {
+            case Integer x -> isUnsigned ? Integer.compareUnsigned(x, (Integer) b) : Integer.compare(x, (Integer) b);
+            case Long x -> isUnsigned ? Long.compareUnsigned(x, (Long) b) : Long.compare(x, (Long) b);
+            case Boolean x -> Boolean.compare(x, (Boolean) b);
+            default -> throw new IllegalStateException("Unexpected operand: " + a);
+        };
+        return switch (operator) {
+            case "<" -> comparison < 0;
+            case ">" -> comparison > 0;
+            case "<=" -> comparison <= 0;
+            case ">=" -> comparison >= 0;
+            case "==" -> comparison == 0;
+            default -> comparison != 0;
+        };
+    }
+
+    public static String toString(Operand operand) {
+        return operand.type() instanceof UnsignedType unsignedType ? unsignedType.toUnsignedString(operand.value()) : String.valueOf(operand.value());
+    }
+
+    // Converts a constant of the operand's type to the given type. Unsigned constants are converted by their
+    // value, and ulongs too large for a long can only stay ulongs.
+    public static Object coerce(Operand operand, Type type) {
+        var value = operand.value();
+        if (operand.type() instanceof UnsignedType unsignedType) {
+            if (unsignedType == type) {
+                return value;
+            }
+            long bits = ((Number) value).longValue();
+            if (unsignedType == UnsignedType.ULONG && bits < 0) {
+                throw new RuntimeException("Constant " + Long.toUnsignedString(bits) + " does not fit in " + type);
+            }
+            value = unsignedType == UnsignedType.UINT ? Integer.toUnsignedLong((Integer) value) : bits;
+        }
+        return coerce(value, type);
+    }
+
+    // Converts a constant to the given type, like an assignment. Integral constants must fit their
+    // target type, and floating-point constants cannot initialize integral variables.
+    public static Object coerce(Object value, Type type) {
+        if (value instanceof String || value instanceof Boolean) {
+            if (!getType(value).equals(type)) {
+                throw new RuntimeException("Cannot assign " + getType(value) + " constant " + value + " to " + type);
+            }
+            return value;
+        }
+
+        boolean isIntegral = !(value instanceof Float || value instanceof Double);
+        long integralValue = value instanceof Character c ? c : isIntegral ? ((Number) value).longValue() : 0;
+        double floatingValue = value instanceof Character c ? c : ((Number) value).doubleValue();
+        if (type.equals(Type.FLOAT)) return (float) floatingValue;
+        if (type.equals(Type.DOUBLE)) return floatingValue;
+        if (!isIntegral) {
+            throw new RuntimeException("Cannot assign floating-point constant " + value + " to " + type);
+        }
+        if (type instanceof UnsignedType unsignedType) {
+            if (!unsignedType.fits(integralValue)) {
+                throw new RuntimeException("Constant " + value + " does not fit in " + type);
+            }
+            return unsignedType.isWide() ? (Object) integralValue : (Object) (int) integralValue;
+        }
+
+        Object converted;
+        if (type.equals(Type.BYTE)) converted = (byte) integralValue;
+        else if (type.equals(Type.SHORT)) converted = (short) integralValue;
+        else if (type.equals(Type.CHAR)) converted = (char) integralValue;
+        else if (type.equals(Type.INT)) converted = (int) integralValue;
+        else if (type.equals(Type.LONG)) converted = integralValue;
+        else throw new RuntimeException("Cannot assign constant " + value + " to " + type);
+
+        long convertedValue = converted instanceof Character c ? c : ((Number) converted).longValue();
+        if (convertedValue != integralValue) {
+            throw new RuntimeException("Constant " + value + " does not fit in " + type);
+        }
+        return converted;
+    }
+}
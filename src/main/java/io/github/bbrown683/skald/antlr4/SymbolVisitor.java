@@ -1,20 +1,39 @@
 package io.github.bbrown683.skald.antlr4;
 
+import io.github.bbrown683.skald.compiler.CompileMetrics;
+import io.github.bbrown683.skald.jvm.FunctionType;
+import io.github.bbrown683.skald.jvm.UnsignedType;
 import io.github.bbrown683.skald.symbol.external.ExternalSymbolTable;
 import io.github.bbrown683.skald.symbol.local.*;
+import org.apache.bcel.generic.ArrayType;
 import org.apache.bcel.generic.ObjectType;
 import org.apache.bcel.generic.Type;
-import org.apache.commons.lang3.tuple.Pair;
 
+import java.util.ArrayList;
 import java.util.List;
 
 public class SymbolVisitor extends SkaldParserBaseVisitor<Object> {
     private LocalSymbolTable localSymbolTable;
-    private final ExternalSymbolTable externalSymbolTable = new ExternalSymbolTable();
+    private final ExternalSymbolTable externalSymbolTable;
     private final String className;
+    private final CompileMetrics metrics;
+    private String packageName = "";
+    private final List<String> imports = new ArrayList<>();
 
     public SymbolVisitor(String className) {
+        this(className, new ExternalSymbolTable());
+    }
+
+    // The external symbol table may be shared between compilations running on other threads.
+    public SymbolVisitor(String className, ExternalSymbolTable externalSymbolTable) {
+        this(className, externalSymbolTable, new CompileMetrics(className));
+    }
+
+    // Time spent loading imported packages is recorded as the IMPORTS phase of the metrics.
+    public SymbolVisitor(String className, ExternalSymbolTable externalSymbolTable, CompileMetrics metrics) {
         this.className = className;
+        this.externalSymbolTable = externalSymbolTable;
+        this.metrics = metrics;
     }
 
     public LocalSymbolTable getLocalSymbolTable() {
@@ -25,22 +44,62 @@ public class SymbolVisitor extends SkaldParserBaseVisitor<Object> {
         return externalSymbolTable;
     }
 
+    public String getPackageName() {
+        return packageName;
+    }
+
+    // Import paths in declaration order, as written in the source.
+    public List<String> getImports() {
+        return imports;
+    }
+
     @Override
     public Object visitClassFile(SkaldParser.ClassFileContext ctx) {
         localSymbolTable = new LocalSymbolTable(new LocalClassFileSymbol(className, ctx));
-        visitChildren(ctx);
+        var packagePath = ctx.packagePath();
+        if (packagePath != null) {
+            visitPackagePath(packagePath);
+        }
+
+        // Unions are types, which declarations anywhere in the file can use, including the members of
+        // another union. All of them are declared before any member type is resolved.
+        ctx.union().forEach(unionCtx -> localSymbolTable.addSymbol(
+                new LocalUnionSymbol(unionCtx.IDENTIFIER().getText(), unionCtx, packageName, className + "$" + unionCtx.IDENTIFIER().getText())));
+        ctx.union().forEach(this::visitUnion);
+
+        for (var child : ctx.children) {
+            if (!(child instanceof SkaldParser.PackagePathContext || child instanceof SkaldParser.UnionContext)) {
+                child.accept(this);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public Object visitUnion(SkaldParser.UnionContext ctx) {
+        var unionSymbol = (LocalUnionSymbol) localSymbolTable.getSymbol(ctx);
+        for (var memberCtx : ctx.unionMember()) {
+            var memberName = memberCtx.IDENTIFIER().getText();
+            if (unionSymbol.findMember(memberName) != null) {
+                throw new RuntimeException("Duplicate member " + memberName + " in union " + unionSymbol.getName());
+            }
+            unionSymbol.addMember(memberName, getType(memberCtx.typeName()));
+        }
         return null;
     }
 
     @Override
     public Object visitPackagePath(SkaldParser.PackagePathContext ctx) {
-        externalSymbolTable.addImport(visitPath(ctx.path()) + ".*"); // Add package path to imports
+        packageName = visitPath(ctx.path());
+        metrics.time(CompileMetrics.Phase.IMPORTS, () -> externalSymbolTable.addImport(packageName + ".*")); // Add package path to imports
         return null;
     }
 
     @Override
     public Object visitImportPath(SkaldParser.ImportPathContext ctx) {
-        externalSymbolTable.addImport(visitPath(ctx.path()));
+        var importPath = visitPath(ctx.path());
+        imports.add(importPath);
+        metrics.time(CompileMetrics.Phase.IMPORTS, () -> externalSymbolTable.addImport(importPath));
         return null;
     }
 
@@ -61,12 +120,11 @@ public class SymbolVisitor extends SkaldParserBaseVisitor<Object> {
     @Override
     public Object visitFunction(SkaldParser.FunctionContext ctx) {
         var functionName = ctx.IDENTIFIER().getText();
-        var typeName = ctx.typeName() != null ? ctx.typeName().getText() : "unit";
 
         boolean isPublic = ctx.PUBLIC() != null;
         boolean isStatic = ctx.STATIC() != null;
 
-        localSymbolTable.addSymbol(new LocalFunctionSymbol(functionName, ctx, getType(typeName), isPublic, isStatic));
+        localSymbolTable.addSymbol(new LocalFunctionSymbol(functionName, ctx, getType(ctx.typeName()), isPublic, isStatic));
         localSymbolTable.enterScope();
         visitChildren(ctx);
         localSymbolTable.exitScope();
@@ -76,12 +134,11 @@ public class SymbolVisitor extends SkaldParserBaseVisitor<Object> {
     @Override
     public Object visitFunctionParameter(SkaldParser.FunctionParameterContext ctx) {
         var variableName = ctx.IDENTIFIER().getText();
-        var typeName = ctx.typeName() != null ? ctx.typeName().getText() : "unit";
 
         boolean isMutable = ctx.MUTABLE() != null;
         boolean isArray = ctx.array() != null && !ctx.array().isEmpty();
 
-        localSymbolTable.addSymbol(new LocalVariableSymbol(variableName, ctx, getType(typeName), false, false, isMutable, isArray, true, null));
+        localSymbolTable.addSymbol(new LocalVariableSymbol(variableName, ctx, getType(ctx.typeName()), false, false, isMutable, isArray, true, null));
         visitChildren(ctx);
         return null;
     }
@@ -89,7 +146,6 @@ public class SymbolVisitor extends SkaldParserBaseVisitor<Object> {
     @Override
     public Object visitVariable(SkaldParser.VariableContext ctx) {
         var variableName = ctx.IDENTIFIER().getText();
-        var typeName = ctx.typeName() != null ? ctx.typeName().getText() : "unit";
 
         boolean isPublic = ctx.PUBLIC() != null;
         boolean isStatic = ctx.STATIC() != null;
@@ -97,17 +153,132 @@ public class SymbolVisitor extends SkaldParserBaseVisitor<Object> {
         boolean isArray = ctx.array() != null && !ctx.array().isEmpty();
 
         Object value = null;
+        ConstantFolder.Operand operand = null;
         var reference = ctx.reference();
         var literals = ctx.literals();
+        var operation = ctx.operation();
+        var lambda = ctx.lambda();
+        var query = ctx.query();
         if (reference != null) {
             value = visitReference(reference);
+            var referencedSymbol = localSymbolTable.findSymbol((String) value, LocalVariableSymbol.class);
+            var referencedFunction = localSymbolTable.findSymbol((String) value, LocalFunctionSymbol.class);
+            if (referencedSymbol != null) {
+                operand = ConstantFolder.getOperand(referencedSymbol);
+            } else if (referencedFunction != null) { // A reference to a function is a function value
+                var functionCtx = (SkaldParser.FunctionContext) referencedFunction.getCtx();
+                operand = new ConstantFolder.Operand(getFunctionType(functionCtx.functionParameter(), referencedFunction.getReturnType()), null);
+            }
+        } else if (lambda != null) {
+            operand = new ConstantFolder.Operand(visitLambda(lambda), null);
+        } else if (query != null) {
+            operand = new ConstantFolder.Operand(visitQuery(query, ctx.typeName() != null ? getType(ctx.typeName()) : null), null);
         } else if(literals != null) {
             value = visitLiterals(ctx.literals());
+            operand = ConstantFolder.getOperand(value);
+        } else if(operation != null) {
+            operand = new ConstantFolder(name -> localSymbolTable.findSymbol(name, LocalVariableSymbol.class)).visit(operation);
+        }
+
+        // Variables declared without a type take the type of their initializer.
+        var type = ctx.typeName() != null ? getType(ctx.typeName()) : operand != null ? operand.type() : Type.VOID;
+        if (operand != null && operand.type() instanceof FunctionType functionType && (reference != null || lambda != null)) {
+            checkFunctionValue(variableName, type, functionType, lambda != null);
         }
-        localSymbolTable.addSymbol(new LocalVariableSymbol(variableName, ctx, getType(typeName), isPublic, isStatic, isMutable, isArray, false, value));
+        Object constantValue = operand != null && operand.isConstant() && !isArray ? ConstantFolder.coerce(operand, type) : null;
+        localSymbolTable.addSymbol(new LocalVariableSymbol(variableName, ctx, type, isPublic, isStatic, isMutable, isArray, false, value, constantValue));
         return null;
     }
 
+    // The parameters of a lambda are in a scope of their own, in which its body is typed.
+    @Override
+    public FunctionType visitLambda(SkaldParser.LambdaContext ctx) {
+        localSymbolTable.addSymbol(new LocalMarkerSymbol("lambda", ctx));
+        localSymbolTable.enterScope();
+        ctx.functionParameter().forEach(this::visitFunctionParameter);
+        var body = new ConstantFolder(name -> localSymbolTable.findSymbol(name, LocalVariableSymbol.class)).visit(ctx.operation());
+        localSymbolTable.exitScope();
+        if (body.type().equals(Type.VOID)) {
+            throw new RuntimeException("Lambda body has no value: " + ctx.operation().getText());
+        }
+        return getFunctionType(ctx.functionParameter(), body.type());
+    }
+
+    // The range variable, the variables of let clauses and the accumulator of an aggregate are in a scope of
+    // the query's own, each visible to the clauses after it. Returns the type of the query's result, which
+    // for an aggregate is the type of its accumulator: the declared type of the variable, if it has one.
+    public Type visitQuery(SkaldParser.QueryContext ctx, Type declaredType) {
+        var sourceName = visitReference(ctx.reference());
+        var source = localSymbolTable.findSymbol(sourceName, LocalVariableSymbol.class);
+        if (source == null) {
+            throw new RuntimeException("Unknown variable in query: " + sourceName);
+        }
+        var variableCtx = ctx.queryVariable();
+        var elementType = getElementType(source, variableCtx);
+
+        localSymbolTable.addSymbol(new LocalMarkerSymbol("query", ctx));
+        localSymbolTable.enterScope();
+        localSymbolTable.addSymbol(new LocalVariableSymbol(variableCtx.IDENTIFIER().getText(), variableCtx, elementType, false, false, false, false, false, null));
+        var constantFolder = new ConstantFolder(name -> localSymbolTable.findSymbol(name, LocalVariableSymbol.class));
+        for (var clauseCtx : ctx.queryClause()) {
+            switch (clauseCtx) {
+                case SkaldParser.WhereClauseContext whereCtx -> {
+                    if (!constantFolder.visit(whereCtx.operation()).type().equals(Type.BOOLEAN)) {
+                        throw new RuntimeException("Condition must be a boolean: " + whereCtx.operation().getText());
+                    }
+                }
+                case SkaldParser.LetClauseContext letCtx -> {
+                    var operand = constantFolder.visit(letCtx.operation());
+                    Object constantValue = operand.isConstant() ? ConstantFolder.coerce(operand, operand.type()) : null;
+                    localSymbolTable.addSymbol(new LocalVariableSymbol(letCtx.IDENTIFIER().getText(), letCtx, operand.type(), false, false, false, false, false, null, constantValue));
+                }
+                default -> throw new IllegalStateException("Unexpected query clause: " + clauseCtx.getText());
+            }
+        }
+
+        Type resultType;
+        switch (ctx.queryResult()) {
+            case SkaldParser.SelectResultContext selectCtx ->
+                    resultType = ConstantFolder.getAggregateType(selectCtx.IDENTIFIER().getText(), constantFolder.visit(selectCtx.operation()).type());
+            case SkaldParser.AggregateResultContext aggregateCtx -> {
+                var initialValue = constantFolder.visit(aggregateCtx.operation(0));
+                resultType = declaredType != null ? declaredType : initialValue.type();
+                localSymbolTable.addSymbol(new LocalVariableSymbol(aggregateCtx.IDENTIFIER().getText(), aggregateCtx, resultType, false, false, true, false, false, null));
+                constantFolder.visit(aggregateCtx.operation(1));
+            }
+            default -> throw new IllegalStateException("Unexpected query result: " + ctx.queryResult().getText());
+        }
+        localSymbolTable.exitScope();
+        return resultType;
+    }
+
+    // Arrays are queried by element, and any other object as an Iterable.
+    private Type getElementType(LocalVariableSymbol source, SkaldParser.QueryVariableContext ctx) {
+        var declaredType = ctx.typeName() != null ? getType(ctx.typeName()) : null;
+        if (source.isArray()) {
+            int dimensions = source.getCtx().getRuleContexts(SkaldParser.ArrayContext.class).size();
+            var elementType = dimensions > 1 ? new ArrayType(source.getType(), dimensions - 1) : source.getType();
+            if (declaredType != null && !declaredType.toString().equals(elementType.toString())) {
+                throw new RuntimeException("Elements of " + source.getName() + " are " + elementType + ", not " + declaredType);
+            }
+            return elementType;
+        }
+        var type = source.getType();
+        if (!(type instanceof ObjectType) || type.equals(Type.STRING) || type instanceof FunctionType || localSymbolTable.findUnion(type) != null) {
+            throw new RuntimeException("Cannot query " + source.getName() + " of type " + type);
+        }
+        return declaredType != null ? declaredType : Type.OBJECT;
+    }
+
+    // A function value initializes a variable of its own function type. A lambda's body is converted to the
+    // return type of the variable, but function references and the parameters of lambdas must match exactly.
+    private void checkFunctionValue(String variableName, Type type, FunctionType valueType, boolean isLambda) {
+        if (!(type instanceof FunctionType variableType) || !variableType.hasParameters(valueType.getParameterTypes())
+                || (!isLambda && !variableType.getReturnType().equals(valueType.getReturnType()))) {
+            throw new RuntimeException("Cannot assign " + valueType + " to " + variableName + " of type " + type);
+        }
+    }
+
     @Override
     public Object visitFunctionCall(SkaldParser.FunctionCallContext ctx) {
         localSymbolTable.addSymbol(new LocalMarkerSymbol("function-call", ctx));
@@ -161,69 +332,76 @@ public class SymbolVisitor extends SkaldParserBaseVisitor<Object> {
     }
 
     @Override
-    public String visitReference(SkaldParser.ReferenceContext ctx) {
-        return ctx.getText();
+    public Object visitMatchStatement(SkaldParser.MatchStatementContext ctx) {
+        localSymbolTable.addSymbol(new LocalMarkerSymbol("match", ctx));
+        localSymbolTable.enterScope();
+        visitChildren(ctx);
+        localSymbolTable.exitScope();
+        return null;
     }
 
     @Override
-    public Object visitLiterals(SkaldParser.LiteralsContext ctx) {
-        var integerLiteral = ctx.INTEGER_LITERAL();
-        if (integerLiteral != null) {
-            String number = integerLiteral.getText();
-            return parseIntegerFromString(number);
-        }
-
-        var floatLiteral = ctx.FLOAT_LITERAL();
-        if (floatLiteral != null) {
-            String number = floatLiteral.getText();
-            return parseFloatFromString(number);
-        }
+    public Object visitMatchCase(SkaldParser.MatchCaseContext ctx) {
+        localSymbolTable.addSymbol(new LocalMarkerSymbol("case", ctx));
+        localSymbolTable.enterScope();
+        visitChildren(ctx);
+        localSymbolTable.exitScope();
+        return null;
+    }
 
-        var stringLiteral = ctx.STRING_LITERAL();
-        if (stringLiteral != null) {
-            String literal = stringLiteral.getText();
-            return literal.replaceAll("\"", "");
-        }
+    @Override
+    public Object visitMatchDefaultCase(SkaldParser.MatchDefaultCaseContext ctx) {
+        localSymbolTable.addSymbol(new LocalMarkerSymbol("default", ctx));
+        localSymbolTable.enterScope();
+        visitChildren(ctx);
+        localSymbolTable.exitScope();
+        return null;
+    }
 
-        var charLiteral = ctx.CHAR_LITERAL();
-        if (charLiteral != null) {
-            String literal = charLiteral.getText();
-            return literal.replaceAll("'", "").charAt(0);
+    // The value of a union member, typed by the member the case names.
+    @Override
+    public Object visitMatchBinding(SkaldParser.MatchBindingContext ctx) {
+        var caseCtx = (SkaldParser.MatchCaseContext) ctx.getParent();
+        var matchCtx = (SkaldParser.MatchStatementContext) caseCtx.getParent();
+        var matched = localSymbolTable.findSymbol(matchCtx.IDENTIFIER().getText(), LocalVariableSymbol.class);
+        var unionSymbol = matched != null ? localSymbolTable.findUnion(matched.getType()) : null;
+        var member = unionSymbol != null ? unionSymbol.findMember(visitReference(caseCtx.reference())) : null;
+        if (member == null) {
+            throw new RuntimeException("Only a member of a union can bind a value: " + caseCtx.getText());
         }
+        localSymbolTable.addSymbol(new LocalVariableSymbol(ctx.IDENTIFIER().getText(), ctx, member.type(), false, false, false, false, false, null));
+        return null;
+    }
 
-        boolean isTrue = ctx.TRUE() != null;
-        boolean isFalse = ctx.FALSE() != null;
-        if (isTrue) return Boolean.TRUE;
-        else if (isFalse) return Boolean.FALSE;
+    @Override
+    public String visitReference(SkaldParser.ReferenceContext ctx) {
+        return ctx.getText();
+    }
 
-        return null;
+    @Override
+    public Object visitLiterals(SkaldParser.LiteralsContext ctx) {
+        return ConstantFolder.parseLiteral(ctx);
     }
 
-    private Object parseIntegerFromString(String number) {
-        List<Pair<Class,String>> parseFunctions = List.of(
-                Pair.of(Byte.class, "parseByte"),
-                Pair.of(Short.class, "parseShort"),
-                Pair.of(Integer.class, "parseInt"), // Integer is a special case
-                Pair.of(Long.class, "parseLong")
-        );
-        for (var parseFunction : parseFunctions) {
-            Class clazz = parseFunction.getLeft();
-            String methodName = parseFunction.getRight();
-            try {
-                return clazz.getMethod(methodName, String.class).invoke(null, number);
-            } catch (Exception e) {} // Ignore exception
+    private Type getType(SkaldParser.TypeNameContext ctx) {
+        if (ctx == null) {
+            return Type.VOID;
         }
-        return null;
+        var functionTypeCtx = ctx.functionType();
+        if (functionTypeCtx != null) {
+            var typeNames = functionTypeCtx.typeName();
+            var parameterTypes = typeNames.subList(0, typeNames.size() - 1).stream().map(this::getType).toArray(Type[]::new);
+            return localSymbolTable.getFunctionType(parameterTypes, getType(typeNames.getLast()));
+        }
+        return getType(ctx.getText());
     }
 
-    private Object parseFloatFromString(String number) {
-        List<Class> classes = List.of(Float.class, Double.class);
-        for (var clazz : classes) {
-            try {
-                return clazz.getMethod("parse" + clazz.getSimpleName(), String.class).invoke(null, number);
-            } catch (Exception e) {} // Ignore exception
-        }
-        return null;
+    private FunctionType getFunctionType(List<SkaldParser.FunctionParameterContext> parameters, Type returnType) {
+        var parameterTypes = parameters.stream().map(parameterCtx -> {
+            var type = getType(parameterCtx.typeName());
+            return parameterCtx.array().isEmpty() ? type : new ArrayType(type, parameterCtx.array().size());
+        }).toArray(Type[]::new);
+        return localSymbolTable.getFunctionType(parameterTypes, returnType);
     }
 
     private Type getType(String typeName) {
@@ -231,16 +409,23 @@ public class SymbolVisitor extends SkaldParserBaseVisitor<Object> {
             return Type.VOID;
         }
         return switch (typeName) {
-            case "byte", "ubyte" -> Type.BYTE;
-            case "short", "ushort" -> Type.SHORT;
-            case "int", "uint" -> Type.INT;
-            case "long", "ulong" -> Type.LONG;
+            case "byte" -> Type.BYTE;
+            case "ubyte" -> UnsignedType.UBYTE;
+            case "short" -> Type.SHORT;
+            case "ushort" -> UnsignedType.USHORT;
+            case "int" -> Type.INT;
+            case "uint" -> UnsignedType.UINT;
+            case "long" -> Type.LONG;
+            case "ulong" -> UnsignedType.ULONG;
             case "float" -> Type.FLOAT;
             case "double" -> Type.DOUBLE;
             case "char" -> Type.CHAR;
             case "string" -> Type.STRING;
-            case "boolean" -> Type.BOOLEAN;
-            default -> new ObjectType(typeName);
+            case "bool", "boolean" -> Type.BOOLEAN; // The keyword is bool
+            default -> {
+                var unionSymbol = localSymbolTable.getRootSymbol().findVisibleSymbol(typeName, LocalUnionSymbol.class);
+                yield unionSymbol != null ? unionSymbol.getType() : new ObjectType(typeName);
+            }
         };
     }
 }
@@ -0,0 +1,137 @@
+package io.github.bbrown683.skald.compiler;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+// What the previous build knew about each source file, stored next to the class files it generated.
+// A file whose content hash is unchanged does not need to be compiled again, and the hash of its exported
+// signatures (its ABI) decides whether the files that depend on it do.
+public class BuildState {
+    public static final String FILE_NAME = ".skald-build";
+
+    private static final int MAGIC = 0x534B4C42; // "SKLB"
+    private static final int FORMAT_VERSION = 2;
+
+    // The state of one source file after it last compiled. The generated classes are every class written for
+    // the file, starting with its own, followed by nested classes such as those of its unions and function types.
+    public record FileState(String sourceHash, String className, List<String> generatedClasses, String packageName, List<String> imports, String abiHash) {
+        // Whether this file can see the types of the given file, through its package or its imports.
+        public boolean dependsOn(FileState other) {
+            if (packageName.equals(other.packageName)) {
+                return true;
+            }
+            String qualifiedName = other.packageName.isEmpty() || other.className.contains(".") ? other.className : other.packageName + "." + other.className;
+            for (var importPath : imports) {
+                if (importPath.equals(qualifiedName) || importPath.equals(other.packageName + ".*")) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private final Map<String, FileState> files = new HashMap<>();
+
+    public static BuildState read(Path stateFile) {
+        var buildState = new BuildState();
+        if (!Files.isRegularFile(stateFile)) {
+            return buildState;
+        }
+        try (var input = new DataInputStream(new BufferedInputStream(Files.newInputStream(stateFile)))) {
+            if (input.readInt() != MAGIC || input.readInt() != FORMAT_VERSION) { // Written by another version, so rebuild everything
+                return buildState;
+            }
+            int fileCount = input.readInt();
+            for (int i = 0; i < fileCount; i++) {
+                String sourceFile = input.readUTF();
+                String sourceHash = input.readUTF();
+                String className = input.readUTF();
+                var generatedClasses = new ArrayList<String>();
+                int generatedClassCount = input.readInt();
+                for (int j = 0; j < generatedClassCount; j++) {
+                    generatedClasses.add(input.readUTF());
+                }
+                String packageName = input.readUTF();
+                var imports = new ArrayList<String>();
+                int importCount = input.readInt();
+                for (int j = 0; j < importCount; j++) {
+                    imports.add(input.readUTF());
+                }
+                String abiHash = input.readUTF();
+                buildState.files.put(sourceFile, new FileState(sourceHash, className, List.copyOf(generatedClasses), packageName, List.copyOf(imports), abiHash));
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return new BuildState(); // A damaged state file only costs a full build
+        }
+        return buildState;
+    }
+
+    // Writes to a temporary file first, so an interrupted build never leaves a truncated state behind.
+    public void write(Path stateFile) throws IOException {
+        Files.createDirectories(stateFile.toAbsolutePath().getParent());
+        var temporaryFile = Files.createTempFile(stateFile.toAbsolutePath().getParent(), FILE_NAME, ".tmp");
+        try (var output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporaryFile)))) {
+            output.writeInt(MAGIC);
+            output.writeInt(FORMAT_VERSION);
+            output.writeInt(files.size());
+            for (var entry : new TreeMap<>(files).entrySet()) {
+                var fileState = entry.getValue();
+                output.writeUTF(entry.getKey());
+                output.writeUTF(fileState.sourceHash());
+                output.writeUTF(fileState.className());
+                output.writeInt(fileState.generatedClasses().size());
+                for (var generatedClass : fileState.generatedClasses()) {
+                    output.writeUTF(generatedClass);
+                }
+                output.writeUTF(fileState.packageName());
+                output.writeInt(fileState.imports().size());
+                for (var importPath : fileState.imports()) {
+                    output.writeUTF(importPath);
+                }
+                output.writeUTF(fileState.abiHash());
+            }
+        }
+        Files.move(temporaryFile, stateFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public FileState get(Path sourceFile) {
+        return files.get(getKey(sourceFile));
+    }
+
+    public void put(Path sourceFile, FileState fileState) {
+        files.put(getKey(sourceFile), fileState);
+    }
+
+    public FileState remove(Path sourceFile) {
+        return files.remove(getKey(sourceFile));
+    }
+
+    public Set<Path> getSourceFiles() {
+        var sourceFiles = new HashSet<Path>();
+        files.keySet().forEach(key -> sourceFiles.add(Path.of(key)));
+        return sourceFiles;
+    }
+
+    private static String getKey(Path sourceFile) {
+        return sourceFile.toAbsolutePath().normalize().toString();
+    }
+
+    public static String hash(byte[] bytes) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(bytes));
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static String hash(List<String> strings) {
+        return hash(String.join("\n", strings).getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,14 @@
+package io.github.bbrown683.skald.compiler;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+// Where generated classes are stored: a directory, a jar or memory. Classes are written by one thread
+// at a time, and the output is closed by whoever created it once the build is done.
+public interface ClassOutput extends Closeable {
+    void write(String className, byte[] bytes) throws IOException;
+
+    @Override
+    default void close() throws IOException {
+    }
+}
@@ -0,0 +1,204 @@
+package io.github.bbrown683.skald.compiler;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+
+// Where the time of a compilation goes: wall time and allocated bytes per phase, plus counts of the work done.
+// Phases nest, and a phase only records what it did itself, so import loading started while resolving symbols
+// is counted under IMPORTS and not also under SYMBOLS. Each phase is also committed as a CompilePhaseEvent.
+// A metrics object is used by one thread at a time, and can be summed with others for a build-wide report.
+public class CompileMetrics {
+    public enum Phase {
+        LEX,
+        PARSE,
+        SYMBOLS,
+        IMPORTS,
+        CODEGEN,
+        WRITE
+    }
+
+    private static final com.sun.management.ThreadMXBean THREAD_MX_BEAN = getThreadMXBean();
+
+    private final String sourceName;
+    private final long[] wallNanos = new long[Phase.values().length];
+    private final long[] allocatedBytes = new long[Phase.values().length];
+    private final Deque<PhaseTimer> activeTimers = new ArrayDeque<>();
+    private long symbolsResolved;
+    private long instructionsEmitted;
+    private long constantPoolEntries;
+    private int fileCount = 1;
+
+    public CompileMetrics(String sourceName) {
+        this.sourceName = sourceName;
+    }
+
+    private static com.sun.management.ThreadMXBean getThreadMXBean() {
+        if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean threadMXBean
+                && threadMXBean.isThreadAllocatedMemorySupported() && threadMXBean.isThreadAllocatedMemoryEnabled()) {
+            return threadMXBean;
+        }
+        return null; // Allocations are reported as zero
+    }
+
+    private static long getAllocatedBytes() {
+        return THREAD_MX_BEAN != null ? THREAD_MX_BEAN.getCurrentThreadAllocatedBytes() : 0;
+    }
+
+    // Runs the work of a phase and measures it.
+    public <T, E extends Exception> T time(Phase phase, PhaseWork<T, E> work) throws E {
+        var timer = new PhaseTimer(phase);
+        activeTimers.push(timer);
+        try {
+            return work.run();
+        } finally {
+            timer.stop();
+        }
+    }
+
+    public <E extends Exception> void time(Phase phase, PhaseAction<E> action) throws E {
+        time(phase, () -> {
+            action.run();
+            return null;
+        });
+    }
+
+    @FunctionalInterface
+    public interface PhaseWork<T, E extends Exception> {
+        T run() throws E;
+    }
+
+    @FunctionalInterface
+    public interface PhaseAction<E extends Exception> {
+        void run() throws E;
+    }
+
+    private class PhaseTimer {
+        private final Phase phase;
+        private final CompilePhaseEvent event = new CompilePhaseEvent();
+        private final long startNanos;
+        private final long startBytes;
+        private long nestedNanos;
+        private long nestedBytes;
+
+        private PhaseTimer(Phase phase) {
+            this.phase = phase;
+            event.begin();
+            startBytes = getAllocatedBytes();
+            startNanos = System.nanoTime();
+        }
+
+        private void stop() {
+            long nanos = System.nanoTime() - startNanos;
+            long bytes = getAllocatedBytes() - startBytes;
+            activeTimers.pop();
+            wallNanos[phase.ordinal()] += nanos - nestedNanos;
+            allocatedBytes[phase.ordinal()] += bytes - nestedBytes;
+
+            var parent = activeTimers.peek();
+            if (parent != null) {
+                parent.nestedNanos += nanos;
+                parent.nestedBytes += bytes;
+            }
+
+            event.end();
+            if (event.shouldCommit()) {
+                event.sourceFile = sourceName;
+                event.phase = phase.name();
+                event.allocatedBytes = bytes - nestedBytes;
+                event.commit();
+            }
+        }
+    }
+
+    public void addSymbolsResolved(long count) {
+        symbolsResolved += count;
+    }
+
+    public void addInstructionsEmitted(long count) {
+        instructionsEmitted += count;
+    }
+
+    public void addConstantPoolEntries(long count) {
+        constantPoolEntries += count;
+    }
+
+    // The measurements of many compilations added together, for a build-wide report.
+    public static CompileMetrics sum(String name, Collection<CompileMetrics> metrics) {
+        var total = new CompileMetrics(name);
+        total.fileCount = 0;
+        metrics.forEach(total::add);
+        return total;
+    }
+
+    // Adds the measurements of another compilation to this one.
+    public void add(CompileMetrics other) {
+        for (int i = 0; i < wallNanos.length; i++) {
+            wallNanos[i] += other.wallNanos[i];
+            allocatedBytes[i] += other.allocatedBytes[i];
+        }
+        symbolsResolved += other.symbolsResolved;
+        instructionsEmitted += other.instructionsEmitted;
+        constantPoolEntries += other.constantPoolEntries;
+        fileCount += other.fileCount;
+    }
+
+    public String getSourceName() {
+        return sourceName;
+    }
+
+    public long getWallNanos(Phase phase) {
+        return wallNanos[phase.ordinal()];
+    }
+
+    public long getAllocatedBytes(Phase phase) {
+        return allocatedBytes[phase.ordinal()];
+    }
+
+    public long getTotalWallNanos() {
+        long total = 0;
+        for (long nanos : wallNanos) {
+            total += nanos;
+        }
+        return total;
+    }
+
+    public long getSymbolsResolved() {
+        return symbolsResolved;
+    }
+
+    public long getInstructionsEmitted() {
+        return instructionsEmitted;
+    }
+
+    public long getConstantPoolEntries() {
+        return constantPoolEntries;
+    }
+
+    public int getFileCount() {
+        return fileCount;
+    }
+
+    // One line per file, e.g. "Test.lang: 12.3 ms (lex 0.4 ms/12 KB, parse 3.1 ms/210 KB, ...), 4 symbols, 17 instructions, 31 constants"
+    public String format() {
+        var builder = new StringBuilder(sourceName).append(": ").append(formatMillis(getTotalWallNanos())).append(" (");
+        for (var phase : Phase.values()) {
+            if (phase.ordinal() > 0) {
+                builder.append(", ");
+            }
+            builder.append(phase.name().toLowerCase()).append(' ')
+                    .append(formatMillis(wallNanos[phase.ordinal()])).append('/')
+                    .append(allocatedBytes[phase.ordinal()] / 1024).append(" KB");
+        }
+        return builder.append("), ")
+                .append(symbolsResolved).append(" symbols, ")
+                .append(instructionsEmitted).append(" instructions, ")
+                .append(constantPoolEntries).append(" constants")
+                .toString();
+    }
+
+    private static String formatMillis(long nanos) {
+        return String.format("%.1f ms", nanos / 1_000_000.0);
+    }
+}
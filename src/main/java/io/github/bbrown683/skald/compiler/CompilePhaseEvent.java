@@ -0,0 +1,21 @@
+package io.github.bbrown683.skald.compiler;
+
+import jdk.jfr.*;
+
+// Recorded for every compile phase of every file when a flight recording is running,
+// e.g. with -XX:StartFlightRecording, so slow files show up next to GC and allocation events.
+@Name("io.github.bbrown683.skald.CompilePhase")
+@Label("Compile Phase")
+@Category("Skald")
+@StackTrace(false)
+public class CompilePhaseEvent extends Event {
+    @Label("Source File")
+    String sourceFile;
+
+    @Label("Phase")
+    String phase;
+
+    @Label("Allocated")
+    @DataAmount
+    long allocatedBytes;
+}
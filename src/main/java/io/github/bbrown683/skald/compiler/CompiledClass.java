@@ -0,0 +1,22 @@
+package io.github.bbrown683.skald.compiler;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// A generated class, identified by its fully qualified name, along with the nested classes generated from the
+// same source, such as those of its unions. The package, imports and exported signatures of its source are
+// kept for incremental builds, which use them to find the files affected by a change.
+public record CompiledClass(String className, byte[] bytes, Map<String, byte[]> nestedClasses, String packageName, List<String> imports, List<String> exportedSignatures, CompileMetrics metrics) {
+    public CompiledClass(String className, byte[] bytes) {
+        this(className, bytes, Map.of(), "", List.of(), List.of(), new CompileMetrics(className));
+    }
+
+    // Every class generated from the source by fully qualified name, starting with this one.
+    public Map<String, byte[]> classes() {
+        var classes = new LinkedHashMap<String, byte[]>();
+        classes.put(className, bytes);
+        classes.putAll(nestedClasses);
+        return classes;
+    }
+}
@@ -0,0 +1,28 @@
+package io.github.bbrown683.skald.compiler;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+// Writes each class to its package directory below the given root, like javac -d.
+public class DirectoryClassOutput implements ClassOutput {
+    private final Path directory;
+
+    public DirectoryClassOutput(Path directory) {
+        this.directory = directory;
+    }
+
+    public Path getClassFile(String className) {
+        return directory.resolve(className.replace('.', '/') + ".class");
+    }
+
+    @Override
+    public void write(String className, byte[] bytes) throws IOException {
+        var classFile = getClassFile(className);
+        var parent = classFile.getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        Files.write(classFile, bytes);
+    }
+}
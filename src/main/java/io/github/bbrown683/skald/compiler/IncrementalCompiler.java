@@ -0,0 +1,142 @@
+package io.github.bbrown683.skald.compiler;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.function.BiConsumer;
+
+// Compiles only what changed since the previous build in the same output directory. Files whose content
+// hash matches the build state are skipped, and a changed file only causes the files that depend on it to
+// be compiled again when its exported signatures changed. Dependents are found through their package and
+// imports, and compiled in rounds until no further signatures change, so the work done is proportional to
+// the change rather than to the size of the project.
+public class IncrementalCompiler {
+    // The files compiled by a build and those that failed. Files that were up to date are in neither.
+    public record Result(List<Path> compiledFiles, Map<Path, Throwable> failures) {
+    }
+
+    private final ParallelCompiler compiler;
+
+    public IncrementalCompiler(ParallelCompiler compiler) {
+        this.compiler = compiler;
+    }
+
+    public Result compile(List<Path> sourceFiles, Path outputDirectory) throws IOException, InterruptedException {
+        return compile(sourceFiles, outputDirectory, (sourceFile, compiledClass) -> {});
+    }
+
+    // The listener is called on the calling thread for every file that compiled.
+    public Result compile(List<Path> sourceFiles, Path outputDirectory, BiConsumer<Path, CompiledClass> listener) throws IOException, InterruptedException {
+        var stateFile = outputDirectory.resolve(BuildState.FILE_NAME);
+        var previousState = BuildState.read(stateFile);
+        var buildState = new BuildState();
+
+        // Files are hashed up front; the state of files that turn out to be up to date carries over as is.
+        var sourceHashes = new LinkedHashMap<Path, String>();
+        var pending = new LinkedHashSet<Path>();
+        for (var sourceFile : sourceFiles) {
+            String sourceHash = BuildState.hash(Files.readAllBytes(sourceFile));
+            sourceHashes.put(sourceFile, sourceHash);
+            var fileState = previousState.get(sourceFile);
+            if (fileState == null || !fileState.sourceHash().equals(sourceHash) || !hasClassFiles(outputDirectory, fileState)) {
+                pending.add(sourceFile);
+            } else {
+                buildState.put(sourceFile, fileState);
+            }
+        }
+
+        // Removed files change the ABI their dependents were compiled against.
+        var changedFiles = new ArrayList<BuildState.FileState>();
+        var currentFiles = new HashSet<Path>();
+        sourceFiles.forEach(sourceFile -> currentFiles.add(sourceFile.toAbsolutePath().normalize()));
+        for (var previousFile : previousState.getSourceFiles()) {
+            if (!currentFiles.contains(previousFile)) {
+                var fileState = previousState.get(previousFile);
+                deleteClassFiles(outputDirectory, fileState, List.of());
+                changedFiles.add(fileState);
+            }
+        }
+        addDependents(sourceFiles, changedFiles, buildState, pending);
+
+        var compiledFiles = new ArrayList<Path>();
+        var failures = new LinkedHashMap<Path, Throwable>();
+        while (!pending.isEmpty()) {
+            var round = List.copyOf(pending);
+            pending.clear();
+            changedFiles.clear();
+
+            failures.putAll(compiler.compile(round, outputDirectory, (sourceFile, compiledClass) -> {
+                var fileState = new BuildState.FileState(sourceHashes.get(sourceFile), compiledClass.className(), List.copyOf(compiledClass.classes().keySet()),
+                        compiledClass.packageName(), compiledClass.imports(), BuildState.hash(compiledClass.exportedSignatures()));
+                var previousFileState = previousState.get(sourceFile);
+                if (previousFileState != null) { // Classes the file no longer generates, such as those of a renamed file, are stale
+                    try {
+                        deleteClassFiles(outputDirectory, previousFileState, fileState.generatedClasses());
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+                if (previousFileState == null || !previousFileState.abiHash().equals(fileState.abiHash())
+                        || !previousFileState.packageName().equals(fileState.packageName()) || !previousFileState.className().equals(fileState.className())) {
+                    if (previousFileState != null) {
+                        changedFiles.add(previousFileState);
+                    }
+                    changedFiles.add(fileState);
+                }
+                buildState.put(sourceFile, fileState);
+                listener.accept(sourceFile, compiledClass);
+            }));
+            compiledFiles.addAll(round);
+
+            // Failed files stay out of the build state, so the next build tries them again.
+            round.stream().filter(failures::containsKey).forEach(buildState::remove);
+            addDependents(sourceFiles, changedFiles, buildState, pending);
+            pending.removeAll(compiledFiles);
+        }
+
+        buildState.write(stateFile);
+        return new Result(compiledFiles, failures);
+    }
+
+    // Queues the up-to-date files that depend on any of the changed files.
+    private static void addDependents(List<Path> sourceFiles, List<BuildState.FileState> changedFiles, BuildState buildState, Set<Path> pending) {
+        if (changedFiles.isEmpty()) {
+            return;
+        }
+        for (var sourceFile : sourceFiles) {
+            var fileState = buildState.get(sourceFile);
+            if (fileState == null || pending.contains(sourceFile)) {
+                continue;
+            }
+            for (var changedFile : changedFiles) {
+                if (fileState != changedFile && fileState.dependsOn(changedFile)) {
+                    pending.add(sourceFile);
+                    break;
+                }
+            }
+        }
+    }
+
+    private static Path getClassFile(Path outputDirectory, String className) {
+        return outputDirectory.resolve(className.replace('.', '/') + ".class");
+    }
+
+    // A file is only up to date while every class it generated is still in the output.
+    private static boolean hasClassFiles(Path outputDirectory, BuildState.FileState fileState) {
+        for (var className : fileState.generatedClasses()) {
+            if (!Files.isRegularFile(getClassFile(outputDirectory, className))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void deleteClassFiles(Path outputDirectory, BuildState.FileState fileState, List<String> keptClasses) throws IOException {
+        for (var className : fileState.generatedClasses()) {
+            if (!keptClasses.contains(className)) {
+                Files.deleteIfExists(getClassFile(outputDirectory, className));
+            }
+        }
+    }
+}
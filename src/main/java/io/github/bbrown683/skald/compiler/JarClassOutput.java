@@ -0,0 +1,37 @@
+package io.github.bbrown683.skald.compiler;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+// Writes every class into a single jar, which is complete once the output is closed.
+public class JarClassOutput implements ClassOutput {
+    private final JarOutputStream jarOutputStream;
+
+    public JarClassOutput(Path jarFile) throws IOException {
+        var manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        var parent = jarFile.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        jarOutputStream = new JarOutputStream(new BufferedOutputStream(Files.newOutputStream(jarFile)), manifest);
+    }
+
+    @Override
+    public synchronized void write(String className, byte[] bytes) throws IOException {
+        jarOutputStream.putNextEntry(new JarEntry(className.replace('.', '/') + ".class"));
+        jarOutputStream.write(bytes);
+        jarOutputStream.closeEntry();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        jarOutputStream.close();
+    }
+}
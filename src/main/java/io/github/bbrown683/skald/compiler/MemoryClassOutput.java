@@ -0,0 +1,20 @@
+package io.github.bbrown683.skald.compiler;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Keeps generated classes in memory, for embedders that load them straight away with a SkaldClassLoader.
+public class MemoryClassOutput implements ClassOutput {
+    private final Map<String, byte[]> classes = new ConcurrentHashMap<>();
+
+    @Override
+    public void write(String className, byte[] bytes) {
+        classes.put(className, bytes);
+    }
+
+    // Class bytes by fully qualified class name.
+    public Map<String, byte[]> getClasses() {
+        return Collections.unmodifiableMap(classes);
+    }
+}
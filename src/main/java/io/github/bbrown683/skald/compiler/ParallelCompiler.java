@@ -0,0 +1,156 @@
+package io.github.bbrown683.skald.compiler;
+
+import io.github.bbrown683.skald.diagnostics.Diagnostics;
+import io.github.bbrown683.skald.symbol.external.ExternalSymbolCache;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.BiConsumer;
+import java.util.stream.Stream;
+
+// Compiles many source files at once. Files are parsed, resolved and generated on a pool of worker threads
+// that load imported packages through one ExternalSymbolCache, while a single writer thread stores the generated classes. The queue
+// between them is bounded, so workers block rather than buffering the whole build in memory when the disk
+// falls behind.
+public class ParallelCompiler {
+    private static final Output END_OF_OUTPUT = new Output(null, null);
+
+    private final int threads;
+    private final int outputCapacity;
+    private final SkaldCompiler compiler;
+
+    public ParallelCompiler(int threads) {
+        this(threads, threads * 4, ExternalSymbolCache.shared());
+    }
+
+    public ParallelCompiler(int threads, int outputCapacity, ExternalSymbolCache externalSymbolCache) {
+        this(threads, outputCapacity, new SkaldCompiler(externalSymbolCache));
+    }
+
+    public ParallelCompiler(int threads, int outputCapacity, SkaldCompiler compiler) {
+        this.threads = threads;
+        this.outputCapacity = outputCapacity;
+        this.compiler = compiler;
+    }
+
+    // Finds every source file under the given files and directories.
+    public static List<Path> findSourceFiles(List<Path> paths) throws IOException {
+        var sourceFiles = new ArrayList<Path>();
+        for (var path : paths) {
+            if (Files.isDirectory(path)) {
+                try (Stream<Path> stream = Files.walk(path)) {
+                    stream.filter(Files::isRegularFile)
+                            .filter(f -> f.getFileName().toString().endsWith(SkaldCompiler.SOURCE_EXTENSION))
+                            .sorted()
+                            .forEach(sourceFiles::add);
+                }
+            } else {
+                sourceFiles.add(path);
+            }
+        }
+        return sourceFiles;
+    }
+
+    // Returns the failures by source file, which is empty when everything compiled.
+    public Map<Path, Throwable> compile(List<Path> sourceFiles, Path outputDirectory) throws InterruptedException {
+        return compile(sourceFiles, new DirectoryClassOutput(outputDirectory), (sourceFile, compiledClass) -> {});
+    }
+
+    public Map<Path, Throwable> compile(List<Path> sourceFiles, Path outputDirectory, BiConsumer<Path, CompiledClass> listener) throws InterruptedException {
+        return compile(sourceFiles, new DirectoryClassOutput(outputDirectory), listener);
+    }
+
+    // The listener is called on the calling thread, in source file order, for every file that compiled and was
+    // written, once all of them have been.
+    // The output is left open, as the caller may add more classes to it.
+    public Map<Path, Throwable> compile(List<Path> sourceFiles, ClassOutput classOutput, BiConsumer<Path, CompiledClass> listener) throws InterruptedException {
+        var failures = new ConcurrentHashMap<Path, Throwable>();
+        var outputQueue = new ArrayBlockingQueue<Output>(outputCapacity);
+        var claimedClasses = new HashMap<String, Path>();
+
+        var diagnostics = Diagnostics.getConfiguration(); // Workers log like the calling thread
+        var writer = Thread.ofPlatform().name("skald-writer").start(() -> {
+            var scope = Diagnostics.open(diagnostics);
+            try {
+                for (var output = outputQueue.take(); output != END_OF_OUTPUT; output = outputQueue.take()) {
+                    var compiledClass = output.compiledClass();
+                    try {
+                        compiledClass.metrics().time(CompileMetrics.Phase.WRITE, () -> {
+                            for (var generatedClass : compiledClass.classes().entrySet()) {
+                                classOutput.write(generatedClass.getKey(), generatedClass.getValue());
+                            }
+                        });
+                    } catch (IOException e) {
+                        failures.put(output.sourceFile(), e);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                scope.close();
+            }
+        });
+
+        var compiledClasses = new LinkedHashMap<Path, CompiledClass>();
+        var executor = Executors.newFixedThreadPool(threads);
+        try {
+            var futures = new LinkedHashMap<Path, Future<CompiledClass>>();
+            for (var sourceFile : sourceFiles) {
+                futures.put(sourceFile, executor.submit(() -> {
+                    var scope = Diagnostics.open(diagnostics);
+                    try {
+                        var compiledClass = compiler.compile(sourceFile);
+                        claimClasses(claimedClasses, sourceFile, compiledClass);
+                        outputQueue.put(new Output(sourceFile, compiledClass));
+                        return compiledClass;
+                    } finally {
+                        scope.close();
+                    }
+                }));
+            }
+
+            for (var entry : futures.entrySet()) {
+                try {
+                    compiledClasses.put(entry.getKey(), entry.getValue().get());
+                } catch (ExecutionException e) {
+                    failures.put(entry.getKey(), e.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+            outputQueue.put(END_OF_OUTPUT);
+            writer.join();
+        }
+
+        // Only after joining the writer, which records the WRITE phase into the metrics the listener reads
+        compiledClasses.forEach((sourceFile, compiledClass) -> {
+            if (!failures.containsKey(sourceFile)) {
+                listener.accept(sourceFile, compiledClass);
+            }
+        });
+        return failures;
+    }
+
+    // Claims the names of the classes generated from a source file before they are queued for writing, so that
+    // a class generated by two files is only written for the first of them. The file that finishes later fails
+    // without claiming or writing any of its classes.
+    private static void claimClasses(Map<String, Path> claimedClasses, Path sourceFile, CompiledClass compiledClass) {
+        synchronized (claimedClasses) {
+            for (var className : compiledClass.classes().keySet()) {
+                var previous = claimedClasses.get(className);
+                if (previous != null) {
+                    throw new RuntimeException("Class " + className + " is also generated by " + previous);
+                }
+            }
+            for (var className : compiledClass.classes().keySet()) {
+                claimedClasses.put(className, sourceFile);
+            }
+        }
+    }
+
+    private record Output(Path sourceFile, CompiledClass compiledClass) {
+    }
+}
@@ -0,0 +1,32 @@
+package io.github.bbrown683.skald.compiler;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Defines compiled classes straight from their bytes, so scripts can run without touching the disk.
+// Every generation of hot-reloaded classes should get its own loader, which lets the previous one be unloaded.
+public class SkaldClassLoader extends ClassLoader {
+    static {
+        ClassLoader.registerAsParallelCapable();
+    }
+
+    private final Map<String, byte[]> classes;
+
+    public SkaldClassLoader(Map<String, byte[]> classes) {
+        this(classes, SkaldClassLoader.class.getClassLoader());
+    }
+
+    public SkaldClassLoader(Map<String, byte[]> classes, ClassLoader parent) {
+        super("skald", parent);
+        this.classes = new ConcurrentHashMap<>(classes);
+    }
+
+    @Override
+    protected Class<?> findClass(String name) throws ClassNotFoundException {
+        var bytes = classes.get(name);
+        if (bytes == null) {
+            throw new ClassNotFoundException(name);
+        }
+        return defineClass(name, bytes, 0, bytes.length);
+    }
+}
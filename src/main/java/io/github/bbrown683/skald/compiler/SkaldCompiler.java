@@ -0,0 +1,127 @@
+package io.github.bbrown683.skald.compiler;
+
+import io.github.bbrown683.skald.antlr4.CompilerVisitor;
+import io.github.bbrown683.skald.antlr4.SymbolVisitor;
+import io.github.bbrown683.skald.jvm.PeepholeOptimizer;
+import io.github.bbrown683.skald.symbol.external.ExternalSymbolCache;
+import io.github.bbrown683.skald.symbol.external.ExternalSymbolTable;
+import io.github.bbrown683.skald.symbol.local.LocalFunctionSymbol;
+import io.github.bbrown683.skald.symbol.local.LocalSymbolTable;
+import io.github.bbrown683.skald.symbol.local.LocalUnionSymbol;
+import io.github.bbrown683.skald.symbol.local.LocalVariableSymbol;
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.CharStreams;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+// Runs the lex, parse, symbol and codegen phases for a single source file.
+// Instances hold no per-file state, so one compiler can be used from several threads at once.
+public class SkaldCompiler {
+    public static final String SOURCE_EXTENSION = ".lang";
+
+    private final ExternalSymbolCache externalSymbolCache;
+    private final SourceParser sourceParser;
+    private final boolean optimize;
+
+    public SkaldCompiler() {
+        this(ExternalSymbolCache.shared());
+    }
+
+    public SkaldCompiler(ExternalSymbolCache externalSymbolCache) {
+        this(externalSymbolCache, new SourceParser());
+    }
+
+    // Every compilation gets its own imports, but loads the imported packages through the given cache.
+    public SkaldCompiler(ExternalSymbolCache externalSymbolCache, SourceParser sourceParser) {
+        this(externalSymbolCache, sourceParser, PeepholeOptimizer.DEFAULT_ENABLED);
+    }
+
+    // Without optimization the generated methods keep every instruction, which is easier to step through.
+    public SkaldCompiler(ExternalSymbolCache externalSymbolCache, SourceParser sourceParser, boolean optimize) {
+        this.externalSymbolCache = externalSymbolCache;
+        this.sourceParser = sourceParser;
+        this.optimize = optimize;
+    }
+
+    public boolean isOptimizing() {
+        return optimize;
+    }
+
+    public CompiledClass compile(Path sourceFile) throws IOException {
+        String fileName = sourceFile.getFileName().toString();
+        String className = fileName.endsWith(SOURCE_EXTENSION) ? fileName.substring(0, fileName.length() - SOURCE_EXTENSION.length()) : fileName;
+        return compile(className, CharStreams.fromPath(sourceFile));
+    }
+
+    // Compiles sources held in memory, keyed by class name, and returns the bytes of the generated classes
+    // by their fully qualified names. Load them with a SkaldClassLoader to run them without touching the disk.
+    public Map<String, byte[]> compile(Map<String, String> sources) {
+        var classOutput = new MemoryClassOutput();
+        compile(sources, classOutput);
+        return classOutput.getClasses();
+    }
+
+    public void compile(Map<String, String> sources, ClassOutput classOutput) {
+        sources.forEach((className, source) -> {
+            var compiledClass = compile(className, CharStreams.fromString(source, className + SOURCE_EXTENSION));
+            try {
+                for (var generatedClass : compiledClass.classes().entrySet()) {
+                    classOutput.write(generatedClass.getKey(), generatedClass.getValue());
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    public CompiledClass compile(String className, CharStream charStream) {
+        var metrics = new CompileMetrics(charStream.getSourceName() != null && !charStream.getSourceName().equals(CharStream.UNKNOWN_SOURCE_NAME)
+                ? charStream.getSourceName() : className);
+        var classFileContext = sourceParser.parse(className, charStream, metrics);
+
+        var externalSymbolTable = metrics.time(CompileMetrics.Phase.IMPORTS, () -> new ExternalSymbolTable(externalSymbolCache)); // Loads java.lang
+        var symbolVisitor = new SymbolVisitor(className, externalSymbolTable, metrics);
+        metrics.time(CompileMetrics.Phase.SYMBOLS, () -> symbolVisitor.visit(classFileContext));
+
+        var compilerVisitor = new CompilerVisitor(className, symbolVisitor.getLocalSymbolTable(), symbolVisitor.getExternalSymbolTable(), null, metrics,
+                optimize ? new PeepholeOptimizer() : null);
+        var bytes = metrics.time(CompileMetrics.Phase.CODEGEN, () -> (byte[]) compilerVisitor.visit(classFileContext));
+        return new CompiledClass(compilerVisitor.getGeneratedClassName(), bytes, compilerVisitor.getNestedClasses(),
+                symbolVisitor.getPackageName(), List.copyOf(symbolVisitor.getImports()),
+                getExportedSignatures(symbolVisitor.getLocalSymbolTable()), metrics);
+    }
+
+    // Signatures of the top-level symbols other files can see, sorted so that reordering
+    // declarations does not count as a change.
+    private static List<String> getExportedSignatures(LocalSymbolTable localSymbolTable) {
+        var signatures = new ArrayList<String>();
+        for (var symbol : localSymbolTable.getRootSymbol().getChildren()) {
+            if (symbol instanceof LocalFunctionSymbol functionSymbol && functionSymbol.isPublic()) {
+                var signature = new StringBuilder(functionSymbol.isStatic() ? "static fn " : "fn ").append(functionSymbol.getName()).append('(');
+                for (var child : functionSymbol.getChildren()) {
+                    if (child instanceof LocalVariableSymbol parameter && parameter.isParameter()) {
+                        signature.append(parameter.isArray() ? "[" : "").append(parameter.getType().getSignature());
+                    }
+                }
+                signatures.add(signature.append(')').append(functionSymbol.getReturnType().getSignature()).toString());
+            } else if (symbol instanceof LocalUnionSymbol unionSymbol) {
+                var signature = new StringBuilder("union ").append(unionSymbol.getName()).append('(');
+                for (var member : unionSymbol.getMembers()) {
+                    signature.append(member.name()).append(':').append(member.type().getSignature()).append(';');
+                }
+                signatures.add(signature.append(')').toString());
+            } else if (symbol instanceof LocalVariableSymbol variableSymbol && variableSymbol.isPublic()) {
+                signatures.add((variableSymbol.isStatic() ? "static " : "") + (variableSymbol.isMutable() ? "mut " : "") + "var "
+                        + variableSymbol.getName() + ":" + (variableSymbol.isArray() ? "[" : "") + variableSymbol.getType().getSignature());
+            }
+        }
+        Collections.sort(signatures);
+        return List.copyOf(signatures);
+    }
+}
@@ -0,0 +1,95 @@
+package io.github.bbrown683.skald.compiler;
+
+import io.github.bbrown683.skald.antlr4.SkaldLexer;
+import io.github.bbrown683.skald.antlr4.SkaldParser;
+import org.antlr.v4.runtime.BailErrorStrategy;
+import org.antlr.v4.runtime.BaseErrorListener;
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.DefaultErrorStrategy;
+import org.antlr.v4.runtime.RecognitionException;
+import org.antlr.v4.runtime.Recognizer;
+import org.antlr.v4.runtime.atn.PredictionMode;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
+
+// Parses source files in two stages. The first uses SLL prediction, which is much cheaper where rules overlap
+// (expression, typeName and reference all start with IDENTIFIER | path) but can fail on inputs that full LL
+// accepts, so it bails out on the first error instead of recovering. Only then is the file parsed again with
+// LL prediction and the default error recovery, which also reports the syntax errors of invalid files.
+// SLL succeeds for almost every valid file, so the second stage is rarely paid for.
+public class SourceParser {
+    public static final boolean DEFAULT_TWO_STAGE = !Boolean.getBoolean("skald.parser.ll");
+
+    private final boolean twoStage;
+
+    public SourceParser() {
+        this(DEFAULT_TWO_STAGE);
+    }
+
+    // Without two stages every file is parsed with LL prediction only, which is useful when diagnosing the parser.
+    public SourceParser(boolean twoStage) {
+        this.twoStage = twoStage;
+    }
+
+    public boolean isTwoStage() {
+        return twoStage;
+    }
+
+    public SkaldParser.ClassFileContext parse(String sourceName, CharStream charStream) {
+        return parse(sourceName, charStream, new CompileMetrics(sourceName));
+    }
+
+    public SkaldParser.ClassFileContext parse(String sourceName, CharStream charStream, CompileMetrics metrics) {
+        var syntaxErrors = new SyntaxErrorListener();
+        var lexer = new SkaldLexer(charStream);
+        lexer.removeErrorListeners();
+        lexer.addErrorListener(syntaxErrors);
+        var tokenStream = new CommonTokenStream(lexer);
+        metrics.time(CompileMetrics.Phase.LEX, tokenStream::fill); // Lex everything up front, so lexing is not measured as parsing
+        return metrics.time(CompileMetrics.Phase.PARSE, () -> parse(sourceName, tokenStream, syntaxErrors));
+    }
+
+    private SkaldParser.ClassFileContext parse(String sourceName, CommonTokenStream tokenStream, SyntaxErrorListener syntaxErrors) {
+        var parser = new SkaldParser(tokenStream);
+        parser.removeErrorListeners();
+        parser.addErrorListener(syntaxErrors);
+        if (twoStage) {
+            parser.getInterpreter().setPredictionMode(PredictionMode.SLL);
+            parser.removeErrorListeners(); // Errors are reported by the second stage if the file is really invalid
+            parser.setErrorHandler(new BailErrorStrategy());
+            try {
+                return checkSyntaxErrors(sourceName, parser.classFile(), syntaxErrors); // The lexer's errors are still counted
+            } catch (ParseCancellationException e) { // Rewind and try again with full LL prediction
+                tokenStream.seek(0);
+                parser.reset();
+                parser.addErrorListener(syntaxErrors);
+                parser.setErrorHandler(new DefaultErrorStrategy());
+                parser.getInterpreter().setPredictionMode(PredictionMode.LL);
+            }
+        }
+
+        return checkSyntaxErrors(sourceName, parser.classFile(), syntaxErrors);
+    }
+
+    private static SkaldParser.ClassFileContext checkSyntaxErrors(String sourceName, SkaldParser.ClassFileContext classFileContext,
+                                                                 SyntaxErrorListener syntaxErrors) {
+        if (syntaxErrors.count > 0) {
+            throw new RuntimeException(sourceName + ": " + syntaxErrors.count + " syntax error(s)" + syntaxErrors.messages);
+        }
+        return classFileContext;
+    }
+
+    // Collects the syntax errors into the failure of the file, which reaches the caller's error stream, rather
+    // than printing them to the console of the process, which is the daemon's when compiling through it.
+    private static class SyntaxErrorListener extends BaseErrorListener {
+        private final StringBuilder messages = new StringBuilder();
+        private int count;
+
+        @Override
+        public void syntaxError(Recognizer<?, ?> recognizer, Object offendingSymbol, int line, int charPositionInLine,
+                                String message, RecognitionException e) {
+            count++;
+            messages.append(System.lineSeparator()).append("line ").append(line).append(':').append(charPositionInLine).append(' ').append(message);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package io.github.bbrown683.skald.daemon;
+
+import java.io.*;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.util.List;
+
+// The thin side of the compile daemon: it forwards its arguments and working directory to the daemon,
+// and replays the daemon's output and exit code as if it had compiled the files itself.
+public class CompileClient {
+    private final Path socketFile;
+
+    public CompileClient(Path socketFile) {
+        this.socketFile = socketFile;
+    }
+
+    public static boolean isRunning(Path socketFile) {
+        try (var channel = SocketChannel.open(StandardProtocolFamily.UNIX)) {
+            return channel.connect(UnixDomainSocketAddress.of(socketFile));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    public int compile(List<String> args, Path workingDirectory, PrintStream out, PrintStream err) throws IOException {
+        try (var channel = SocketChannel.open(UnixDomainSocketAddress.of(socketFile));
+             var input = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+             var output = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)))) {
+            output.writeInt(CompileDaemon.MAGIC);
+            output.writeInt(CompileDaemon.COMPILE);
+            output.writeUTF(workingDirectory.toAbsolutePath().toString());
+            output.writeInt(args.size());
+            for (var arg : args) {
+                output.writeUTF(arg);
+            }
+            output.flush();
+            return readResponse(input, out, err);
+        }
+    }
+
+    public void shutdown() throws IOException {
+        try (var channel = SocketChannel.open(UnixDomainSocketAddress.of(socketFile));
+             var input = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+             var output = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)))) {
+            output.writeInt(CompileDaemon.MAGIC);
+            output.writeInt(CompileDaemon.SHUTDOWN);
+            output.flush();
+            readResponse(input, System.out, System.err);
+        }
+    }
+
+    private static int readResponse(DataInputStream input, PrintStream out, PrintStream err) throws IOException {
+        int exitCode = input.readInt();
+        out.write(input.readNBytes(input.readInt()));
+        err.write(input.readNBytes(input.readInt()));
+        out.flush();
+        err.flush();
+        return exitCode;
+    }
+}
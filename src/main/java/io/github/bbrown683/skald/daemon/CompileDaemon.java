@@ -0,0 +1,125 @@
+package io.github.bbrown683.skald.daemon;
+
+import java.io.*;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+// A long-lived compiler process that serves compile requests over a Unix domain socket. Everything a cold
+// compiler pays for on every run stays warm between requests: the JIT-compiled compiler, the packages loaded
+// into the shared ExternalSymbolCache and the DFA that SkaldParser caches statically for all its instances.
+// Requests are handled concurrently, each on its own thread, as the compiler itself is thread-safe.
+public class CompileDaemon implements Closeable {
+    static final int MAGIC = 0x534B4C51; // "SKLQ"
+    static final int COMPILE = 0;
+    static final int SHUTDOWN = 1;
+
+    // Runs one request with its arguments, resolving relative paths against the client's working directory.
+    @FunctionalInterface
+    public interface RequestHandler {
+        int run(List<String> args, Path workingDirectory, PrintStream out, PrintStream err);
+    }
+
+    private final Path socketFile;
+    private final RequestHandler requestHandler;
+    private final ServerSocketChannel serverChannel;
+    private boolean closed;
+
+    public CompileDaemon(Path socketFile, RequestHandler requestHandler) throws IOException {
+        this.socketFile = socketFile;
+        this.requestHandler = requestHandler;
+        if (Files.exists(socketFile)) {
+            if (CompileClient.isRunning(socketFile)) {
+                throw new IOException("A compile daemon is already listening on " + socketFile);
+            }
+            Files.delete(socketFile); // Left behind by a daemon that did not shut down cleanly
+        }
+        serverChannel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        serverChannel.bind(UnixDomainSocketAddress.of(socketFile));
+    }
+
+    public Path getSocketFile() {
+        return socketFile;
+    }
+
+    // Serves requests until a client asks the daemon to shut down or the daemon is closed.
+    public void serve() throws IOException {
+        try {
+            while (serverChannel.isOpen()) {
+                SocketChannel channel;
+                try {
+                    channel = serverChannel.accept();
+                } catch (ClosedChannelException e) {
+                    break;
+                }
+                Thread.ofPlatform().name("skald-daemon-request").daemon(true).start(() -> handle(channel));
+            }
+        } finally {
+            close();
+        }
+    }
+
+    private void handle(SocketChannel channel) {
+        try (channel;
+             var input = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+             var output = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)))) {
+            if (input.readInt() != MAGIC) {
+                return;
+            }
+            int requestType = input.readInt();
+            if (requestType == SHUTDOWN) {
+                writeResponse(output, 0, new byte[0], new byte[0]);
+                close();
+                return;
+            }
+
+            var workingDirectory = Path.of(input.readUTF());
+            int argumentCount = input.readInt();
+            var args = new ArrayList<String>(argumentCount);
+            for (int i = 0; i < argumentCount; i++) {
+                args.add(input.readUTF());
+            }
+
+            var out = new ByteArrayOutputStream();
+            var err = new ByteArrayOutputStream();
+            int exitCode;
+            try (var outStream = new PrintStream(out, true); var errStream = new PrintStream(err, true)) {
+                try {
+                    exitCode = requestHandler.run(args, workingDirectory, outStream, errStream);
+                } catch (RuntimeException e) {
+                    errStream.println(e);
+                    exitCode = 1;
+                }
+            }
+            writeResponse(output, exitCode, out.toByteArray(), err.toByteArray());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static void writeResponse(DataOutputStream output, int exitCode, byte[] out, byte[] err) throws IOException {
+        output.writeInt(exitCode);
+        output.writeInt(out.length);
+        output.write(out);
+        output.writeInt(err.length);
+        output.write(err);
+        output.flush();
+    }
+
+    // Called by both the accepting thread and a shutdown request, and only returns once the socket file is gone.
+    @Override
+    public synchronized void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            serverChannel.close();
+            Files.deleteIfExists(socketFile);
+        }
+    }
+}
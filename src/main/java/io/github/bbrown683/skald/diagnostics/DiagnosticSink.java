@@ -0,0 +1,10 @@
+package io.github.bbrown683.skald.diagnostics;
+
+// Receives the diagnostics that pass the configured level. Fields alternate between names and values.
+// Sinks are called from every compiling thread, so implementations must be thread-safe.
+public interface DiagnosticSink {
+    void emit(Diagnostics.Level level, String event, Object... fields);
+
+    default void flush() {
+    }
+}
@@ -0,0 +1,152 @@
+package io.github.bbrown683.skald.diagnostics;
+
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+// Leveled diagnostics for the compiler. An event is a name plus named fields, and is only formatted by the
+// sink once it passes the level check, so a disabled call costs a lookup and a compare: there is no string
+// building, no varargs array and no console lock on the hot path. Calls whose fields box a primitive or are
+// computed are wrapped in an isEnabled check, so that nothing is built for them either. The process-wide
+// level defaults to the skald.log.level system property, or WARNING. A thread can open a scope with a level
+// and sink of its own, which the daemon does for every request, so that options and output are not shared
+// between clients.
+public final class Diagnostics {
+    public enum Level {
+        OFF,
+        ERROR,
+        WARNING,
+        INFO,
+        DEBUG,
+        TRACE
+    }
+
+    public record Configuration(Level level, DiagnosticSink sink) {
+    }
+
+    // Restores the configuration the thread had before the scope was opened.
+    public static final class Scope implements AutoCloseable {
+        private final Configuration previous;
+
+        private Scope(Configuration previous) {
+            this.previous = previous;
+        }
+
+        @Override
+        public void close() {
+            scoped.set(previous);
+        }
+    }
+
+    private static volatile Configuration global = new Configuration(
+            Level.valueOf(System.getProperty("skald.log.level", Level.WARNING.name())), new TextDiagnosticSink(newErrorStream()));
+    private static final ThreadLocal<Configuration> scoped = new ThreadLocal<>();
+
+    private Diagnostics() {
+    }
+
+    // Writes to standard error through a large buffer, so thousands of files do not wait on the console.
+    public static PrintStream newErrorStream() {
+        return newBufferedStream(new FileOutputStream(FileDescriptor.err));
+    }
+
+    public static PrintStream newBufferedStream(OutputStream output) {
+        return new PrintStream(new BufferedOutputStream(output, 1 << 16), false);
+    }
+
+    public static void configure(Level level, DiagnosticSink sink) {
+        var previous = global;
+        global = new Configuration(level, sink);
+        previous.sink().flush();
+    }
+
+    // Worker threads open a scope with the configuration of the thread they work for.
+    public static Scope open(Configuration configuration) {
+        var scope = new Scope(scoped.get());
+        scoped.set(configuration);
+        return scope;
+    }
+
+    public static Configuration getConfiguration() {
+        var configuration = scoped.get();
+        return configuration != null ? configuration : global;
+    }
+
+    public static Level getLevel() {
+        return getConfiguration().level();
+    }
+
+    public static boolean isEnabled(Level level) {
+        return isEnabled(getConfiguration(), level);
+    }
+
+    private static boolean isEnabled(Configuration configuration, Level level) {
+        return level.compareTo(configuration.level()) <= 0 && level != Level.OFF;
+    }
+
+    public static void flush() {
+        getConfiguration().sink().flush();
+    }
+
+    public static void log(Level level, String event) {
+        var configuration = getConfiguration();
+        if (isEnabled(configuration, level)) {
+            configuration.sink().emit(level, event);
+        }
+    }
+
+    public static void log(Level level, String event, String name, Object value) {
+        var configuration = getConfiguration();
+        if (isEnabled(configuration, level)) {
+            configuration.sink().emit(level, event, name, value);
+        }
+    }
+
+    public static void log(Level level, String event, String name1, Object value1, String name2, Object value2) {
+        var configuration = getConfiguration();
+        if (isEnabled(configuration, level)) {
+            configuration.sink().emit(level, event, name1, value1, name2, value2);
+        }
+    }
+
+    public static void log(Level level, String event, String name1, Object value1, String name2, Object value2, String name3, Object value3) {
+        var configuration = getConfiguration();
+        if (isEnabled(configuration, level)) {
+            configuration.sink().emit(level, event, name1, value1, name2, value2, name3, value3);
+        }
+    }
+
+    public static void log(Level level, String event, String name1, Object value1, String name2, Object value2,
+                           String name3, Object value3, String name4, Object value4) {
+        var configuration = getConfiguration();
+        if (isEnabled(configuration, level)) {
+            configuration.sink().emit(level, event, name1, value1, name2, value2, name3, value3, name4, value4);
+        }
+    }
+
+    public static void debug(String event) {
+        log(Level.DEBUG, event);
+    }
+
+    public static void debug(String event, String name, Object value) {
+        log(Level.DEBUG, event, name, value);
+    }
+
+    public static void debug(String event, String name1, Object value1, String name2, Object value2) {
+        log(Level.DEBUG, event, name1, value1, name2, value2);
+    }
+
+    public static void trace(String event) {
+        log(Level.TRACE, event);
+    }
+
+    public static void trace(String event, String name, Object value) {
+        log(Level.TRACE, event, name, value);
+    }
+
+    public static void trace(String event, String name1, Object value1, String name2, Object value2) {
+        log(Level.TRACE, event, name1, value1, name2, value2);
+    }
+}
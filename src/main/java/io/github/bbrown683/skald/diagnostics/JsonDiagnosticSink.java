@@ -0,0 +1,64 @@
+package io.github.bbrown683.skald.diagnostics;
+
+import java.io.PrintStream;
+
+// Structured trace output with one JSON object per line, e.g.
+// {"level":"TRACE","thread":"pool-1-thread-2","event":"push","type":"int","value":42}
+// Lines of files compiled in parallel interleave, so each names the thread that produced it.
+public class JsonDiagnosticSink implements DiagnosticSink {
+    private final PrintStream output;
+
+    public JsonDiagnosticSink(PrintStream output) {
+        this.output = output;
+    }
+
+    @Override
+    public void emit(Diagnostics.Level level, String event, Object... fields) {
+        var line = new StringBuilder(128).append("{\"level\":\"").append(level.name()).append("\",\"thread\":");
+        appendString(line, Thread.currentThread().getName());
+        line.append(",\"event\":");
+        appendString(line, event);
+        for (int i = 0; i + 1 < fields.length; i += 2) {
+            line.append(',');
+            appendString(line, String.valueOf(fields[i]));
+            line.append(':');
+            var value = fields[i + 1];
+            if (value instanceof Boolean || value instanceof Integer || value instanceof Long
+                    || value instanceof Short || value instanceof Byte) {
+                line.append(value);
+            } else if (value == null) {
+                line.append("null");
+            } else {
+                appendString(line, value.toString());
+            }
+        }
+        output.println(line.append('}'));
+    }
+
+    private static void appendString(StringBuilder line, String value) {
+        line.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"' -> line.append("\\\"");
+                case '\\' -> line.append("\\\\");
+                case '\n' -> line.append("\\n");
+                case '\r' -> line.append("\\r");
+                case '\t' -> line.append("\\t");
+                default -> {
+                    if (c < 0x20) {
+                        line.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        line.append(c);
+                    }
+                }
+            }
+        }
+        line.append('"');
+    }
+
+    @Override
+    public void flush() {
+        output.flush();
+    }
+}
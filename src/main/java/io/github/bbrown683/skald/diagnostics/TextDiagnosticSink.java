@@ -0,0 +1,26 @@
+package io.github.bbrown683.skald.diagnostics;
+
+import java.io.PrintStream;
+
+// Human-readable lines such as "TRACE push type=int value=42".
+public class TextDiagnosticSink implements DiagnosticSink {
+    private final PrintStream output;
+
+    public TextDiagnosticSink(PrintStream output) {
+        this.output = output;
+    }
+
+    @Override
+    public void emit(Diagnostics.Level level, String event, Object... fields) {
+        var line = new StringBuilder(64).append(level.name()).append(' ').append(event);
+        for (int i = 0; i + 1 < fields.length; i += 2) {
+            line.append(' ').append(fields[i]).append('=').append(fields[i + 1]);
+        }
+        output.println(line); // A single write per line, so lines from different threads do not interleave
+    }
+
+    @Override
+    public void flush() {
+        output.flush();
+    }
+}
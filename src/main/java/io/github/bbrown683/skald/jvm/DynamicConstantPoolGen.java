@@ -0,0 +1,49 @@
+package io.github.bbrown683.skald.jvm;
+
+import org.apache.bcel.Const;
+import org.apache.bcel.classfile.Constant;
+import org.apache.bcel.classfile.ConstantInvokeDynamic;
+import org.apache.bcel.classfile.ConstantMethodHandle;
+import org.apache.bcel.classfile.ConstantMethodType;
+import org.apache.bcel.generic.ConstantPoolGen;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// A constant pool that can also hold the method handles, method types and call sites that invokedynamic
+// refers to, which ConstantPoolGen refuses to add. Like every other constant, each is stored once.
+public class DynamicConstantPoolGen extends ConstantPoolGen {
+    private final Map<String, Integer> dynamicTable = new HashMap<>();
+
+    // A handle to a static method, such as a bootstrap method.
+    public int addStaticMethodHandle(String className, String methodName, String signature) {
+        int methodIndex = addMethodref(className, methodName, signature);
+        return addDynamicConstant("handle:" + methodIndex, new ConstantMethodHandle(Const.REF_invokeStatic, methodIndex));
+    }
+
+    public int addMethodType(String signature) {
+        int signatureIndex = addUtf8(signature);
+        return addDynamicConstant("type:" + signature, new ConstantMethodType(signatureIndex));
+    }
+
+    // The call site of an invokedynamic, bound by the bootstrap method at the given index of the class's
+    // BootstrapMethods attribute.
+    public int addInvokeDynamic(int bootstrapMethodIndex, String name, String signature) {
+        int nameAndTypeIndex = addNameAndType(name, signature);
+        return addDynamicConstant("indy:" + bootstrapMethodIndex + ":" + nameAndTypeIndex, new ConstantInvokeDynamic(bootstrapMethodIndex, nameAndTypeIndex));
+    }
+
+    // ConstantPoolGen has no public way to append a constant of these kinds, so the slot is reserved by adding
+    // a placeholder string that no class refers to, and the constant is then set in its place. The NUL that
+    // starts the placeholder keeps it apart from every name and string the compiler adds.
+    private int addDynamicConstant(String key, Constant constant) {
+        var existing = dynamicTable.get(key);
+        if (existing != null) {
+            return existing;
+        }
+        int constantIndex = addUtf8("\0" + key);
+        setConstant(constantIndex, constant);
+        dynamicTable.put(key, constantIndex);
+        return constantIndex;
+    }
+}
@@ -0,0 +1,33 @@
+package io.github.bbrown683.skald.jvm;
+
+import io.github.bbrown683.skald.diagnostics.Diagnostics;
+import org.apache.bcel.Const;
+import org.apache.bcel.generic.*;
+
+// Generates the functional interface of a function type. LambdaMetafactory implements it for every lambda
+// and function reference of the type, and a call of a function value is an invokeinterface of its method.
+public class FunctionInterfaceGenerator {
+    private final String sourceFileName;
+
+    public FunctionInterfaceGenerator(String sourceFileName) {
+        this.sourceFileName = sourceFileName;
+    }
+
+    public byte[] generateInterface(FunctionType functionType) {
+        Diagnostics.debug("function-interface", "class", functionType.getClassName(), "type", functionType);
+        var classGen = new ClassGen(functionType.getClassName(), "java.lang.Object", sourceFileName,
+                Const.ACC_PUBLIC | Const.ACC_INTERFACE | Const.ACC_ABSTRACT, null, new ConstantPoolGen());
+        classGen.setMajor(Const.MAJOR_23);
+        classGen.setMinor(0);
+
+        var parameterTypes = functionType.getParameterTypes();
+        var parameterNames = new String[parameterTypes.length];
+        for (int i = 0; i < parameterNames.length; i++) {
+            parameterNames[i] = "arg" + i;
+        }
+        var methodGen = new MethodGen(Const.ACC_PUBLIC | Const.ACC_ABSTRACT, functionType.getReturnType(), parameterTypes, parameterNames,
+                FunctionType.METHOD_NAME, functionType.getClassName(), null, classGen.getConstantPool());
+        classGen.addMethod(methodGen.getMethod());
+        return classGen.getJavaClass().getBytes();
+    }
+}
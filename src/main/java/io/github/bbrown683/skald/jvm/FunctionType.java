@@ -0,0 +1,55 @@
+package io.github.bbrown683.skald.jvm;
+
+import org.apache.bcel.generic.ObjectType;
+import org.apache.bcel.generic.Type;
+
+import java.util.Arrays;
+import java.util.stream.Collectors;
+
+// The type of a function value. Each distinct function type of a file is generated as a functional interface
+// with a single method, whose parameters and return type are those of the function type itself. Primitive
+// parameters and results are therefore passed as they are, where the generic interfaces of java.util.function
+// would box them.
+public final class FunctionType extends ObjectType {
+    public static final String METHOD_NAME = "invoke";
+
+    private final Type[] parameterTypes;
+    private final Type returnType;
+
+    public FunctionType(String className, Type[] parameterTypes, Type returnType) {
+        super(className);
+        this.parameterTypes = parameterTypes;
+        this.returnType = returnType;
+    }
+
+    public Type[] getParameterTypes() {
+        return parameterTypes;
+    }
+
+    public Type getReturnType() {
+        return returnType;
+    }
+
+    // The signature of the interface's method.
+    public String getMethodSignature() {
+        return Type.getMethodSignature(returnType, parameterTypes);
+    }
+
+    // Parameters are compared by name, so that an int and a uint parameter, which share a signature, differ.
+    public boolean hasParameters(Type[] types) {
+        return describe(parameterTypes).equals(describe(types));
+    }
+
+    public static String describe(Type[] parameterTypes, Type returnType) {
+        return "fn(" + describe(parameterTypes) + ") -> " + (returnType.equals(Type.VOID) ? "unit" : returnType);
+    }
+
+    private static String describe(Type[] types) {
+        return Arrays.stream(types).map(Type::toString).collect(Collectors.joining(", "));
+    }
+
+    @Override
+    public String toString() {
+        return describe(parameterTypes, returnType);
+    }
+}
@@ -20,10 +20,19 @@ public class InstructionGenerator {
     }
 
     public InstructionGenerator(ClassGen classGen, ConstantPoolGen constantPoolGen, MethodGen methodGen) {
-        this.classGen = classGen;
-        this.constantPoolGen = constantPoolGen;
+        this(new InstructionUtil(classGen, constantPoolGen), methodGen);
+    }
+
+    public InstructionGenerator(InstructionUtil instructionUtil) {
+        this(instructionUtil, null);
+    }
+
+    // Generators for the methods of one class share its InstructionUtil and constant pool.
+    public InstructionGenerator(InstructionUtil instructionUtil, MethodGen methodGen) {
+        this.classGen = instructionUtil.getClassGen();
+        this.constantPoolGen = instructionUtil.getConstantPoolGen();
         this.methodGen = methodGen;
-        instructionUtil = new InstructionUtil(classGen, constantPoolGen);
+        this.instructionUtil = instructionUtil;
     }
 
     public InstructionList getInstructionList() {
@@ -34,17 +43,23 @@ public class InstructionGenerator {
         instructionList.append(instructionUtil.callSuper(superClass));
     }
 
-    private void pushLiteral(Object literal) {
+    public void pushLiteral(Object literal) {
         instructionList.append(instructionUtil.pushLiteral(literal));
     }
 
+    // Static final fields holding a primitive or string are initialized by the JVM from their ConstantValue
+    // attribute, so they need no code. Every other field is assigned by the initializer being generated.
     public void addVariableAsLiteralField(String variableName, Object literal, Type type, int accessFlags, String className) {
-        pushLiteral(literal);
-
-        FieldGen fieldGen = new FieldGen(accessFlags, type, variableName, constantPoolGen);
-        classGen.addField(fieldGen.getField());
+        boolean isStaticFinal = (accessFlags & (Const.ACC_STATIC | Const.ACC_FINAL)) == (Const.ACC_STATIC | Const.ACC_FINAL);
+        if (isStaticFinal && literal != null && (type instanceof BasicType || type instanceof UnsignedType || type.equals(Type.STRING))) {
+            FieldGen fieldGen = new FieldGen(accessFlags, type, variableName, constantPoolGen);
+            instructionUtil.setConstantValue(fieldGen, literal);
+            classGen.addField(fieldGen.getField());
+            return;
+        }
 
-        instructionList.append(instructionUtil.insertField(className, variableName, type));
+        pushLiteral(literal);
+        storeAsField(variableName, type, accessFlags, className);
     }
 
     public LocalVariableGen addVariableLiteralAsLiteralLocalVariable(String variableName, Object literal, Type variableType) {
@@ -70,15 +85,108 @@ public class InstructionGenerator {
         localVariable.setEnd(instructionList.getEnd());
     }
 
-    public void addVariableAsStaticReference(String variableName, String className, String referenceName, Type referenceType) {
-        instructionList.append(instructionUtil.loadStaticReference(className, referenceName, referenceType));
+    public void loadVariable(LocalVariableGen localVariable) {
+        instructionList.append(instructionUtil.loadVariable(localVariable));
+    }
+
+    public void loadField(String className, String fieldName, Type fieldType, boolean isStatic) {
+        if (isStatic) {
+            instructionList.append(instructionUtil.loadStaticReference(className, fieldName, fieldType));
+        } else {
+            instructionList.append(instructionUtil.loadField(className, fieldName, fieldType));
+        }
+    }
+
+    public void loadObjectField(String className, String fieldName, Type fieldType) {
+        instructionList.append(instructionUtil.loadObjectField(className, fieldName, fieldType));
+    }
 
-        var localVariable = methodGen.addLocalVariable(variableName, referenceType, null, null);
-        instructionUtil.storeVariable(localVariable);
+    public void castTo(ObjectType type) {
+        instructionList.append(instructionUtil.castTo(type));
+    }
 
+    public void convert(Type from, Type to) {
+        instructionList.append(instructionUtil.convert(from, to));
+    }
+
+    public void binaryOperation(String operator, Type type) {
+        instructionList.append(instructionUtil.binaryOperation(operator, type));
+    }
+
+    public void negate(Type type) {
+        instructionList.append(instructionUtil.negate(type));
+    }
+
+    public void compare(String operator, Type type) {
+        instructionList.append(instructionUtil.compare(operator, type));
+    }
+
+    // Called before the value of an argument is pushed, as a full concatenation has to be called first.
+    public void reserveConcatArgument(StringConcatenation concatenation, Type type) {
+        instructionList.append(instructionUtil.reserveConcatArgument(concatenation, type));
+    }
+
+    public void appendConcatArgument(StringConcatenation concatenation, Type type) {
+        instructionList.append(instructionUtil.appendConcatArgument(concatenation, type));
+    }
+
+    public void concatenate(StringConcatenation concatenation) {
+        instructionList.append(instructionUtil.concatenate(concatenation));
+    }
+
+    // Stores the value computed by the instructions generated so far into a new local variable.
+    public LocalVariableGen storeAsLocalVariable(String variableName, Type variableType) {
+        var localVariable = methodGen.addLocalVariable(variableName, variableType, null, null);
+
+        instructionList.append(instructionUtil.storeVariable(localVariable));
         // Set end so we can determine the scope of the local variable in the method.
         localVariable.setStart(instructionList.getStart());
         localVariable.setEnd(instructionList.getEnd());
+        return localVariable;
+    }
+
+    // Stores the value computed by the instructions generated so far into a new field. Instance fields need
+    // the object beneath the value, so it is loaded ahead of the instructions that compute it. Frames are
+    // written with an empty stack, though, so a value computed by a loop is first stored in a local instead.
+    public void storeAsField(String variableName, Type type, int accessFlags, String className) {
+        FieldGen fieldGen = new FieldGen(accessFlags, type, variableName, constantPoolGen);
+        classGen.addField(fieldGen.getField());
+
+        if ((accessFlags & Const.ACC_STATIC) != 0) {
+            instructionList.append(instructionUtil.insertStaticField(className, variableName, type));
+        } else if (hasBranches()) {
+            var value = storeAsLocalVariable(variableName + "$value", type);
+            instructionList.append(instructionUtil.insertSelfReference());
+            instructionList.append(instructionUtil.loadVariable(value));
+            instructionList.append(instructionUtil.insertField(className, variableName, type));
+        } else {
+            instructionList.insert(instructionUtil.insertSelfReference());
+            instructionList.append(instructionUtil.insertField(className, variableName, type));
+        }
+    }
+
+    private boolean hasBranches() {
+        for (var instruction : instructionList.getInstructions()) {
+            if (instruction instanceof BranchInstruction) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Marks the current end of the method, so that branches can target the next instruction generated.
+    public InstructionHandle insertLabel() {
+        return instructionList.append(InstructionConst.NOP);
+    }
+
+    // The branch is returned without a target, which is set once the code it jumps to is generated.
+    public BranchHandle insertBranch(short opcode) {
+        return instructionList.append(InstructionFactory.createBranchInstruction(opcode, null));
+    }
+
+    // Switches on the int on top of the stack. Every target is left unset, including the default.
+    public BranchHandle insertSwitch(int[] keys) {
+        return instructionList.append(instructionUtil.createSwitch(keys));
     }
 
     public void insertReturn(Type returnType) {
@@ -89,6 +197,47 @@ public class InstructionGenerator {
         instructionList.append(instructionUtil.callFunction(className, functionName, returnType, argumentTypes, isStatic));
     }
 
+    public void callFunctionValue(FunctionType functionType) {
+        instructionList.append(instructionUtil.callFunctionValue(functionType));
+    }
+
+    // Pushes a function value calling the given method, which takes the captured values pushed before it.
+    public void createFunction(FunctionType functionType, String className, String methodName, Type[] capturedTypes) {
+        instructionList.append(instructionUtil.createFunction(functionType, className, methodName, capturedTypes));
+    }
+
+    public void callInterfaceFunction(String className, String functionName, Type returnType, Type[] argumentTypes) {
+        instructionList.append(instructionUtil.callInterfaceFunction(className, functionName, returnType, argumentTypes));
+    }
+
+    public void unbox(Type type) {
+        instructionList.append(instructionUtil.unbox(type));
+    }
+
+    public void arrayLength() {
+        instructionList.append(instructionUtil.arrayLength());
+    }
+
+    public void loadArrayElement(Type elementType) {
+        instructionList.append(instructionUtil.loadArrayElement(elementType));
+    }
+
+    public void storeVariable(LocalVariableGen localVariable) {
+        instructionList.append(instructionUtil.storeVariable(localVariable));
+    }
+
+    public void increment(LocalVariableGen localVariable, int increment) {
+        instructionList.append(instructionUtil.increment(localVariable, increment));
+    }
+
+    public void throwException(String className, String message) {
+        instructionList.append(instructionUtil.throwException(className, message));
+    }
+
+    public void discard(Type type) {
+        instructionList.append(instructionUtil.discard(type));
+    }
+
     public MethodGen getMethodGen(int accessFlags, String name, Type returnType, List<Type> parameterTypes, List<String> parameterNames) {
         methodGen = new MethodGen(accessFlags,
                 returnType,
@@ -101,28 +250,21 @@ public class InstructionGenerator {
         return methodGen;
     }
 
-    // The way local variables work in the JVM is that they have typically two instructions:
-    // 1. Push the value onto the stack
-    // 2. Store the value in the local variable
-    // Thus we need to set the start instruction to the next available instruction after these,
-    // as at that point the variable is constructed. Anypoint before that and the variable will be corrupted.
-    // TODO: We need to figure out how to handle the scope of the local variable as it is currently set to the end of the method,
-    //  but situations such as if statements or loops will require the variable to be set to the end of the block.
-    public void updateVariableScope() {
-        for(var localVariable : methodGen.getLocalVariables()) {
-            var localEnd = localVariable.getEnd();
-            var methodEnd = instructionList.getEnd();
-            if(localEnd != methodEnd) {
-                var localNext  = localEnd.getNext();
-                localVariable.setStart(localNext != null ? localNext : methodEnd);
-                localVariable.setEnd(methodEnd);
-            }
-        }
+    public void completeFunction() {
+        completeFunction(null);
     }
 
-    public void completeFunction() {
+    // The optimizer rewrites the method before its stack and locals are sized. A null optimizer keeps the
+    // instructions exactly as they were generated. Slots are then shared between variables that are never
+    // live at the same time, and the frames of any branches are recorded for the verifier.
+    public void completeFunction(PeepholeOptimizer peepholeOptimizer) {
+        if (peepholeOptimizer != null) {
+            peepholeOptimizer.optimize(methodGen);
+        }
+        var variables = new LocalVariableAllocator().allocate(methodGen);
         methodGen.setMaxLocals();
         methodGen.setMaxStack();
+        new StackMapTableGenerator().generate(methodGen, variables);
         classGen.addMethod(methodGen.getMethod());
         instructionList.dispose();
     }
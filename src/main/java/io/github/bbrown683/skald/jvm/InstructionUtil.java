@@ -1,19 +1,46 @@
 package io.github.bbrown683.skald.jvm;
 
+import io.github.bbrown683.skald.diagnostics.Diagnostics;
+import org.apache.bcel.Const;
+import org.apache.bcel.classfile.BootstrapMethod;
+import org.apache.bcel.classfile.BootstrapMethods;
 import org.apache.bcel.generic.*;
+import org.apache.bcel.util.ByteSequence;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 // Performs all necessary bytecode generation for the language.
 public class InstructionUtil {
     private ClassGen classGen;
     private ConstantPoolGen constantPoolGen;
     private final InstructionFactory instructionFactory;
+    private final List<BootstrapMethod> bootstrapMethods = new ArrayList<>();
+
+    private static final String CONCAT_BOOTSTRAP_SIGNATURE = "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;"
+            + "Ljava/lang/String;[Ljava/lang/Object;)Ljava/lang/invoke/CallSite;";
+    private static final String METAFACTORY_BOOTSTRAP_SIGNATURE = "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;"
+            + "Ljava/lang/invoke/MethodType;Ljava/lang/invoke/MethodHandle;Ljava/lang/invoke/MethodType;)Ljava/lang/invoke/CallSite;";
 
+    // One instance is meant to be shared by every method of a class, so that all of them add their
+    // constants to the same pool, where each value is stored once.
     public InstructionUtil(ClassGen classGen, ConstantPoolGen constantPoolGen) {
         this.classGen = classGen;
         this.constantPoolGen = constantPoolGen;
         instructionFactory = new InstructionFactory(classGen, constantPoolGen);
     }
 
+    public ClassGen getClassGen() {
+        return classGen;
+    }
+
+    public ConstantPoolGen getConstantPoolGen() {
+        return constantPoolGen;
+    }
+
     private void returnBoolean(InstructionList instructionList) {
         returnInt(instructionList);
     }
@@ -36,32 +63,32 @@ public class InstructionUtil {
 
     private void returnInt(InstructionList instructionList) {
         instructionList.append(new IRETURN());
-        System.out.println("Returning Int");
+        Diagnostics.trace("return", "type", "int");
     }
 
     private void returnLong(InstructionList instructionList) {
         instructionList.append(new LRETURN());
-        System.out.println("Returning Long");
+        Diagnostics.trace("return", "type", "long");
     }
 
     private void returnFloat(InstructionList instructionList) {
         instructionList.append(new FRETURN());
-        System.out.println("Returning Float");
+        Diagnostics.trace("return", "type", "float");
     }
 
     private void returnDouble(InstructionList instructionList) {
         instructionList.append(new DRETURN());
-        System.out.println("Returning Double");
+        Diagnostics.trace("return", "type", "double");
     }
 
     private void returnReference(InstructionList instructionList) {
         instructionList.append(new ARETURN());
-        System.out.println("Returning Reference");
+        Diagnostics.trace("return", "type", "reference");
     }
 
     public void returnVoid(InstructionList instructionList) {
         instructionList.append(new RETURN());
-        System.out.println("Returning Void");
+        Diagnostics.trace("return", "type", "void");
     }
 
     public InstructionList insertReturn(Type returnType) {
@@ -92,81 +119,108 @@ public class InstructionUtil {
         return instructionList;
     }
 
+    // Every push below picks the shortest encoding that produces the value: the one-byte xCONST forms,
+    // then BIPUSH and SIPUSH for ints that fit in their operand, and only then a constant-pool load.
     private void pushBoolean(InstructionList instructionList, boolean value) {
-        pushInt(instructionList, value ? 1 : 0);
+        pushIntegral(instructionList, value ? 1 : 0);
+        if (Diagnostics.isEnabled(Diagnostics.Level.TRACE)) {
+            Diagnostics.trace("push", "type", "boolean", "value", value);
+        }
     }
 
     private void pushChar(InstructionList instructionList, char value) {
-        pushByte(instructionList, (byte)value);
+        pushIntegral(instructionList, value);
+        if (Diagnostics.isEnabled(Diagnostics.Level.TRACE)) {
+            Diagnostics.trace("push", "type", "char", "value", (int) value);
+        }
     }
 
     private void pushString(InstructionList instructionList, String value) {
-        int index = constantPoolGen.addString(value);
-        instructionList.append(new LDC(index));
-        System.out.println("Pushing String: " + value);
+        loadConstant(instructionList, constantPoolGen.addString(value));
+        Diagnostics.trace("push", "type", "string", "value", value);
     }
 
     private void pushByte(InstructionList instructionList, byte value) {
-        if (value >= -1 && value <= 5) {
-            instructionList.append(new ICONST(value));
-        } else {
-            instructionList.append(new BIPUSH(value));
+        pushIntegral(instructionList, value);
+        if (Diagnostics.isEnabled(Diagnostics.Level.TRACE)) {
+            Diagnostics.trace("push", "type", "byte", "value", value);
         }
-        System.out.println("Pushing Byte: " + value);
     }
 
     private void pushShort(InstructionList instructionList, short value) {
-        if (value >= -1 && value <= 5) {
-            instructionList.append(new ICONST(value));
-        } else {
-            instructionList.append(new SIPUSH(value));
+        pushIntegral(instructionList, value);
+        if (Diagnostics.isEnabled(Diagnostics.Level.TRACE)) {
+            Diagnostics.trace("push", "type", "short", "value", value);
         }
-        System.out.println("Pushing Short: " + value);
     }
 
     private void pushInt(InstructionList instructionList, int value) {
-        if(value >= -1 && value <= 5) {
+        pushIntegral(instructionList, value);
+        if (Diagnostics.isEnabled(Diagnostics.Level.TRACE)) {
+            Diagnostics.trace("push", "type", "int", "value", value);
+        }
+    }
+
+    private void pushIntegral(InstructionList instructionList, int value) {
+        if (value >= -1 && value <= 5) {
             instructionList.append(new ICONST(value));
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            instructionList.append(new BIPUSH((byte) value));
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            instructionList.append(new SIPUSH((short) value));
         } else {
-            int index = constantPoolGen.addInteger(value);
-            instructionList.append(new LDC(index));
+            loadConstant(instructionList, constantPoolGen.addInteger(value));
         }
-        System.out.println("Pushing Int: " + value);
     }
 
     private void pushLong(InstructionList instructionList, long value) {
-        if(value == 0 || value == 1) {
+        if (value == 0 || value == 1) {
             instructionList.append(new LCONST(value));
         } else {
-            int index = constantPoolGen.addLong(value);
-            instructionList.append(new LDC(index));
+            instructionList.append(new LDC2_W(constantPoolGen.addLong(value)));
+        }
+        if (Diagnostics.isEnabled(Diagnostics.Level.TRACE)) {
+            Diagnostics.trace("push", "type", "long", "value", value);
         }
-        System.out.println("Pushing Long: " + value);
     }
 
+    // Compares bits rather than values, so that -0.0 is loaded from the pool instead of becoming +0.0.
     private void pushFloat(InstructionList instructionList, float value) {
-        if(value == 0.0 || value == 1.0 || value == 2.0) {
+        int bits = Float.floatToRawIntBits(value);
+        if (bits == Float.floatToRawIntBits(0.0f) || bits == Float.floatToRawIntBits(1.0f) || bits == Float.floatToRawIntBits(2.0f)) {
             instructionList.append(new FCONST(value));
         } else {
-            int index = constantPoolGen.addFloat(value);
-            instructionList.append(new LDC(index));
+            loadConstant(instructionList, constantPoolGen.addFloat(value));
+        }
+        if (Diagnostics.isEnabled(Diagnostics.Level.TRACE)) {
+            Diagnostics.trace("push", "type", "float", "value", value);
         }
-        System.out.println("Pushing Float: " + value);
     }
 
     private void pushDouble(InstructionList instructionList, double value) {
-        if(value == 0.0 || value == 1.0) {
+        long bits = Double.doubleToRawLongBits(value);
+        if (bits == Double.doubleToRawLongBits(0.0) || bits == Double.doubleToRawLongBits(1.0)) {
             instructionList.append(new DCONST(value));
         } else {
-            int index = instructionFactory.getConstantPool().addDouble(value);
-            instructionList.append(new LDC2_W(index));
+            instructionList.append(new LDC2_W(constantPoolGen.addDouble(value)));
+        }
+        if (Diagnostics.isEnabled(Diagnostics.Level.TRACE)) {
+            Diagnostics.trace("push", "type", "double", "value", value);
+        }
+    }
+
+    // Single-slot constants past the first 256 pool entries need the wide index of LDC_W.
+    private void loadConstant(InstructionList instructionList, int index) {
+        if (index <= Const.MAX_BYTE) {
+            instructionList.append(new LDC(index));
+        } else {
+            instructionList.append(new LDC_W(index));
         }
-        System.out.println("Pushing Double: " + value);
     }
 
     private void pushNull(InstructionList instructionList) {
         instructionList.append(InstructionConst.ACONST_NULL);
-        System.out.println("Pushing Null");
+        Diagnostics.trace("push", "type", "null");
     }
 
     public InstructionList pushLiteral(Object value) {
@@ -293,27 +347,27 @@ public class InstructionUtil {
 
     private void storeInt(InstructionList instructionList, int index) {
         instructionList.append(new ISTORE(index));
-        System.out.println("Storing Int");
+        Diagnostics.trace("store", "type", "int");
     }
 
     private void storeLong(InstructionList instructionList, int index) {
         instructionList.append(new LSTORE(index));
-        System.out.println("Storing Long");
+        Diagnostics.trace("store", "type", "long");
     }
 
     private void storeFloat(InstructionList instructionList, int index) {
         instructionList.append(new FSTORE(index));
-        System.out.println("Storing Float");
+        Diagnostics.trace("store", "type", "float");
     }
 
     private void storeDouble(InstructionList instructionList, int index) {
         instructionList.append(new DSTORE(index));
-        System.out.println("Storing Double");
+        Diagnostics.trace("store", "type", "double");
     }
 
     private void storeReference(InstructionList instructionList, int index) {
         instructionList.append(new ASTORE(index));
-        System.out.println("Storing Reference");
+        Diagnostics.trace("store", "type", "reference");
     }
 
     public InstructionList storeVariable(LocalVariableGen localVariable) {
@@ -373,6 +427,13 @@ public class InstructionUtil {
         return instructionList;
     }
 
+    // Calls a constructor of the given class on the object and arguments already on the stack.
+    public InstructionList callConstructor(String className, Type[] argumentTypes) {
+        InstructionList instructionList = new InstructionList();
+        instructionList.append(new INVOKESPECIAL(constantPoolGen.addMethodref(className, "<init>", Type.getMethodSignature(Type.VOID, argumentTypes))));
+        return instructionList;
+    }
+
     public InstructionList callFunction(String className, String methodName, Type returnType, Type[] argumentTypes, boolean isStatic) {
         int index = constantPoolGen.addMethodref(className, methodName, Type.getMethodSignature(returnType, argumentTypes));
         InstructionList instructionList = new InstructionList();
@@ -380,4 +441,434 @@ public class InstructionUtil {
         else instructionList.append(new INVOKEVIRTUAL(index));
         return instructionList;
     }
+
+    public InstructionList callInterfaceFunction(String className, String methodName, Type returnType, Type[] argumentTypes) {
+        InstructionList instructionList = new InstructionList();
+        instructionList.append(instructionFactory.createInvoke(className, methodName, returnType, argumentTypes, Const.INVOKEINTERFACE));
+        return instructionList;
+    }
+
+    // Calls the function value beneath the arguments on the stack.
+    public InstructionList callFunctionValue(FunctionType functionType) {
+        return callInterfaceFunction(functionType.getClassName(), FunctionType.METHOD_NAME, functionType.getReturnType(), functionType.getParameterTypes());
+    }
+
+    // Converts the Object on top of the stack to the given type, unboxing it when the type is a primitive.
+    public InstructionList unbox(Type type) {
+        InstructionList instructionList = new InstructionList();
+        if (!(type instanceof BasicType) && !(type instanceof UnsignedType)) {
+            if (!type.equals(Type.OBJECT)) {
+                instructionList.append(instructionFactory.createCheckCast((ReferenceType) type));
+            }
+            return instructionList;
+        }
+        var primitiveType = type instanceof UnsignedType unsignedType ? unsignedType.getStorageType() : (BasicType) type;
+        var boxType = switch (primitiveType.getType()) {
+            case Const.T_BOOLEAN -> "java.lang.Boolean";
+            case Const.T_BYTE -> "java.lang.Byte";
+            case Const.T_CHAR -> "java.lang.Character";
+            case Const.T_SHORT -> "java.lang.Short";
+            case Const.T_INT -> "java.lang.Integer";
+            case Const.T_LONG -> "java.lang.Long";
+            case Const.T_FLOAT -> "java.lang.Float";
+            case Const.T_DOUBLE -> "java.lang.Double";
+            default -> throw new IllegalArgumentException("Cannot unbox " + type);
+        };
+        instructionList.append(new CHECKCAST(constantPoolGen.addClass(boxType)));
+        instructionList.append(instructionFactory.createInvoke(boxType, primitiveType + "Value", primitiveType, Type.NO_ARGS, Const.INVOKEVIRTUAL));
+        if (Diagnostics.isEnabled(Diagnostics.Level.TRACE)) {
+            Diagnostics.trace("unbox", "type", type);
+        }
+        return instructionList;
+    }
+
+    public InstructionList arrayLength() {
+        InstructionList instructionList = new InstructionList();
+        instructionList.append(InstructionConst.ARRAYLENGTH);
+        return instructionList;
+    }
+
+    // Loads the element at the index on top of the stack from the array beneath it.
+    public InstructionList loadArrayElement(Type elementType) {
+        InstructionList instructionList = new InstructionList();
+        instructionList.append(InstructionFactory.createArrayLoad(elementType));
+        return instructionList;
+    }
+
+    public InstructionList increment(LocalVariableGen localVariable, int increment) {
+        InstructionList instructionList = new InstructionList();
+        instructionList.append(new IINC(localVariable.getIndex(), increment));
+        return instructionList;
+    }
+
+    // Throws a new exception of the given class, constructed with the message.
+    public InstructionList throwException(String className, String message) {
+        InstructionList instructionList = new InstructionList();
+        instructionList.append(instructionFactory.createNew(className));
+        instructionList.append(InstructionConst.DUP);
+        instructionList.append(pushLiteral(message));
+        instructionList.append(callConstructor(className, new Type[] { Type.STRING }));
+        instructionList.append(InstructionConst.ATHROW);
+        return instructionList;
+    }
+
+    // Discards a value of the given type from the top of the stack.
+    public InstructionList discard(Type type) {
+        InstructionList instructionList = new InstructionList();
+        if (!type.equals(Type.VOID)) {
+            instructionList.append(type.getSize() == 2 ? InstructionConst.POP2 : InstructionConst.POP);
+        }
+        return instructionList;
+    }
+
+    public InstructionList loadField(String className, String fieldName, Type fieldType) {
+        int index = constantPoolGen.addFieldref(className, fieldName, fieldType.getSignature());
+        InstructionList instructionList = new InstructionList();
+        instructionList.append(insertSelfReference());
+        instructionList.append(new GETFIELD(index));
+        return instructionList;
+    }
+
+    // Reads a field of the object on top of the stack, rather than of this.
+    public InstructionList loadObjectField(String className, String fieldName, Type fieldType) {
+        int index = constantPoolGen.addFieldref(className, fieldName, fieldType.getSignature());
+        InstructionList instructionList = new InstructionList();
+        instructionList.append(new GETFIELD(index));
+        return instructionList;
+    }
+
+    public InstructionList castTo(ObjectType type) {
+        InstructionList instructionList = new InstructionList();
+        instructionList.append(new CHECKCAST(constantPoolGen.addClass(type)));
+        if (Diagnostics.isEnabled(Diagnostics.Level.TRACE)) {
+            Diagnostics.trace("cast", "type", type.getClassName());
+        }
+        return instructionList;
+    }
+
+    public void setConstantValue(FieldGen fieldGen, Object value) {
+        if (fieldGen.getType() instanceof UnsignedType unsignedType) {
+            value = unsignedType.toStorageValue(value);
+        }
+        switch (value) {
+            case Boolean b -> fieldGen.setInitValue(b);
+            case Character c -> fieldGen.setInitValue(c);
+            case String s -> fieldGen.setInitValue(s);
+            case Byte b -> fieldGen.setInitValue(b);
+            case Short s -> fieldGen.setInitValue(s);
+            case Integer i -> fieldGen.setInitValue(i);
+            case Long l -> fieldGen.setInitValue(l);
+            case Float f -> fieldGen.setInitValue(f);
+            case Double d -> fieldGen.setInitValue(d);
+            default -> throw new RuntimeException("Unsupported constant type: " + value.getClass().getName());
+        }
+        if (Diagnostics.isEnabled(Diagnostics.Level.TRACE)) {
+            Diagnostics.trace("constant", "field", fieldGen.getName(), "value", value);
+        }
+    }
+
+    public InstructionList insertStaticField(String className, String fieldName, Type fieldType) {
+        int index = constantPoolGen.addFieldref(className, fieldName, fieldType.getSignature());
+        InstructionList instructionList = new InstructionList();
+        instructionList.append(new PUTSTATIC(index));
+        return instructionList;
+    }
+
+    // Booleans, bytes, shorts and chars are all ints on the operand stack, as are ubytes, ushorts and uints.
+    private Type getStackType(Type type) {
+        if (type instanceof UnsignedType unsignedType) {
+            return unsignedType.isWide() ? Type.LONG : Type.INT;
+        }
+        if (type.equals(Type.BOOLEAN) || type.equals(Type.BYTE) || type.equals(Type.SHORT) || type.equals(Type.CHAR)) {
+            return Type.INT;
+        }
+        return type;
+    }
+
+    // Converts the value on top of the stack, narrowing ints when the target is smaller. Unsigned values are
+    // converted by their value: a uint is zero-extended to a long first, and ubytes and ushorts are already
+    // zero-extended ints. Narrowing to a ubyte masks the low byte, and narrowing to a ushort is a char cast.
+    public InstructionList convert(Type from, Type to) {
+        InstructionList instructionList = new InstructionList();
+        if (from == to) {
+            return instructionList;
+        }
+        if (from == UnsignedType.UINT && (to.equals(Type.LONG) || to.equals(Type.FLOAT) || to.equals(Type.DOUBLE))) {
+            instructionList.append(callStatic("java.lang.Integer", "toUnsignedLong", Type.LONG, Type.INT));
+            from = Type.LONG;
+        }
+        if (from == UnsignedType.ULONG && (to.equals(Type.FLOAT) || to.equals(Type.DOUBLE))) {
+            throw new RuntimeException("Cannot convert " + from + " to " + to);
+        }
+        if (to == UnsignedType.UBYTE) {
+            instructionList.append(convert(from, Type.INT));
+            instructionList.append(pushLiteral(0xFF));
+            instructionList.append(InstructionConst.IAND);
+            Diagnostics.trace("convert", "from", from, "to", to);
+            return instructionList;
+        }
+
+        var stackType = getStackType(from);
+        var target = to instanceof UnsignedType unsignedType ? unsignedType.getStorageType() : to;
+        if (stackType.equals(target) || (stackType.equals(Type.INT) && (target.equals(Type.INT) || target.equals(Type.BOOLEAN)))) {
+            return instructionList;
+        }
+        instructionList.append(instructionFactory.createCast(stackType, target));
+        Diagnostics.trace("convert", "from", from, "to", to);
+        return instructionList;
+    }
+
+    // Unsigned division and remainder call Integer and Long, which the JIT turns into unsigned instructions.
+    // Addition, subtraction and multiplication give the same bits either way.
+    public InstructionList binaryOperation(String operator, Type type) {
+        InstructionList instructionList = new InstructionList();
+        if (type instanceof UnsignedType unsignedType && (operator.equals("/") || operator.equals("%"))) {
+            var stackType = getStackType(unsignedType);
+            var className = unsignedType.isWide() ? "java.lang.Long" : "java.lang.Integer";
+            var methodName = operator.equals("/") ? "divideUnsigned" : "remainderUnsigned";
+            instructionList.append(callStatic(className, methodName, stackType, stackType, stackType));
+        } else {
+            instructionList.append(InstructionFactory.createBinaryOperation(operator, getStackType(type)));
+        }
+        Diagnostics.trace("operation", "operator", operator, "type", type);
+        return instructionList;
+    }
+
+    public InstructionList negate(Type type) {
+        InstructionList instructionList = new InstructionList();
+        var stackType = getStackType(type);
+        if (stackType.equals(Type.INT)) {
+            instructionList.append(InstructionConst.INEG);
+        } else if (stackType.equals(Type.LONG)) {
+            instructionList.append(InstructionConst.LNEG);
+        } else if (stackType.equals(Type.FLOAT)) {
+            instructionList.append(InstructionConst.FNEG);
+        } else if (stackType.equals(Type.DOUBLE)) {
+            instructionList.append(InstructionConst.DNEG);
+        } else {
+            throw new RuntimeException("Operator - cannot be applied to " + type);
+        }
+        Diagnostics.trace("negate", "type", type);
+        return instructionList;
+    }
+
+    // Compares the two values on top of the stack without branching. The values are first compared three
+    // ways, which answers ordering through the sign of the result and equality through its low bit, except
+    // for ints, whose equality is tested on their xor. Floating-point comparisons pick the instruction that
+    // makes NaN fail the test.
+    public InstructionList compare(String operator, Type type) {
+        InstructionList instructionList = new InstructionList();
+        var stackType = getStackType(type);
+        boolean isUnsigned = type instanceof UnsignedType;
+        boolean isNaNGreater = operator.equals("<") || operator.equals("<=");
+        boolean isEquality = operator.equals("==") || operator.equals("!=");
+        // Integer.compare and the compareUnsigned methods only promise the sign of their result, unlike lcmp and
+        // the floating-point compares, which push exactly -1, 0 or 1.
+        boolean isSignOnly = false;
+        if (stackType.equals(Type.INT) && isEquality) {
+            // Equality does not depend on the sign, so no compare is called: the xor is zero only when the values
+            // are equal, and (v | -v) >>> 31 is 1 for any other value.
+            instructionList.append(InstructionConst.IXOR);
+            instructionList.append(InstructionConst.DUP);
+            instructionList.append(InstructionConst.INEG);
+            instructionList.append(InstructionConst.IOR);
+        } else if (stackType.equals(Type.INT)) {
+            instructionList.append(callStatic("java.lang.Integer", isUnsigned ? "compareUnsigned" : "compare", Type.INT, Type.INT, Type.INT));
+            isSignOnly = true;
+        } else if (stackType.equals(Type.LONG)) {
+            if (isUnsigned && !isEquality) {
+                instructionList.append(callStatic("java.lang.Long", "compareUnsigned", Type.INT, Type.LONG, Type.LONG));
+                isSignOnly = true;
+            } else {
+                instructionList.append(InstructionConst.LCMP);
+            }
+        } else if (stackType.equals(Type.FLOAT)) {
+            instructionList.append(isNaNGreater ? InstructionConst.FCMPG : InstructionConst.FCMPL);
+        } else if (stackType.equals(Type.DOUBLE)) {
+            instructionList.append(isNaNGreater ? InstructionConst.DCMPG : InstructionConst.DCMPL);
+        } else {
+            throw new RuntimeException("Operator " + operator + " cannot be applied to " + type);
+        }
+        if (isSignOnly && (operator.equals(">") || operator.equals("<="))) { // Negating Integer.MIN_VALUE keeps the sign
+            instructionList.append(callStatic("java.lang.Integer", "signum", Type.INT, Type.INT));
+        }
+
+        switch (operator) {
+            case "<", ">=" -> { // The sign bit is set when less
+                instructionList.append(pushLiteral(31));
+                instructionList.append(InstructionConst.IUSHR);
+            }
+            case ">", "<=" -> { // The sign bit of the negation is set when greater
+                instructionList.append(InstructionConst.INEG);
+                instructionList.append(pushLiteral(31));
+                instructionList.append(InstructionConst.IUSHR);
+            }
+            default -> {
+                if (stackType.equals(Type.INT)) { // The sign bit of (v | -v) is set when not equal
+                    instructionList.append(pushLiteral(31));
+                    instructionList.append(InstructionConst.IUSHR);
+                } else { // The low bit of -1, 0 or 1 is set when not equal
+                    instructionList.append(InstructionConst.ICONST_1);
+                    instructionList.append(InstructionConst.IAND);
+                }
+            }
+        }
+        if (operator.equals(">=") || operator.equals("<=") || operator.equals("==")) {
+            instructionList.append(InstructionConst.ICONST_1);
+            instructionList.append(InstructionConst.IXOR);
+        }
+        Diagnostics.trace("compare", "operator", operator, "type", type);
+        return instructionList;
+    }
+
+    // Chooses between a tableswitch and a lookupswitch the way javac does: a table covering every value from
+    // the smallest key to the largest is weighed against a sorted list of the keys, counting the time to
+    // find a key three times as heavily as the space. The targets are set once the cases are generated.
+    public Select createSwitch(int[] keys) {
+        var sorted = keys.clone();
+        Arrays.sort(sorted);
+        long range = (long) sorted[sorted.length - 1] - sorted[0] + 1;
+        long tableCost = (4 + range) + 3 * 3;
+        long lookupCost = (3 + 2L * sorted.length) + 3L * sorted.length;
+        if (Diagnostics.isEnabled(Diagnostics.Level.TRACE)) {
+            Diagnostics.log(Diagnostics.Level.TRACE, "switch", "keys", sorted.length, "range", range, "table", tableCost <= lookupCost);
+        }
+        if (tableCost <= lookupCost) {
+            var match = new int[(int) range];
+            for (int i = 0; i < match.length; i++) {
+                match[i] = sorted[0] + i;
+            }
+            return new TABLESWITCH(match, new InstructionHandle[match.length], null);
+        }
+        return new LOOKUPSWITCH(sorted, new InstructionHandle[sorted.length], null);
+    }
+
+    private Instruction callStatic(String className, String methodName, Type returnType, Type... argumentTypes) {
+        return instructionFactory.createInvoke(className, methodName, returnType, argumentTypes, Const.INVOKESTATIC);
+    }
+
+    // Adds a bootstrap method to the BootstrapMethods attribute of the class and returns its index. Arguments
+    // are constant pool indices, and call sites with the same bootstrap method and arguments share an entry.
+    public int addBootstrapMethod(String className, String methodName, String signature, int... arguments) {
+        var dynamicConstantPoolGen = getDynamicConstantPoolGen();
+        int methodHandleIndex = dynamicConstantPoolGen.addStaticMethodHandle(className, methodName, signature);
+        for (int i = 0; i < bootstrapMethods.size(); i++) {
+            var bootstrapMethod = bootstrapMethods.get(i);
+            if (bootstrapMethod.getBootstrapMethodRef() == methodHandleIndex && Arrays.equals(bootstrapMethod.getBootstrapArguments(), arguments)) {
+                return i;
+            }
+        }
+        bootstrapMethods.add(new BootstrapMethod(methodHandleIndex, arguments));
+
+        // The attribute is replaced as a whole, as its length covers every entry.
+        for (var attribute : classGen.getAttributes()) {
+            if (attribute instanceof BootstrapMethods) {
+                classGen.removeAttribute(attribute);
+            }
+        }
+        int length = 2; // num_bootstrap_methods
+        for (var bootstrapMethod : bootstrapMethods) {
+            length += 4 + 2 * bootstrapMethod.getNumBootstrapArguments();
+        }
+        classGen.addAttribute(new BootstrapMethods(constantPoolGen.addUtf8("BootstrapMethods"), length,
+                bootstrapMethods.toArray(new BootstrapMethod[0]), constantPoolGen.getConstantPool()));
+        if (Diagnostics.isEnabled(Diagnostics.Level.TRACE)) {
+            Diagnostics.trace("bootstrap", "method", methodName, "index", bootstrapMethods.size() - 1);
+        }
+        return bootstrapMethods.size() - 1;
+    }
+
+    public InstructionList invokeDynamic(int bootstrapMethodIndex, String name, Type returnType, Type[] argumentTypes) {
+        int index = getDynamicConstantPoolGen().addInvokeDynamic(bootstrapMethodIndex, name, Type.getMethodSignature(returnType, argumentTypes));
+        InstructionList instructionList = new InstructionList();
+        instructionList.append(createInvokeDynamic(index));
+        return instructionList;
+    }
+
+    // Creates a function value that calls a static method of the given class, which takes the captured values
+    // on the stack followed by the function's parameters. LambdaMetafactory spins a class implementing the
+    // function's interface once per call site. A call site without captures is linked to a single instance of
+    // it, so a function that captures nothing is allocated once, and every later evaluation returns it.
+    public InstructionList createFunction(FunctionType functionType, String className, String methodName, Type[] capturedTypes) {
+        var dynamicConstantPoolGen = getDynamicConstantPoolGen();
+        var parameterTypes = functionType.getParameterTypes();
+        var methodTypes = Arrays.copyOf(capturedTypes, capturedTypes.length + parameterTypes.length);
+        System.arraycopy(parameterTypes, 0, methodTypes, capturedTypes.length, parameterTypes.length);
+
+        int interfaceMethodType = dynamicConstantPoolGen.addMethodType(functionType.getMethodSignature());
+        int methodHandle = dynamicConstantPoolGen.addStaticMethodHandle(className, methodName, Type.getMethodSignature(functionType.getReturnType(), methodTypes));
+        int bootstrapMethodIndex = addBootstrapMethod("java.lang.invoke.LambdaMetafactory", "metafactory", METAFACTORY_BOOTSTRAP_SIGNATURE,
+                interfaceMethodType, methodHandle, interfaceMethodType);
+        if (Diagnostics.isEnabled(Diagnostics.Level.TRACE)) {
+            Diagnostics.trace("function", "method", methodName, "captures", capturedTypes.length);
+        }
+        return invokeDynamic(bootstrapMethodIndex, FunctionType.METHOD_NAME, functionType, capturedTypes);
+    }
+
+    // BCEL's INVOKEDYNAMIC constructor leaves the instruction 3 bytes long instead of 5, which would shift
+    // every later offset of the method, so it is read from its encoding instead.
+    private Instruction createInvokeDynamic(int index) {
+        var bytes = new byte[] { (byte) Const.INVOKEDYNAMIC, (byte) (index >>> 8), (byte) index, 0, 0 };
+        try {
+            return Instruction.readInstruction(new ByteSequence(bytes));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private DynamicConstantPoolGen getDynamicConstantPoolGen() {
+        if (constantPoolGen instanceof DynamicConstantPoolGen dynamicConstantPoolGen) {
+            return dynamicConstantPoolGen;
+        }
+        throw new IllegalStateException("Class " + classGen.getClassName() + " was not created with a DynamicConstantPoolGen");
+    }
+
+    // Calls the concatenation early when it has no room left for an argument of the given type. Its result
+    // is then the first argument of the rest of the join.
+    public InstructionList reserveConcatArgument(StringConcatenation concatenation, Type type) {
+        InstructionList instructionList = new InstructionList();
+        if (!concatenation.hasRoomFor(getConcatArgumentType(type))) {
+            instructionList.append(concatenate(concatenation));
+            concatenation.continueFromResult();
+        }
+        return instructionList;
+    }
+
+    // Adds the value on top of the stack to the arguments of the concatenation. uints and ulongs are passed
+    // as their unsigned string, and ubytes and ushorts as the int they are on the stack.
+    public InstructionList appendConcatArgument(StringConcatenation concatenation, Type type) {
+        InstructionList instructionList = new InstructionList();
+        if (type == UnsignedType.UINT || type == UnsignedType.ULONG) {
+            var className = type == UnsignedType.ULONG ? "java.lang.Long" : "java.lang.Integer";
+            instructionList.append(callStatic(className, "toUnsignedString", Type.STRING, getStackType(type)));
+        }
+        concatenation.appendArgument(getConcatArgumentType(type));
+        return instructionList;
+    }
+
+    private Type getConcatArgumentType(Type type) {
+        if (type == UnsignedType.UINT || type == UnsignedType.ULONG) {
+            return Type.STRING;
+        }
+        if (type instanceof UnsignedType) {
+            return Type.INT;
+        }
+        return type;
+    }
+
+    // Joins the pushed arguments of the concatenation with one invokedynamic. The JDK links the call site
+    // to a strategy specialized for the recipe and argument types, which sizes the string exactly once.
+    public InstructionList concatenate(StringConcatenation concatenation) {
+        var constants = concatenation.getConstants();
+        var arguments = new int[1 + constants.size()];
+        arguments[0] = constantPoolGen.addString(concatenation.getRecipe());
+        for (int i = 0; i < constants.size(); i++) {
+            arguments[i + 1] = constantPoolGen.addString(constants.get(i));
+        }
+        int bootstrapMethodIndex = addBootstrapMethod("java.lang.invoke.StringConcatFactory", "makeConcatWithConstants", CONCAT_BOOTSTRAP_SIGNATURE, arguments);
+        if (Diagnostics.isEnabled(Diagnostics.Level.TRACE)) {
+            Diagnostics.trace("concat", "arguments", concatenation.getArgumentTypes().size());
+        }
+        return invokeDynamic(bootstrapMethodIndex, "makeConcatWithConstants", Type.STRING, concatenation.getArgumentTypes().toArray(new Type[0]));
+    }
 }
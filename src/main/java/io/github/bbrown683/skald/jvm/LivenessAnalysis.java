@@ -0,0 +1,99 @@
+package io.github.bbrown683.skald.jvm;
+
+import org.apache.bcel.generic.*;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+// Computes which local variable slots hold a value that is read later, at every instruction of a method.
+// A slot is live from a store until the last load that can see that store, following every branch, so a
+// variable read inside a loop stays live around the whole loop.
+public final class LivenessAnalysis {
+    private final InstructionHandle[] handles;
+    private final Map<InstructionHandle, Integer> positions = new HashMap<>();
+    private final BitSet[] liveIn;
+    private final BitSet[] liveOut;
+
+    public LivenessAnalysis(InstructionList instructionList) {
+        handles = instructionList.getInstructionHandles();
+        for (int i = 0; i < handles.length; i++) {
+            positions.put(handles[i], i);
+        }
+        liveIn = new BitSet[handles.length];
+        liveOut = new BitSet[handles.length];
+        for (int i = 0; i < handles.length; i++) {
+            liveIn[i] = new BitSet();
+            liveOut[i] = new BitSet();
+        }
+        solve();
+    }
+
+    // Iterates backwards until no live set grows. Code is mostly straight-line, so this takes one pass
+    // plus one more for each loop.
+    private void solve() {
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = handles.length - 1; i >= 0; i--) {
+                var out = new BitSet();
+                for (int successor : getSuccessors(i)) {
+                    out.or(liveIn[successor]);
+                }
+                var in = (BitSet) out.clone();
+                var instruction = handles[i].getInstruction();
+                if (instruction instanceof StoreInstruction store) {
+                    in.clear(store.getIndex());
+                } else if (instruction instanceof LoadInstruction load) {
+                    in.set(load.getIndex());
+                } else if (instruction instanceof IINC increment) {
+                    in.set(increment.getIndex());
+                } else if (instruction instanceof RET ret) {
+                    in.set(ret.getIndex());
+                }
+                if (!out.equals(liveOut[i]) || !in.equals(liveIn[i])) {
+                    liveOut[i] = out;
+                    liveIn[i] = in;
+                    changed = true;
+                }
+            }
+        }
+    }
+
+    public int[] getSuccessors(int position) {
+        var instruction = handles[position].getInstruction();
+        boolean fallsThrough = !(instruction instanceof GotoInstruction || instruction instanceof ReturnInstruction
+                || instruction instanceof ATHROW || instruction instanceof Select || instruction instanceof RET);
+        var successors = new BitSet();
+        if (fallsThrough && position + 1 < handles.length) {
+            successors.set(position + 1);
+        }
+        if (instruction instanceof BranchInstruction branch) {
+            successors.set(positions.get(branch.getTarget()));
+            if (branch instanceof Select select) {
+                for (var target : select.getTargets()) {
+                    successors.set(positions.get(target));
+                }
+            }
+        }
+        return successors.stream().toArray();
+    }
+
+    public InstructionHandle[] getHandles() {
+        return handles;
+    }
+
+    public int getPosition(InstructionHandle handle) {
+        return positions.get(handle);
+    }
+
+    // Slots read before being written on some path starting at the instruction.
+    public BitSet getLiveIn(int position) {
+        return liveIn[position];
+    }
+
+    // Slots read before being written on some path starting after the instruction.
+    public BitSet getLiveOut(int position) {
+        return liveOut[position];
+    }
+}
@@ -0,0 +1,135 @@
+package io.github.bbrown683.skald.jvm;
+
+import org.apache.bcel.Const;
+import org.apache.bcel.generic.*;
+
+import java.util.*;
+
+// Reassigns local variable slots after a method is generated, the way a register allocator assigns registers.
+// The generator gives every variable a slot of its own. Here each slot is replaced by the span of the method
+// where its value is live, and spans that do not overlap share a slot, lowest first. Variables declared in
+// sibling blocks, or whose last read comes before another's first write, end up in the same slot, which keeps
+// max_locals small. The local variable table is narrowed to the same spans.
+//
+// The receiver and parameters keep the slots the calling convention gives them.
+public class LocalVariableAllocator {
+    // A value held in a slot from the instruction at start to the one at end, as positions in the method.
+    public record Variable(int slot, Type type, int start, int end) {
+        public boolean contains(int position) {
+            return position >= start && position <= end;
+        }
+    }
+
+    // Returns every variable of the method, including the receiver and parameters, by the slot it now uses.
+    public List<Variable> allocate(MethodGen methodGen) {
+        var instructionList = methodGen.getInstructionList();
+        var constantPoolGen = methodGen.getConstantPool();
+        var liveness = new LivenessAnalysis(instructionList);
+        var handles = liveness.getHandles();
+        int lastPosition = Math.max(handles.length - 1, 0);
+
+        var variables = new ArrayList<Variable>();
+        int parameterSlots = 0;
+        if (!methodGen.isStatic()) {
+            variables.add(new Variable(parameterSlots++, new ObjectType(methodGen.getClassName()), 0, lastPosition));
+        }
+        for (var argumentType : methodGen.getArgumentTypes()) {
+            variables.add(new Variable(parameterSlots, argumentType, 0, lastPosition));
+            parameterSlots += argumentType.getSize();
+        }
+
+        // The span of each generated slot covers every instruction it is live at or written by.
+        var spans = new TreeMap<Integer, int[]>();
+        var types = new HashMap<Integer, Type>();
+        for (int position = 0; position < handles.length; position++) {
+            var live = (BitSet) liveness.getLiveIn(position).clone();
+            live.or(liveness.getLiveOut(position));
+            if (handles[position].getInstruction() instanceof LocalVariableInstruction instruction) {
+                live.set(instruction.getIndex());
+                types.putIfAbsent(instruction.getIndex(), instruction.getType(constantPoolGen));
+            }
+            for (int slot = live.nextSetBit(parameterSlots); slot >= 0; slot = live.nextSetBit(slot + 1)) {
+                var span = spans.computeIfAbsent(slot, k -> new int[] { Integer.MAX_VALUE, -1 });
+                span[0] = Math.min(span[0], position);
+                span[1] = Math.max(span[1], position);
+            }
+        }
+
+        // Declared variables know their precise type, where a store only knows it holds a reference.
+        var localVariables = new HashMap<Integer, LocalVariableGen>();
+        for (var localVariable : methodGen.getLocalVariables()) {
+            int slot = localVariable.getIndex();
+            if (slot < parameterSlots) { // Parameters hold their value for the whole method
+                localVariable.setStart(handles[0]);
+                localVariable.setEnd(handles[lastPosition]);
+                continue;
+            }
+            if (!spans.containsKey(slot)) { // Never written or read, so there is nothing to describe
+                methodGen.removeLocalVariable(localVariable);
+                continue;
+            }
+            localVariables.put(slot, localVariable);
+            types.put(slot, localVariable.getType());
+        }
+
+        // Linear scan over the spans in order of their start, reusing the slots of spans that have ended.
+        var order = new ArrayList<>(spans.keySet());
+        order.sort(Comparator.comparingInt(slot -> spans.get(slot)[0]));
+        var assignments = new HashMap<Integer, Integer>();
+        var active = new PriorityQueue<Integer>(Comparator.comparingInt(slot -> spans.get(slot)[1]));
+        var occupied = new BitSet();
+        for (int slot : order) {
+            var span = spans.get(slot);
+            while (!active.isEmpty() && spans.get(active.peek())[1] < span[0]) {
+                int ended = active.poll();
+                int assigned = assignments.get(ended);
+                occupied.clear(assigned, assigned + types.get(ended).getSize());
+            }
+            int size = types.get(slot).getSize();
+            int assigned = parameterSlots;
+            while (occupied.get(assigned, assigned + size).cardinality() > 0) {
+                assigned++;
+            }
+            occupied.set(assigned, assigned + size);
+            assignments.put(slot, assigned);
+            active.add(slot);
+            variables.add(new Variable(assigned, types.get(slot), span[0], span[1]));
+        }
+
+        // Instructions are replaced rather than changed, since BCEL shares one instance of the short forms.
+        for (var handle : handles) {
+            var instruction = handle.getInstruction();
+            if (instruction instanceof LocalVariableInstruction localInstruction && localInstruction.getIndex() >= parameterSlots) {
+                int assigned = assignments.get(localInstruction.getIndex());
+                if (instruction instanceof IINC increment) {
+                    handle.setInstruction(new IINC(assigned, increment.getIncrement()));
+                } else if (instruction instanceof LoadInstruction load) {
+                    handle.setInstruction(InstructionFactory.createLoad(getStackType(load), assigned));
+                } else if (instruction instanceof StoreInstruction store) {
+                    handle.setInstruction(InstructionFactory.createStore(getStackType(store), assigned));
+                }
+            }
+        }
+
+        // A variable is described from the instruction after its first write through its last read. BCEL
+        // ends the range before the end instruction, unless it is the last one of the method.
+        localVariables.forEach((slot, localVariable) -> {
+            var span = spans.get(slot);
+            int start = Math.min(span[0] + 1, lastPosition);
+            localVariable.setIndex(assignments.get(slot));
+            localVariable.setStart(handles[start]);
+            localVariable.setEnd(handles[Math.min(Math.max(span[1] + 1, start), lastPosition)]);
+        });
+        return variables;
+    }
+
+    private Type getStackType(LocalVariableInstruction instruction) {
+        return switch (instruction.getCanonicalTag()) {
+            case Const.ILOAD, Const.ISTORE -> Type.INT;
+            case Const.LLOAD, Const.LSTORE -> Type.LONG;
+            case Const.FLOAD, Const.FSTORE -> Type.FLOAT;
+            case Const.DLOAD, Const.DSTORE -> Type.DOUBLE;
+            default -> Type.OBJECT;
+        };
+    }
+}
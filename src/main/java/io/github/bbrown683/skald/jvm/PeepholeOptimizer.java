@@ -0,0 +1,269 @@
+package io.github.bbrown683.skald.jvm;
+
+import io.github.bbrown683.skald.diagnostics.Diagnostics;
+import org.apache.bcel.Const;
+import org.apache.bcel.generic.*;
+import org.apache.bcel.util.InstructionFinder;
+
+import java.util.HashSet;
+import java.util.Set;
+
+// Rewrites short instruction sequences of a method into cheaper equivalents before it is completed.
+// The generator emits every variable as a push followed by a store, and every read as a load, which leaves
+// sequences that only shuffle values between the stack and the locals. Each pass is repeated until none
+// of them changes the method, as removing one sequence often exposes another.
+//
+// Sequences are only rewritten when no branch jumps into their middle, since another path could arrive
+// there with a different stack or different locals.
+public class PeepholeOptimizer {
+    public static final boolean DEFAULT_ENABLED = !Boolean.getBoolean("skald.optimizer.off");
+
+    private static final String LOAD_STORE = "LoadInstruction StoreInstruction";
+    private static final String STORE_LOAD = "StoreInstruction LoadInstruction";
+    private static final String PUSH_POP = "PushInstruction (POP | POP2)";
+
+    // Returns the number of instructions removed from the method.
+    public int optimize(MethodGen methodGen) {
+        var instructionList = methodGen.getInstructionList();
+        int originalLength = instructionList.getLength();
+        var constantPoolGen = methodGen.getConstantPool();
+
+        boolean changed = true;
+        while (changed) {
+            changed = removeLoadStorePairs(instructionList);
+            changed |= forwardStoredValues(instructionList);
+            changed |= removeDeadStores(methodGen, constantPoolGen);
+            changed |= removePushPopPairs(instructionList, constantPoolGen);
+            changed |= shrinkJumps(instructionList);
+            changed |= removeLabels(instructionList);
+        }
+
+        int removed = originalLength - instructionList.getLength();
+        Diagnostics.debug("peephole", "method", methodGen.getName(), "removed", removed);
+        return removed;
+    }
+
+    // Loading a local and storing it straight back into the same slot changes nothing.
+    private boolean removeLoadStorePairs(InstructionList instructionList) {
+        boolean changed = false;
+        var finder = new InstructionFinder(instructionList);
+        for (var iterator = finder.search(LOAD_STORE); iterator.hasNext(); ) {
+            var match = iterator.next();
+            var load = (LoadInstruction) match[0].getInstruction();
+            var store = (StoreInstruction) match[1].getInstruction();
+            if (load.getIndex() == store.getIndex() && isSameKind(load, store)
+                    && !isBranchTarget(match[1]) && isPresent(instructionList, match)) {
+                delete(instructionList, match[0], match[1]);
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    // A value that is stored and then immediately loaded again is duplicated before the store instead,
+    // which leaves the store on its own when nothing else reads the slot.
+    private boolean forwardStoredValues(InstructionList instructionList) {
+        boolean changed = false;
+        var finder = new InstructionFinder(instructionList);
+        for (var iterator = finder.search(STORE_LOAD); iterator.hasNext(); ) {
+            var match = iterator.next();
+            var store = (StoreInstruction) match[0].getInstruction();
+            var load = (LoadInstruction) match[1].getInstruction();
+            if (store.getIndex() == load.getIndex() && isSameKind(load, store)
+                    && !isBranchTarget(match[1]) && isPresent(instructionList, match)) {
+                var duplicate = load.getCanonicalTag() == Const.LLOAD || load.getCanonicalTag() == Const.DLOAD ? InstructionConst.DUP2 : InstructionConst.DUP;
+                var duplicateHandle = instructionList.insert(match[0], duplicate);
+                retarget(match[0], duplicateHandle);
+                delete(instructionList, match[1], match[1]);
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    // A store to a slot that no instruction of the method reads is replaced by a pop, and the slot's
+    // entries are dropped from the local variable table, so the pop can cancel out the push before it.
+    private boolean removeDeadStores(MethodGen methodGen, ConstantPoolGen constantPoolGen) {
+        var instructionList = methodGen.getInstructionList();
+        var readSlots = new HashSet<Integer>();
+        for (var handle : instructionList.getInstructionHandles()) {
+            if (handle.getInstruction() instanceof LoadInstruction load) {
+                readSlots.add(load.getIndex());
+            } else if (handle.getInstruction() instanceof IINC increment) {
+                readSlots.add(increment.getIndex());
+            } else if (handle.getInstruction() instanceof RET ret) {
+                readSlots.add(ret.getIndex());
+            }
+        }
+
+        int parameterSlots = methodGen.isStatic() ? 0 : 1;
+        for (var argumentType : methodGen.getArgumentTypes()) {
+            parameterSlots += argumentType.getSize();
+        }
+
+        boolean changed = false;
+        Set<Integer> deadSlots = new HashSet<>();
+        for (var handle : instructionList.getInstructionHandles()) {
+            if (handle.getInstruction() instanceof StoreInstruction store && !readSlots.contains(store.getIndex())) {
+                var pop = store.getType(constantPoolGen).getSize() == 2 ? InstructionConst.POP2 : InstructionConst.POP;
+                handle.setInstruction(pop);
+                deadSlots.add(store.getIndex());
+                changed = true;
+            } else if (handle.getInstruction() instanceof IINC increment && !readSlots.contains(increment.getIndex())) {
+                delete(instructionList, handle, handle);
+                deadSlots.add(increment.getIndex());
+                changed = true;
+            }
+        }
+        for (var localVariable : methodGen.getLocalVariables()) {
+            if (deadSlots.contains(localVariable.getIndex()) && localVariable.getIndex() >= parameterSlots) {
+                methodGen.removeLocalVariable(localVariable);
+            }
+        }
+        return changed;
+    }
+
+    // Pushing a value without side effects only to pop it again does nothing.
+    private boolean removePushPopPairs(InstructionList instructionList, ConstantPoolGen constantPoolGen) {
+        boolean changed = false;
+        var finder = new InstructionFinder(instructionList);
+        for (var iterator = finder.search(PUSH_POP); iterator.hasNext(); ) {
+            var match = iterator.next();
+            var push = match[0].getInstruction();
+            var pop = match[1].getInstruction();
+            boolean isPure = push instanceof ConstantPushInstruction || push instanceof LDC || push instanceof LDC2_W
+                    || push instanceof LoadInstruction || push instanceof ACONST_NULL || push instanceof DUP || push instanceof DUP2;
+            int pushed = push.produceStack(constantPoolGen) - push.consumeStack(constantPoolGen); // A DUP consumes one and produces two
+            if (isPure && pushed == pop.consumeStack(constantPoolGen)
+                    && !isBranchTarget(match[1]) && isPresent(instructionList, match)) {
+                delete(instructionList, match[0], match[1]);
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    // Jumps to the next instruction are removed, jumps to jumps go straight to the final target, and jumps
+    // to a return become that return. Wide gotos are narrowed, since BCEL widens them again when needed.
+    // Code that follows an unconditional transfer and that nothing jumps to is unreachable and removed.
+    private boolean shrinkJumps(InstructionList instructionList) {
+        boolean changed = false;
+        for (var handle : instructionList.getInstructionHandles()) {
+            if (!instructionList.contains(handle)) {
+                continue;
+            }
+            if (handle.getInstruction() instanceof BranchInstruction branch) {
+                var target = getFinalTarget(branch.getTarget());
+                if (target != branch.getTarget()) {
+                    branch.setTarget(target);
+                    changed = true;
+                }
+                if (branch instanceof GOTO_W) {
+                    handle.setInstruction(new GOTO(target));
+                    changed = true;
+                }
+                if (branch instanceof GotoInstruction) {
+                    if (target == handle.getNext()) {
+                        delete(instructionList, handle, handle);
+                        changed = true;
+                        continue;
+                    }
+                    if (target.getInstruction() instanceof ReturnInstruction returnInstruction) { // A branch handle cannot hold a return
+                        var returnHandle = instructionList.insert(handle, returnInstruction.copy());
+                        retarget(handle, returnHandle);
+                        delete(instructionList, handle, handle);
+                        handle = returnHandle;
+                        changed = true;
+                    }
+                }
+            }
+
+            var instruction = handle.getInstruction();
+            if (instruction instanceof GotoInstruction || instruction instanceof ReturnInstruction || instruction instanceof ATHROW) {
+                var first = handle.getNext();
+                if (first != null && !isBranchTarget(first)) {
+                    var last = first;
+                    while (last.getNext() != null && !isBranchTarget(last.getNext())) {
+                        last = last.getNext();
+                    }
+                    delete(instructionList, first, last);
+                    changed = true;
+                }
+            }
+        }
+        return changed;
+    }
+
+    // The generator places a nop wherever a branch lands. Deleting it moves the branch to the next instruction.
+    private boolean removeLabels(InstructionList instructionList) {
+        boolean changed = false;
+        for (var handle : instructionList.getInstructionHandles()) {
+            if (handle.getInstruction() instanceof NOP && handle.getNext() != null) {
+                delete(instructionList, handle, handle);
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    private InstructionHandle getFinalTarget(InstructionHandle target) {
+        var visited = new HashSet<InstructionHandle>();
+        while (target.getInstruction() instanceof GotoInstruction jump && visited.add(target)) {
+            target = jump.getTarget();
+        }
+        return target;
+    }
+
+    // Only branches and exception handlers carry control flow. Local variable ranges and line numbers
+    // also target handles, but simply move along with the instructions they point at.
+    private boolean isBranchTarget(InstructionHandle handle) {
+        if (handle.hasTargeters()) {
+            for (var targeter : handle.getTargeters()) {
+                if (targeter instanceof BranchInstruction || targeter instanceof CodeExceptionGen) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    // Matches found before an earlier rewrite of the same pass may refer to deleted handles.
+    private boolean isPresent(InstructionList instructionList, InstructionHandle[] match) {
+        for (var handle : match) {
+            if (!instructionList.contains(handle)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Moves branches and line numbers to an instruction inserted ahead of the given one. Local variable
+    // ranges stay where they are, and move on when the original instruction is deleted.
+    private void retarget(InstructionHandle from, InstructionHandle to) {
+        if (from.hasTargeters()) {
+            for (var targeter : from.getTargeters()) {
+                if (!(targeter instanceof LocalVariableGen)) {
+                    targeter.updateTarget(from, to);
+                }
+            }
+        }
+    }
+
+    private boolean isSameKind(LoadInstruction load, StoreInstruction store) {
+        return load.getCanonicalTag() - Const.ILOAD == store.getCanonicalTag() - Const.ISTORE;
+    }
+
+    // Anything still pointing at the deleted instructions is moved to the instruction after them.
+    private void delete(InstructionList instructionList, InstructionHandle first, InstructionHandle last) {
+        var next = last.getNext() != null ? last.getNext() : first.getPrev();
+        try {
+            instructionList.delete(first, last);
+        } catch (TargetLostException e) {
+            for (var target : e.getTargets()) {
+                for (var targeter : target.getTargeters()) {
+                    targeter.updateTarget(target, next);
+                }
+            }
+        }
+    }
+}
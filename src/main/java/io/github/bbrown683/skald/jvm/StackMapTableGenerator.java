@@ -0,0 +1,148 @@
+package io.github.bbrown683.skald.jvm;
+
+import org.apache.bcel.Const;
+import org.apache.bcel.classfile.ConstantPool;
+import org.apache.bcel.classfile.StackMap;
+import org.apache.bcel.classfile.StackMapEntry;
+import org.apache.bcel.classfile.StackMapType;
+import org.apache.bcel.generic.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Writes the StackMapTable attribute that class files from Java 7 on need in every method that branches.
+// A frame is recorded at each branch target and after each unconditional jump, return or throw. Statements
+// never leave values on the operand stack, so the stack of every frame is empty, and its locals are the
+// slots that are live there, typed by the variable the allocator placed in them. Slots that are not live
+// are left as top, which every path can reach the frame with.
+public class StackMapTableGenerator {
+    public void generate(MethodGen methodGen, List<LocalVariableAllocator.Variable> variables) {
+        var instructionList = methodGen.getInstructionList();
+        instructionList.setPositions();
+        var liveness = new LivenessAnalysis(instructionList);
+        var handles = liveness.getHandles();
+        var constantPoolGen = methodGen.getConstantPool();
+
+        var previousLocals = getInitialLocals(methodGen, constantPoolGen);
+        var entries = new ArrayList<StackMapEntry>();
+        int previousOffset = -1;
+        int length = 2; // number_of_entries
+        for (int position = 1; position < handles.length; position++) {
+            if (!needsFrame(handles[position], handles[position - 1].getInstruction())) {
+                continue;
+            }
+            var locals = getLocals(liveness, position, variables, constantPoolGen);
+            int offset = handles[position].getPosition();
+            int offsetDelta = previousOffset < 0 ? offset : offset - previousOffset - 1;
+            var constantPool = constantPoolGen.getConstantPool();
+            if (Arrays.equals(locals, previousLocals)) {
+                if (offsetDelta <= Const.SAME_FRAME_MAX) {
+                    entries.add(new StackMapEntry(Const.SAME_FRAME + offsetDelta, offsetDelta, null, null, constantPool));
+                    length += 1;
+                } else {
+                    entries.add(new StackMapEntry(Const.SAME_FRAME_EXTENDED, offsetDelta, null, null, constantPool));
+                    length += 3;
+                }
+            } else {
+                var types = new StackMapType[locals.length];
+                for (int i = 0; i < locals.length; i++) {
+                    types[i] = locals[i].toStackMapType(constantPool);
+                    length += locals[i].hasIndex() ? 3 : 1;
+                }
+                entries.add(new StackMapEntry(Const.FULL_FRAME, offsetDelta, types, null, constantPool));
+                length += 7; // frame_type, offset_delta, number_of_locals and number_of_stack_items
+            }
+            previousLocals = locals;
+            previousOffset = offset;
+        }
+
+        for (var attribute : methodGen.getCodeAttributes()) {
+            if (attribute instanceof StackMap) {
+                methodGen.removeCodeAttribute(attribute);
+            }
+        }
+        if (!entries.isEmpty()) {
+            int nameIndex = constantPoolGen.addUtf8("StackMapTable");
+            methodGen.addCodeAttribute(new StackMap(nameIndex, length, entries.toArray(new StackMapEntry[0]), constantPoolGen.getConstantPool()));
+        }
+    }
+
+    // Verification types are compared by value to find frames that repeat the previous one.
+    private record VerificationType(byte tag, int index) {
+        private static final VerificationType TOP = new VerificationType(Const.ITEM_Bogus, -1);
+
+        boolean hasIndex() {
+            return tag == Const.ITEM_Object || tag == Const.ITEM_NewObject;
+        }
+
+        StackMapType toStackMapType(ConstantPool constantPool) {
+            return new StackMapType(tag, index, constantPool);
+        }
+    }
+
+    private boolean needsFrame(InstructionHandle handle, Instruction previous) {
+        if (previous instanceof GotoInstruction || previous instanceof ReturnInstruction || previous instanceof ATHROW || previous instanceof Select) {
+            return true;
+        }
+        if (handle.hasTargeters()) {
+            for (var targeter : handle.getTargeters()) {
+                if (targeter instanceof BranchInstruction || targeter instanceof CodeExceptionGen) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    // The frame the JVM derives from the method descriptor, which the first recorded frame is compared to.
+    private VerificationType[] getInitialLocals(MethodGen methodGen, ConstantPoolGen constantPoolGen) {
+        var locals = new ArrayList<VerificationType>();
+        if (!methodGen.isStatic()) {
+            locals.add(methodGen.getName().equals("<init>")
+                    ? new VerificationType(Const.ITEM_InitObject, -1)
+                    : getVerificationType(new ObjectType(methodGen.getClassName()), constantPoolGen));
+        }
+        for (var argumentType : methodGen.getArgumentTypes()) {
+            locals.add(getVerificationType(argumentType, constantPoolGen));
+        }
+        return locals.toArray(new VerificationType[0]);
+    }
+
+    private VerificationType[] getLocals(LivenessAnalysis liveness, int position, List<LocalVariableAllocator.Variable> variables, ConstantPoolGen constantPoolGen) {
+        var live = liveness.getLiveIn(position);
+        var locals = new ArrayList<VerificationType>();
+        int lastLive = 0;
+        for (int slot = 0; slot < live.length(); slot++) {
+            if (!live.get(slot)) {
+                locals.add(VerificationType.TOP);
+                continue;
+            }
+            var variable = findVariable(variables, slot, position);
+            locals.add(getVerificationType(variable.type(), constantPoolGen));
+            lastLive = locals.size();
+            slot += variable.type().getSize() - 1; // Longs and doubles take one entry for both of their slots
+        }
+        return locals.subList(0, lastLive).toArray(new VerificationType[0]);
+    }
+
+    private LocalVariableAllocator.Variable findVariable(List<LocalVariableAllocator.Variable> variables, int slot, int position) {
+        for (var variable : variables) {
+            if (variable.slot() == slot && variable.contains(position)) {
+                return variable;
+            }
+        }
+        throw new IllegalStateException("No variable is live in slot " + slot + " at instruction " + position);
+    }
+
+    private VerificationType getVerificationType(Type type, ConstantPoolGen constantPoolGen) {
+        return switch (type.getType()) {
+            case Const.T_BOOLEAN, Const.T_BYTE, Const.T_CHAR, Const.T_SHORT, Const.T_INT -> new VerificationType(Const.ITEM_Integer, -1);
+            case Const.T_LONG -> new VerificationType(Const.ITEM_Long, -1);
+            case Const.T_FLOAT -> new VerificationType(Const.ITEM_Float, -1);
+            case Const.T_DOUBLE -> new VerificationType(Const.ITEM_Double, -1);
+            case Const.T_ARRAY -> new VerificationType(Const.ITEM_Object, constantPoolGen.addArrayClass((ArrayType) type));
+            default -> new VerificationType(Const.ITEM_Object, constantPoolGen.addClass((ObjectType) type));
+        };
+    }
+}
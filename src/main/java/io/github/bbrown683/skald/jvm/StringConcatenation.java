@@ -0,0 +1,64 @@
+package io.github.bbrown683.skald.jvm;
+
+import org.apache.bcel.generic.Type;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// The parts of a string join, in the form StringConcatFactory.makeConcatWithConstants takes them. Constant
+// text is written into the recipe, and every value known only at runtime is pushed and passed as an argument,
+// marked in the recipe by \1. Text containing one of the recipe's tag characters is passed as a constant
+// argument instead, marked by \2.
+public class StringConcatenation {
+    // The factory takes at most 200 argument slots, where longs and doubles take two.
+    public static final int MAX_ARGUMENT_SLOTS = 200;
+
+    private static final char ARGUMENT_TAG = '\u0001';
+    private static final char CONSTANT_TAG = '\u0002';
+
+    private final StringBuilder recipe = new StringBuilder();
+    private final List<Type> argumentTypes = new ArrayList<>();
+    private final List<String> constants = new ArrayList<>();
+    private int argumentSlots;
+
+    public void appendConstant(String text) {
+        if (text.indexOf(ARGUMENT_TAG) >= 0 || text.indexOf(CONSTANT_TAG) >= 0) {
+            recipe.append(CONSTANT_TAG);
+            constants.add(text);
+        } else {
+            recipe.append(text);
+        }
+    }
+
+    public void appendArgument(Type type) {
+        recipe.append(ARGUMENT_TAG);
+        argumentTypes.add(type);
+        argumentSlots += type.getSize();
+    }
+
+    // Whether an argument of the given type still fits in the call.
+    public boolean hasRoomFor(Type type) {
+        return argumentSlots + type.getSize() <= MAX_ARGUMENT_SLOTS;
+    }
+
+    // Starts over from the string a full call produced, which becomes the first argument of the next one.
+    public void continueFromResult() {
+        recipe.setLength(0);
+        argumentTypes.clear();
+        constants.clear();
+        argumentSlots = 0;
+        appendArgument(Type.STRING);
+    }
+
+    public String getRecipe() {
+        return recipe.toString();
+    }
+
+    public List<Type> getArgumentTypes() {
+        return argumentTypes;
+    }
+
+    public List<String> getConstants() {
+        return constants;
+    }
+}
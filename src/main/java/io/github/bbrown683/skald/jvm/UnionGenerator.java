@@ -0,0 +1,101 @@
+package io.github.bbrown683.skald.jvm;
+
+import io.github.bbrown683.skald.diagnostics.Diagnostics;
+import org.apache.bcel.Const;
+import org.apache.bcel.classfile.Unknown;
+import org.apache.bcel.generic.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+
+// Generates the classes of a union. The union is an abstract class sealed to its members, and every member
+// is a final subclass holding its value in a final field of the value's own type, so primitives are never
+// boxed. The union's constructor stores the member's tag in a final int field, which a match reads with one
+// getfield and switches on, instead of testing the value against each member with instanceof.
+public class UnionGenerator {
+    public static final String TAG_FIELD = "tag";
+    public static final String VALUE_FIELD = "value";
+
+    private final String sourceFileName;
+
+    public UnionGenerator(String sourceFileName) {
+        this.sourceFileName = sourceFileName;
+    }
+
+    public byte[] generateUnion(String className, List<String> memberClassNames) {
+        Diagnostics.debug("union", "class", className, "members", memberClassNames.size());
+        var classGen = createClass(className, "java.lang.Object", Const.ACC_PUBLIC | Const.ACC_SUPER | Const.ACC_ABSTRACT);
+        var constantPoolGen = classGen.getConstantPool();
+        classGen.addField(new FieldGen(Const.ACC_PUBLIC | Const.ACC_FINAL, Type.INT, TAG_FIELD, constantPoolGen).getField());
+
+        var instructionUtil = new InstructionUtil(classGen, constantPoolGen);
+        var instructionGenerator = new InstructionGenerator(instructionUtil);
+        var methodGen = instructionGenerator.getMethodGen(Const.ACC_PROTECTED, "<init>", Type.VOID, List.of(Type.INT), List.of(TAG_FIELD));
+        var instructionList = instructionGenerator.getInstructionList();
+        instructionList.append(instructionUtil.callSuper(null));
+        instructionList.append(instructionUtil.insertSelfReference());
+        instructionList.append(instructionUtil.loadVariable(methodGen.getLocalVariables()[1]));
+        instructionList.append(instructionUtil.insertField(className, TAG_FIELD, Type.INT));
+        instructionGenerator.insertReturn(Type.VOID);
+        instructionGenerator.completeFunction();
+
+        addPermittedSubclasses(classGen, memberClassNames);
+        return classGen.getJavaClass().getBytes();
+    }
+
+    public byte[] generateMember(String className, String unionClassName, int tag, Type valueType) {
+        Diagnostics.debug("union-member", "class", className, "tag", tag);
+        var classGen = createClass(className, unionClassName, Const.ACC_PUBLIC | Const.ACC_SUPER | Const.ACC_FINAL);
+        var constantPoolGen = classGen.getConstantPool();
+        classGen.addField(new FieldGen(Const.ACC_PUBLIC | Const.ACC_FINAL, valueType, VALUE_FIELD, constantPoolGen).getField());
+        var instructionUtil = new InstructionUtil(classGen, constantPoolGen);
+
+        var constructorGenerator = new InstructionGenerator(instructionUtil);
+        var constructor = constructorGenerator.getMethodGen(Const.ACC_PUBLIC, "<init>", Type.VOID, List.of(valueType), List.of(VALUE_FIELD));
+        var constructorInstructions = constructorGenerator.getInstructionList();
+        constructorInstructions.append(instructionUtil.insertSelfReference());
+        constructorInstructions.append(instructionUtil.pushLiteral(tag));
+        constructorInstructions.append(instructionUtil.callConstructor(unionClassName, new Type[] { Type.INT }));
+        constructorInstructions.append(instructionUtil.insertSelfReference());
+        constructorInstructions.append(instructionUtil.loadVariable(constructor.getLocalVariables()[1]));
+        constructorInstructions.append(instructionUtil.insertField(className, VALUE_FIELD, valueType));
+        constructorGenerator.insertReturn(Type.VOID);
+        constructorGenerator.completeFunction();
+
+        // Read like the accessor of a record component.
+        var accessorGenerator = new InstructionGenerator(instructionUtil);
+        accessorGenerator.getMethodGen(Const.ACC_PUBLIC, VALUE_FIELD, valueType, List.of(), List.of());
+        accessorGenerator.getInstructionList().append(instructionUtil.loadField(className, VALUE_FIELD, valueType));
+        accessorGenerator.insertReturn(valueType);
+        accessorGenerator.completeFunction();
+
+        return classGen.getJavaClass().getBytes();
+    }
+
+    private ClassGen createClass(String className, String superClassName, int accessFlags) {
+        var classGen = new ClassGen(className, superClassName, sourceFileName, accessFlags, null, new DynamicConstantPoolGen());
+        classGen.setMajor(Const.MAJOR_23);
+        classGen.setMinor(0);
+        return classGen;
+    }
+
+    // BCEL has no class for the PermittedSubclasses attribute, so it is written as raw bytes: the number of
+    // classes followed by the constant pool index of each.
+    private void addPermittedSubclasses(ClassGen classGen, List<String> classNames) {
+        var constantPoolGen = classGen.getConstantPool();
+        var bytes = new ByteArrayOutputStream();
+        try (var output = new DataOutputStream(bytes)) {
+            output.writeShort(classNames.size());
+            for (var className : classNames) {
+                output.writeShort(constantPoolGen.addClass(className));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        int nameIndex = constantPoolGen.addUtf8("PermittedSubclasses");
+        classGen.addAttribute(new Unknown(nameIndex, bytes.size(), bytes.toByteArray(), constantPoolGen.getConstantPool()));
+    }
+}
@@ -0,0 +1,66 @@
+package io.github.bbrown683.skald.jvm;
+
+import org.apache.bcel.Const;
+import org.apache.bcel.generic.BasicType;
+import org.apache.bcel.generic.Type;
+
+// The unsigned integer types of the language. The JVM has none, so each is stored as a primitive of the same
+// width and has that primitive's tag and signature, which lets BCEL load, store and describe it unchanged.
+// Only the operations whose result depends on the sign are generated differently:
+//  - ubyte is stored as byte and zero-extended whenever it is read from a field or parameter.
+//  - ushort is stored as char, which the JVM already treats as unsigned.
+//  - uint and ulong are stored as int and long. Their division, remainder, comparison and string conversion
+//    call the unsigned methods of Integer and Long, which the JIT compiles to single instructions.
+//
+// Constants of these types are held as an Integer, except for ulong constants, which are held as a Long.
+// ubyte and ushort constants hold their value, and uint and ulong constants hold their bits.
+public final class UnsignedType extends Type {
+    public static final UnsignedType UBYTE = new UnsignedType(Type.BYTE, "ubyte", 0xFFL);
+    public static final UnsignedType USHORT = new UnsignedType(Type.CHAR, "ushort", 0xFFFFL);
+    public static final UnsignedType UINT = new UnsignedType(Type.INT, "uint", 0xFFFFFFFFL);
+    public static final UnsignedType ULONG = new UnsignedType(Type.LONG, "ulong", -1L);
+
+    private final BasicType storageType;
+    private final String name;
+    private final long maxValue; // As an unsigned long
+
+    private UnsignedType(BasicType storageType, String name, long maxValue) {
+        super(storageType.getType(), storageType.getSignature());
+        this.storageType = storageType;
+        this.name = name;
+        this.maxValue = maxValue;
+    }
+
+    public BasicType getStorageType() {
+        return storageType;
+    }
+
+    public boolean isWide() {
+        return getType() == Const.T_LONG;
+    }
+
+    // Whether the value, read as a signed long, is within the range of the type.
+    public boolean fits(long value) {
+        return value >= 0 && Long.compareUnsigned(value, maxValue) <= 0;
+    }
+
+    // Constants keep the bits of the value in the primitive the type is stored as, for ConstantValue attributes.
+    public Object toStorageValue(Object constant) {
+        long value = ((Number) constant).longValue();
+        return switch (storageType.getType()) {
+            case Const.T_BYTE -> (byte) value;
+            case Const.T_CHAR -> (char) value;
+            case Const.T_INT -> (int) value;
+            default -> value;
+        };
+    }
+
+    public String toUnsignedString(Object constant) {
+        return isWide() ? Long.toUnsignedString((Long) constant) : Integer.toUnsignedString((Integer) constant);
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
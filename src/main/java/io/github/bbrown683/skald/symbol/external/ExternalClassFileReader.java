@@ -0,0 +1,145 @@
+package io.github.bbrown683.skald.symbol.external;
+
+import org.apache.bcel.classfile.ClassParser;
+import org.apache.bcel.classfile.JavaClass;
+import org.apache.bcel.classfile.Method;
+import org.apache.bcel.classfile.MethodParameters;
+import org.apache.bcel.generic.ArrayType;
+import org.apache.bcel.generic.Type;
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.*;
+import java.util.function.Function;
+
+// Builds external symbols straight from class-file bytes. Unlike reflection, the class is never loaded,
+// linked or initialized, so no static initializers run and nothing stays resident in the compiler's heap:
+// a type symbol only keeps the name of its class, whose bytes are read and parsed again when its members
+// are resolved, and the parsed classes are dropped once their members are collected.
+// Members are collected the same way Class.getFields and Class.getMethods would: public members declared
+// by the type, followed by those inherited from its superclasses and interfaces.
+public class ExternalClassFileReader {
+    private final Function<String, byte[]> classBytesLocator;
+    private final ExternalMemberCache memberCache;
+
+    // The locator returns the bytes of a class by its binary name, or null if it cannot be found.
+    // It is used to read supertypes when collecting inherited members.
+    public ExternalClassFileReader(Function<String, byte[]> classBytesLocator, ExternalMemberCache memberCache) {
+        this.classBytesLocator = classBytesLocator;
+        this.memberCache = memberCache;
+    }
+
+    public ExternalSymbol read(byte[] bytes) {
+        var javaClass = parse(bytes);
+        return javaClass != null ? getSymbol(javaClass) : null;
+    }
+
+    private JavaClass parse(byte[] bytes) {
+        try {
+            return new ClassParser(new ByteArrayInputStream(bytes), null).parse();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private JavaClass getClass(String className) {
+        var bytes = classBytesLocator.apply(className);
+        return bytes != null ? parse(bytes) : null;
+    }
+
+    private ExternalSymbol getSymbol(JavaClass javaClass) {
+        String className = javaClass.getClassName();
+        String simpleName = className.contains(".") ? StringUtils.substringAfterLast(className, ".") : className;
+        if (javaClass.isEnum()) { // Recorded by name only, like the reflection loader does; the constants are not read
+            return new ExternalEnumSymbol(simpleName, javaClass.isPublic(), false);
+        }
+
+        // Match Class.getSuperclass, which is null for interfaces and java.lang.Object.
+        String superType = javaClass.isInterface() || className.equals("java.lang.Object") ? null : javaClass.getSuperclassName();
+        return new ExternalTypeSymbol(simpleName, javaClass.isPublic(), false, null, superType, memberCache, () -> getMembers(className));
+    }
+
+    // Walking the supertypes is the expensive part of reading a class, so it is deferred until the members are looked up.
+    private ExternalTypeMembers getMembers(String className) {
+        var fields = new ArrayList<ExternalVariableSymbol>();
+        var functions = new ArrayList<ExternalFunctionSymbol>();
+        var javaClass = getClass(className);
+        if (javaClass == null) {
+            return new ExternalTypeMembers(fields, functions);
+        }
+        addMembers(javaClass, true, fields, functions, new HashSet<>(), new HashSet<>(), new HashSet<>());
+        return new ExternalTypeMembers(fields, functions);
+    }
+
+    private void addMembers(JavaClass javaClass,
+                            boolean isDeclaringType,
+                            List<ExternalVariableSymbol> fields,
+                            List<ExternalFunctionSymbol> functions,
+                            Set<String> fieldNames,
+                            Set<String> functionSignatures,
+                            Set<String> visitedTypes) {
+        if (!visitedTypes.add(javaClass.getClassName())) {
+            return;
+        }
+
+        for (var field : javaClass.getFields()) {
+            if (!field.isPublic() || field.isSynthetic() || !fieldNames.add(field.getName())) {
+                continue;
+            }
+            var fieldType = field.getType();
+            fields.add(new ExternalVariableSymbol(field.getName(), true, field.isStatic(), fieldType, !field.isFinal(), fieldType instanceof ArrayType));
+        }
+
+        for (var method : javaClass.getMethods()) {
+            if (!method.isPublic() || method.getName().startsWith("<")) { // Skip constructors and static initializers
+                continue;
+            }
+            if (!isDeclaringType && javaClass.isInterface() && method.isStatic()) { // Static interface methods are not inherited
+                continue;
+            }
+            if (!functionSignatures.add(method.getName() + method.getSignature())) { // Overridden by a subtype
+                continue;
+            }
+            functions.add(new ExternalFunctionSymbol(method.getName(), true, method.isStatic(), method.getReturnType(), getParameters(method)));
+        }
+
+        if (!javaClass.isInterface() && !javaClass.getClassName().equals("java.lang.Object")) {
+            var superClass = getClass(javaClass.getSuperclassName());
+            if (superClass != null) {
+                addMembers(superClass, false, fields, functions, fieldNames, functionSignatures, visitedTypes);
+            }
+        }
+        for (var interfaceName : javaClass.getInterfaceNames()) {
+            var interfaceClass = getClass(interfaceName);
+            if (interfaceClass != null) {
+                addMembers(interfaceClass, false, fields, functions, fieldNames, functionSignatures, visitedTypes);
+            }
+        }
+    }
+
+    private List<ExternalVariableSymbol> getParameters(Method method) {
+        Type[] argumentTypes = method.getArgumentTypes();
+
+        // Parameter names are only present when the class was compiled with -parameters,
+        // otherwise fall back to the names reflection would report.
+        String[] parameterNames = new String[argumentTypes.length];
+        for (var attribute : method.getAttributes()) {
+            if (attribute instanceof MethodParameters methodParameters) {
+                var parameters = methodParameters.getParameters();
+                for (int i = 0; i < parameters.length && i < parameterNames.length; i++) {
+                    parameterNames[i] = parameters[i].getParameterName(method.getConstantPool());
+                }
+            }
+        }
+
+        var functionParameters = new ArrayList<ExternalVariableSymbol>(argumentTypes.length);
+        for (int i = 0; i < argumentTypes.length; i++) {
+            String parameterName = parameterNames[i] != null ? parameterNames[i] : "arg" + i;
+            var parameterType = argumentTypes[i];
+            functionParameters.add(new ExternalVariableSymbol(parameterName, false, false, parameterType, true, parameterType instanceof ArrayType));
+        }
+        return functionParameters;
+    }
+}
@@ -0,0 +1,84 @@
+package io.github.bbrown683.skald.symbol.external;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Supplier;
+
+// Bounded cache of resolved type members. Wildcard imports create a type symbol for every class in a package,
+// but only the members of the types a program actually uses are kept resolved. Evicted members are resolved
+// again the next time their type is looked up. Lookups never lock, so compilations on several threads can
+// share one cache; eviction uses the CLOCK approximation of least-recently-used, clearing a reference bit
+// on each pass of the hand and evicting the first entry whose bit is already clear.
+public class ExternalMemberCache {
+    public static final int DEFAULT_CAPACITY = Integer.getInteger("skald.member.cache.size", 512);
+
+    private final int capacity;
+    private final Map<ExternalTypeSymbol, Entry> members = new ConcurrentHashMap<>();
+    private final Queue<ExternalTypeSymbol> clock = new ConcurrentLinkedQueue<>(); // Head is the clock hand
+
+    public ExternalMemberCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public ExternalMemberCache(int capacity) {
+        this.capacity = capacity;
+    }
+
+    public ExternalTypeMembers get(ExternalTypeSymbol typeSymbol, Supplier<ExternalTypeMembers> memberResolver) {
+        var entry = members.get(typeSymbol);
+        if (entry != null) {
+            entry.referenced = true;
+            return entry.typeMembers;
+        }
+
+        // Members of the same type are only resolved once, even when several threads ask for them together.
+        boolean[] added = new boolean[1];
+        entry = members.computeIfAbsent(typeSymbol, key -> {
+            added[0] = true;
+            return new Entry(memberResolver.get());
+        });
+        if (added[0]) {
+            clock.add(typeSymbol);
+            evict();
+        }
+        return entry.typeMembers;
+    }
+
+    private void evict() {
+        while (members.size() > capacity) {
+            var typeSymbol = clock.poll();
+            if (typeSymbol == null) {
+                return;
+            }
+            var entry = members.get(typeSymbol);
+            if (entry == null) {
+                continue;
+            }
+            if (entry.referenced) { // Give it a second chance
+                entry.referenced = false;
+                clock.add(typeSymbol);
+            } else {
+                members.remove(typeSymbol, entry);
+            }
+        }
+    }
+
+    public boolean contains(ExternalTypeSymbol typeSymbol) {
+        return members.containsKey(typeSymbol);
+    }
+
+    public int size() {
+        return members.size();
+    }
+
+    private static class Entry {
+        private final ExternalTypeMembers typeMembers;
+        private volatile boolean referenced;
+
+        private Entry(ExternalTypeMembers typeMembers) {
+            this.typeMembers = typeMembers;
+        }
+    }
+}
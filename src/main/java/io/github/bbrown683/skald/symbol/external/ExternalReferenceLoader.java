@@ -1,7 +1,10 @@
 package io.github.bbrown683.skald.symbol.external;
 
 import org.apache.bcel.generic.Type;
+import org.apache.commons.lang3.StringUtils;
 
+import java.io.File;
+import java.io.IOException;
 import java.lang.reflect.Modifier;
 import java.net.URI;
 import java.nio.file.FileSystem;
@@ -9,27 +12,78 @@ import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
-import java.util.function.Predicate;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class ExternalReferenceLoader extends ClassLoader {
-    private final Map<String,byte[]> symbolMap = new HashMap<>();
+    // How external symbols are read. REFLECTION loads each class and inspects it with Class.getFields
+    // and Class.getMethods, while CLASS_FILE parses the class-file bytes without loading anything.
+    public enum Mode {
+        REFLECTION,
+        CLASS_FILE
+    }
+
+    static {
+        // Packages of a shared symbol cache are loaded from several threads at once.
+        ClassLoader.registerAsParallelCapable();
+    }
+
+    private final Map<String,byte[]> symbolMap = new ConcurrentHashMap<>();
+    private final Map<Path,FileSystem> jarFileSystems = new HashMap<>();
+    private final ExternalSymbolIndex symbolIndex;
+    private final Mode mode;
+    private final ExternalMemberCache memberCache;
+    private final ExternalClassFileReader classFileReader;
+
+    public ExternalReferenceLoader() {
+        this(Boolean.getBoolean("skald.cache.disable") ? null : ExternalSymbolIndex.forRuntime());
+    }
+
+    // A null index disables the on-disk cache, and java.base symbols are read again on every import.
+    public ExternalReferenceLoader(ExternalSymbolIndex symbolIndex) {
+        this(symbolIndex, Mode.valueOf(System.getProperty("skald.loader.mode", Mode.CLASS_FILE.name())));
+    }
+
+    public ExternalReferenceLoader(ExternalSymbolIndex symbolIndex, Mode mode) {
+        this(symbolIndex, mode, new ExternalMemberCache());
+    }
+
+    public ExternalReferenceLoader(ExternalSymbolIndex symbolIndex, Mode mode, ExternalMemberCache memberCache) {
+        this.symbolIndex = symbolIndex;
+        this.mode = mode;
+        this.memberCache = memberCache;
+        this.classFileReader = new ExternalClassFileReader(this::findClassBytes, memberCache);
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public ExternalMemberCache getMemberCache() {
+        return memberCache;
+    }
 
     public Map<String, ExternalSymbol> getSymbols(String importPath, boolean isPackage) {
         var symbols = new HashMap<String, ExternalSymbol>();
         if(importPath.startsWith("java")) { // Look at the java.base module
-            for(var clazz : getBaseClasses(importPath, isPackage)) {
-                var symbol = getSymbol(clazz);
-                symbols.put(symbol.getName(), symbol);
+            if(symbolIndex != null) {
+                return getIndexedBaseSymbols(importPath, isPackage);
             }
+            symbols.putAll(getBaseSymbols(importPath, isPackage));
         } else { // Look at the standard class paths
-            var externalClassPaths = getExternalClassPaths(importPath);
+            String packagePath = isPackage ? importPath : StringUtils.substringBeforeLast(importPath, ".");
+            var externalClassPaths = getExternalClassPaths(importPath, isPackage);
             for(var path : externalClassPaths) {
                 var bytes = getClassBytes(path);
                 if(bytes == null) {
                     continue;
                 }
+                if(mode == Mode.CLASS_FILE) {
+                    var symbol = classFileReader.read(bytes);
+                    if(symbol != null) symbols.put(symbol.getName(), symbol);
+                    continue;
+                }
                 String classFileName = path.getFileName().toString();
-                String filename = importPath + "." + classFileName.replace(".class", "");
+                String filename = packagePath + "." + classFileName.replace(".class", "");
                 symbolMap.put(filename, bytes);
                 try {
                     var clazz = findClass(filename);
@@ -44,60 +98,153 @@ public class ExternalReferenceLoader extends ClassLoader {
         return symbols;
     }
 
+    // Serves java.base imports from the symbol index. The first import of any type in a package
+    // reads the whole package once, so that later imports from it are only decoded from the index.
+    private Map<String, ExternalSymbol> getIndexedBaseSymbols(String importPath, boolean isPackage) {
+        String packagePath = isPackage ? importPath : StringUtils.substringBeforeLast(importPath, ".");
+        String typeName = isPackage ? null : StringUtils.substringAfterLast(importPath, ".");
+
+        var symbols = new HashMap<String, ExternalSymbol>();
+        if(symbolIndex.containsPackage(packagePath)) {
+            if(isPackage) {
+                symbols.putAll(symbolIndex.getSymbols(packagePath, memberCache));
+            } else {
+                var symbol = symbolIndex.getSymbol(packagePath, typeName, memberCache);
+                if(symbol != null) symbols.put(typeName, symbol);
+            }
+            return symbols;
+        }
+
+        var packageSymbols = getBaseSymbols(packagePath, true);
+        symbolIndex.putSymbols(packagePath, packageSymbols);
+        if(isPackage) {
+            return packageSymbols;
+        }
+        var symbol = packageSymbols.get(typeName);
+        if(symbol != null) symbols.put(typeName, symbol);
+        return symbols;
+    }
+
+    private Map<String, ExternalSymbol> getBaseSymbols(String path, boolean isPackage) {
+        var symbols = new HashMap<String, ExternalSymbol>();
+        if(mode == Mode.CLASS_FILE) {
+            for(var classPath : getBaseClassPaths(path, isPackage)) {
+                var bytes = getClassBytes(classPath);
+                var symbol = bytes != null ? classFileReader.read(bytes) : null;
+                if(symbol != null) symbols.put(symbol.getName(), symbol);
+            }
+        } else {
+            for(var clazz : getBaseClasses(path, isPackage)) {
+                var symbol = getSymbol(clazz);
+                symbols.put(symbol.getName(), symbol);
+            }
+        }
+        return symbols;
+    }
+
     // Classes under the java path are not in the classpath,
     // but are instead in the java.base module which is under the JRT filesystem
     // and must be loaded differently. We also cannot create an instance of the class
     // as the java package is prohibited for use.
     private List<Class<?>> getBaseClasses(String path, boolean isPackage) {
         var classes = new ArrayList<Class<?>>();
+        for(var classPath : getBaseClassPaths(path, isPackage)) {
+            // modules/<module>/java/lang/String.class -> java.lang.String
+            var classFile = classPath.subpath(2, classPath.getNameCount()).toString();
+            var className = classFile.replace(".class", "").replace("/", ".");
+            try {
+                classes.add(Class.forName(className));
+            } catch (Throwable e) { // Skip classes that fail to link, rather than the whole package
+                e.printStackTrace();
+            }
+        }
+        return classes;
+    }
 
-        // Update filenames to be in the correct format when searching for classes
-        String classesPath = path.replace(".", "/");
-        var pathDirectory = path.split("\\.");
+    // The packages directory of the JRT filesystem links each package to the modules that contain it,
+    // so the class files can be found without walking every module.
+    private List<Path> getBaseClassPaths(String path, boolean isPackage) {
+        var classPaths = new ArrayList<Path>();
+        String packagePath = isPackage ? path : StringUtils.substringBeforeLast(path, ".");
 
-        String pathParentName;
+        FileSystem filesystem = FileSystems.getFileSystem(URI.create("jrt:/"));
+        var packageDirectory = filesystem.getPath("packages", packagePath);
+        if(!Files.isDirectory(packageDirectory)) {
+            return classPaths;
+        }
+        try (var modules = Files.list(packageDirectory)) {
+            for(var module : modules.toList()) {
+                var moduleRoot = filesystem.getPath("modules", module.getFileName().toString());
+                classPaths.addAll(getClassPaths(moduleRoot, path, isPackage));
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return classPaths;
+    }
+
+    // Searches the directories and jars of java.class.path for the class files of an import.
+    private List<Path> getExternalClassPaths(String path, boolean isPackage) {
+        var classPaths = new ArrayList<Path>();
+        for(var entry : System.getProperty("java.class.path", "").split(File.pathSeparator)) {
+            if(entry.isBlank()) {
+                continue;
+            }
+            var entryPath = Path.of(entry);
+            try {
+                if(Files.isDirectory(entryPath)) {
+                    classPaths.addAll(getClassPaths(entryPath, path, isPackage));
+                } else if(entry.endsWith(".jar") && Files.isRegularFile(entryPath)) {
+                    FileSystem jarFileSystem;
+                    synchronized (jarFileSystems) { // A jar can only be opened once
+                        jarFileSystem = jarFileSystems.get(entryPath);
+                        if(jarFileSystem == null) {
+                            jarFileSystem = FileSystems.newFileSystem(entryPath);
+                            jarFileSystems.put(entryPath, jarFileSystem);
+                        }
+                    }
+                    classPaths.addAll(getClassPaths(jarFileSystem.getPath("/"), path, isPackage));
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+        return classPaths;
+    }
+
+    // Resolves the class file(s) of an import under a root directory. Filename checks:
+    // 1. Must be a class file
+    // 2. Must not be an inner class
+    // 3. Must not be module-info or package-info
+    private List<Path> getClassPaths(Path root, String path, boolean isPackage) throws IOException {
+        String classesPath = path.replace(".", "/");
         if(!isPackage) {
-            classesPath += ".class";
-            pathParentName = pathDirectory[pathDirectory.length - 2]; // Need to go back an extra layer for single class imports
-        } else {
-            pathParentName = pathDirectory[pathDirectory.length - 1];
+            var classPath = root.resolve(classesPath + ".class");
+            return Files.isRegularFile(classPath) ? List.of(classPath) : Collections.emptyList();
         }
 
-        FileSystem filesystem = FileSystems.getFileSystem(URI.create("jrt:/"));
-        var jrtPath = filesystem.getPath("modules","java.base", classesPath);
-        // Get file(s) under the path
-        try (var stream = Files.walk(jrtPath)) {
-            var classNames = stream
+        var packageDirectory = root.resolve(classesPath);
+        if(!Files.isDirectory(packageDirectory)) {
+            return Collections.emptyList();
+        }
+        try (var stream = Files.list(packageDirectory)) {
+            return stream
                     .filter(Files::isRegularFile)
-                    .filter(Predicate.not(Files::isDirectory))
                     .filter(f -> {
-                        // Filename checks:
-                        // 1. Must be a class file
-                        // 2. Must not be an inner class
-                        // 3. Must be directly under lang package.
                         var filename = f.getFileName().toString();
-                        var parentFilename = f.getParent().getFileName().toString();
-                        return filename.endsWith(".class") && !filename.contains("$") && parentFilename.equals(pathParentName);
-                    })
-                    .map(f -> {
-                        var filename = f.toString();
-                        return filename
-                                .replace(".class", "")
-                                .replace("modules/java.base/", "")
-                                .replace("/", ".");
+                        return filename.endsWith(".class") && !filename.contains("$") && !filename.contains("-");
                     })
                     .toList();
-            for(var className : classNames) {
-                classes.add(Class.forName(className));
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
         }
-        return classes;
     }
 
-    private List<Path> getExternalClassPaths(String packagePath) {
-        return Collections.emptyList();
+    // Locates a class by its binary name, first in the runtime image and then on the class path.
+    private byte[] findClassBytes(String className) {
+        var classPaths = getBaseClassPaths(className, false);
+        if(classPaths.isEmpty()) {
+            classPaths = getExternalClassPaths(className, false);
+        }
+        return classPaths.isEmpty() ? null : getClassBytes(classPaths.getFirst());
     }
 
     private byte[] getClassBytes(Path path) {
@@ -110,8 +257,18 @@ public class ExternalReferenceLoader extends ClassLoader {
     }
 
     private ExternalSymbol getSymbol(Class<?> clazz) {
+        var superClass = clazz.getSuperclass();
+        String superClassName = superClass == null ? null : superClass.getName();
+        //var types = clazz.getClasses();
+        if(clazz.isEnum()) { // TODO: To be tested.
+            return new ExternalEnumSymbol(clazz.getSimpleName(), true, false);
+        } else {
+            return new ExternalTypeSymbol(clazz.getSimpleName(), true, false, null, superClassName, memberCache, () -> getMembers(clazz));
+        }
+    }
+
+    private ExternalTypeMembers getMembers(Class<?> clazz) {
         var typeFields = new ArrayList<ExternalVariableSymbol>();
-        boolean isEnum = clazz.isEnum();
         for(var fields : clazz.getFields()) {
             var fieldName = fields.getName();
             var fieldType = fields.getType();
@@ -138,15 +295,7 @@ public class ExternalReferenceLoader extends ClassLoader {
             }
             typeFunctions.add(new ExternalFunctionSymbol(methodName, isPublic, isStatic, Type.getType(returnType), functionParameters));
         }
-
-        var superClass = clazz.getSuperclass();
-        String superClassName = superClass == null ? null : superClass.getName();
-        //var types = clazz.getClasses();
-        if(isEnum) { // TODO: To be tested.
-            return new ExternalEnumSymbol(clazz.getSimpleName(), true, false);
-        } else {
-            return new ExternalTypeSymbol(clazz.getSimpleName(), true, false, typeFields, typeFunctions, null, superClassName);
-        }
+        return new ExternalTypeMembers(typeFields, typeFunctions);
     }
 
     @Override
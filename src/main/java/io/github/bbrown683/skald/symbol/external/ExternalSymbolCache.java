@@ -0,0 +1,59 @@
+package io.github.bbrown683.skald.symbol.external;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+// Process-wide store of loaded packages that every ExternalSymbolTable resolves its imports through.
+// Each package is loaded exactly once: concurrent importers of the same package wait for the first load
+// instead of repeating it, other packages load in parallel, and lookups of loaded packages never lock.
+public class ExternalSymbolCache {
+    private final ExternalReferenceLoader symbolLoader;
+    private final Map<String, FutureTask<Map<String, ExternalSymbol>>> packages = new ConcurrentHashMap<>();
+
+    public ExternalSymbolCache(ExternalReferenceLoader symbolLoader) {
+        this.symbolLoader = symbolLoader;
+    }
+
+    // The cache shared by compilations that are not given one explicitly.
+    public static ExternalSymbolCache shared() {
+        return SharedHolder.INSTANCE;
+    }
+
+    public ExternalReferenceLoader getSymbolLoader() {
+        return symbolLoader;
+    }
+
+    // Types of a package by simple name. The returned map is immutable.
+    public Map<String, ExternalSymbol> getPackage(String packagePath) {
+        var task = packages.get(packagePath);
+        if (task == null) {
+            var newTask = new FutureTask<Map<String, ExternalSymbol>>(() -> Map.copyOf(symbolLoader.getSymbols(packagePath, true)));
+            task = packages.putIfAbsent(packagePath, newTask);
+            if (task == null) { // This thread won the race and performs the load
+                task = newTask;
+                task.run();
+            }
+        }
+
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while loading package " + packagePath, e);
+        } catch (ExecutionException e) {
+            packages.remove(packagePath, task); // Allow a later import to retry
+            throw new RuntimeException("Failed to load package " + packagePath, e.getCause());
+        }
+    }
+
+    public boolean containsPackage(String packagePath) {
+        var task = packages.get(packagePath);
+        return task != null && task.isDone();
+    }
+
+    private static class SharedHolder {
+        private static final ExternalSymbolCache INSTANCE = new ExternalSymbolCache(new ExternalReferenceLoader());
+    }
+}
@@ -0,0 +1,314 @@
+package io.github.bbrown683.skald.symbol.external;
+
+import org.apache.bcel.Const;
+import org.apache.bcel.generic.Type;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+// On-disk index of the symbols found in a JDK package. Each package is written once per runtime
+// to its own file, which is memory-mapped on later runs so that only the requested types are decoded.
+//
+// File layout:
+// header: magic, format version, runtime key
+// table of contents: type count, then (simple name, record offset, record length) per type
+// records: one encoded ExternalSymbol per type, addressed by the table of contents
+public class ExternalSymbolIndex {
+    private static final int MAGIC = 0x534B4C44; // SKLD
+    private static final int FORMAT_VERSION = 1;
+
+    private static final byte KIND_TYPE = 0;
+    private static final byte KIND_ENUM = 1;
+
+    private static final int FLAG_PUBLIC = 1;
+    private static final int FLAG_STATIC = 1 << 1;
+    private static final int FLAG_MUTABLE = 1 << 2;
+
+    private final Path directory;
+    private final String runtimeKey;
+    private final Map<String, PackageIndex> packages = new ConcurrentHashMap<>();
+
+    public ExternalSymbolIndex(Path directory, String runtimeKey) {
+        this.directory = directory;
+        this.runtimeKey = runtimeKey;
+    }
+
+    // Index for the running JDK, stored under skald.cache.dir (defaults to ~/.skald/cache).
+    public static ExternalSymbolIndex forRuntime() {
+        String javaHome = System.getProperty("java.home");
+        String runtimeVersion = Runtime.version().toString();
+        String runtimeKey = javaHome + "|" + runtimeVersion;
+
+        String cacheDirectory = System.getProperty("skald.cache.dir",
+                Path.of(System.getProperty("user.home"), ".skald", "cache").toString());
+        String directoryName = runtimeVersion.replaceAll("[^A-Za-z0-9._-]", "_") + "-" + Integer.toHexString(javaHome.hashCode());
+        return new ExternalSymbolIndex(Path.of(cacheDirectory, directoryName), runtimeKey);
+    }
+
+    public boolean containsPackage(String packagePath) {
+        return getPackageIndex(packagePath) != null;
+    }
+
+    // Decodes every type in the package, or null if the package has not been indexed.
+    // Type members stay encoded in the mapped file until they are first looked up.
+    public Map<String, ExternalSymbol> getSymbols(String packagePath, ExternalMemberCache memberCache) {
+        var packageIndex = getPackageIndex(packagePath);
+        if (packageIndex == null) {
+            return null;
+        }
+        var symbols = new HashMap<String, ExternalSymbol>();
+        for (var typeName : packageIndex.offsets.keySet()) {
+            symbols.put(typeName, packageIndex.decode(typeName, memberCache));
+        }
+        return symbols;
+    }
+
+    // Decodes a single type, or null if the package has not been indexed or does not contain the type.
+    public ExternalSymbol getSymbol(String packagePath, String typeName, ExternalMemberCache memberCache) {
+        var packageIndex = getPackageIndex(packagePath);
+        if (packageIndex == null) {
+            return null;
+        }
+        return packageIndex.decode(typeName, memberCache);
+    }
+
+    public void putSymbols(String packagePath, Map<String, ExternalSymbol> symbols) {
+        try {
+            Files.createDirectories(directory);
+
+            var records = new ByteArrayOutputStream();
+            var recordOutput = new DataOutputStream(records);
+            var tableOfContents = new LinkedHashMap<String, int[]>();
+            for (var entry : symbols.entrySet()) {
+                int offset = recordOutput.size();
+                writeSymbol(recordOutput, entry.getValue());
+                tableOfContents.put(entry.getKey(), new int[] { offset, recordOutput.size() - offset });
+            }
+
+            var header = new ByteArrayOutputStream();
+            var headerOutput = new DataOutputStream(header);
+            headerOutput.writeInt(MAGIC);
+            headerOutput.writeInt(FORMAT_VERSION);
+            headerOutput.writeUTF(runtimeKey);
+            headerOutput.writeInt(tableOfContents.size());
+            for (var entry : tableOfContents.entrySet()) {
+                headerOutput.writeUTF(entry.getKey());
+                headerOutput.writeInt(entry.getValue()[0]);
+                headerOutput.writeInt(entry.getValue()[1]);
+            }
+
+            // Write to a temporary file first so concurrent compilers never map a partially written index.
+            var temporaryFile = Files.createTempFile(directory, packagePath, ".tmp");
+            try (var channel = FileChannel.open(temporaryFile, StandardOpenOption.WRITE)) {
+                channel.write(ByteBuffer.wrap(header.toByteArray()));
+                channel.write(ByteBuffer.wrap(records.toByteArray()));
+            }
+            Files.move(temporaryFile, getPackageFile(packagePath), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            packages.remove(packagePath);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private Path getPackageFile(String packagePath) {
+        return directory.resolve(packagePath + ".idx");
+    }
+
+    private PackageIndex getPackageIndex(String packagePath) {
+        var packageIndex = packages.get(packagePath);
+        if (packageIndex != null) {
+            return packageIndex;
+        }
+
+        var packageFile = getPackageFile(packagePath);
+        if (!Files.isRegularFile(packageFile)) {
+            return null;
+        }
+        try (var channel = FileChannel.open(packageFile, StandardOpenOption.READ)) {
+            var buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            packageIndex = PackageIndex.read(buffer, runtimeKey);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (packageIndex != null) {
+            packages.put(packagePath, packageIndex);
+        }
+        return packageIndex;
+    }
+
+    private static void writeSymbol(DataOutputStream output, ExternalSymbol symbol) throws IOException {
+        output.writeByte(symbol instanceof ExternalEnumSymbol ? KIND_ENUM : KIND_TYPE);
+        output.writeUTF(symbol.getName());
+        output.writeByte(getFlags(symbol.isPublic(), symbol.isStatic(), false));
+        if (!(symbol instanceof ExternalTypeSymbol typeSymbol)) {
+            return;
+        }
+
+        String superType = typeSymbol.getSuperType();
+        output.writeBoolean(superType != null);
+        if (superType != null) {
+            output.writeUTF(superType);
+        }
+
+        // Members are resolved outside the member cache, so indexing a package does not evict the types in use.
+        var typeMembers = typeSymbol.resolveMembers();
+        output.writeShort(typeMembers.getFields().size());
+        for (var field : typeMembers.getFields()) {
+            output.writeUTF(field.getName());
+            output.writeByte(getFlags(field.isPublic(), field.isStatic(), field.isMutable()));
+            output.writeUTF(field.getType().getSignature());
+        }
+
+        output.writeShort(typeMembers.getFunctions().size());
+        for (var function : typeMembers.getFunctions()) {
+            output.writeUTF(function.getName());
+            output.writeByte(getFlags(function.isPublic(), function.isStatic(), false));
+            output.writeUTF(function.getReturnType().getSignature());
+            output.writeByte(function.getParameters().size());
+            for (var parameter : function.getParameters()) {
+                output.writeUTF(parameter.getName());
+                output.writeUTF(parameter.getType().getSignature());
+            }
+        }
+    }
+
+    private static int getFlags(boolean isPublic, boolean isStatic, boolean isMutable) {
+        return (isPublic ? FLAG_PUBLIC : 0) | (isStatic ? FLAG_STATIC : 0) | (isMutable ? FLAG_MUTABLE : 0);
+    }
+
+    private static class PackageIndex {
+        private final ByteBuffer buffer;
+        private final Map<String, int[]> offsets;
+
+        private PackageIndex(ByteBuffer buffer, Map<String, int[]> offsets) {
+            this.buffer = buffer;
+            this.offsets = offsets;
+        }
+
+        // Reads the header and table of contents, leaving the records mapped but undecoded.
+        // Returns null if the file was written by another format version or runtime.
+        private static PackageIndex read(MappedByteBuffer buffer, String runtimeKey) throws IOException {
+            var input = new DataInputStream(new ByteBufferInputStream(buffer.duplicate()));
+            if (input.readInt() != MAGIC || input.readInt() != FORMAT_VERSION || !input.readUTF().equals(runtimeKey)) {
+                return null;
+            }
+
+            int typeCount = input.readInt();
+            var offsets = new HashMap<String, int[]>(typeCount * 2);
+            for (int i = 0; i < typeCount; i++) {
+                offsets.put(input.readUTF(), new int[] { input.readInt(), input.readInt() });
+            }
+            int recordsStart = buffer.capacity() - input.available();
+            return new PackageIndex(buffer.slice(recordsStart, buffer.capacity() - recordsStart), offsets);
+        }
+
+        private ExternalSymbol decode(String typeName, ExternalMemberCache memberCache) {
+            var location = offsets.get(typeName);
+            if (location == null) {
+                return null;
+            }
+            var record = buffer.slice(location[0], location[1]);
+            var input = new DataInputStream(new ByteBufferInputStream(record.duplicate()));
+            try {
+                byte kind = input.readByte();
+                String name = input.readUTF();
+                int flags = input.readByte();
+                if (kind == KIND_ENUM) {
+                    return new ExternalEnumSymbol(name, (flags & FLAG_PUBLIC) != 0, (flags & FLAG_STATIC) != 0);
+                }
+                String superType = input.readBoolean() ? input.readUTF() : null;
+
+                var members = record.slice(record.capacity() - input.available(), input.available());
+                return new ExternalTypeSymbol(name, (flags & FLAG_PUBLIC) != 0, (flags & FLAG_STATIC) != 0, null, superType,
+                        memberCache, () -> readMembers(members));
+            } catch (IOException e) {
+                e.printStackTrace();
+                return null;
+            }
+        }
+
+        private static ExternalTypeMembers readMembers(ByteBuffer members) {
+            var input = new DataInputStream(new ByteBufferInputStream(members.duplicate()));
+            try {
+                int fieldCount = input.readUnsignedShort();
+                var fields = new ArrayList<ExternalVariableSymbol>(fieldCount);
+                for (int i = 0; i < fieldCount; i++) {
+                    String fieldName = input.readUTF();
+                    int fieldFlags = input.readByte();
+                    var fieldType = Type.getType(input.readUTF());
+                    fields.add(new ExternalVariableSymbol(fieldName,
+                            (fieldFlags & FLAG_PUBLIC) != 0,
+                            (fieldFlags & FLAG_STATIC) != 0,
+                            fieldType,
+                            (fieldFlags & FLAG_MUTABLE) != 0,
+                            fieldType.getType() == Const.T_ARRAY));
+                }
+
+                int functionCount = input.readUnsignedShort();
+                var functions = new ArrayList<ExternalFunctionSymbol>(functionCount);
+                for (int i = 0; i < functionCount; i++) {
+                    String functionName = input.readUTF();
+                    int functionFlags = input.readByte();
+                    var returnType = Type.getType(input.readUTF());
+                    int parameterCount = input.readUnsignedByte();
+                    var parameters = new ArrayList<ExternalVariableSymbol>(parameterCount);
+                    for (int j = 0; j < parameterCount; j++) {
+                        String parameterName = input.readUTF();
+                        var parameterType = Type.getType(input.readUTF());
+                        parameters.add(new ExternalVariableSymbol(parameterName, false, false, parameterType, true,
+                                parameterType.getType() == Const.T_ARRAY));
+                    }
+                    functions.add(new ExternalFunctionSymbol(functionName,
+                            (functionFlags & FLAG_PUBLIC) != 0,
+                            (functionFlags & FLAG_STATIC) != 0,
+                            returnType,
+                            parameters));
+                }
+                return new ExternalTypeMembers(fields, functions);
+            } catch (IOException e) { // Records are only written by this class, so a short read means the file is corrupt
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        private ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
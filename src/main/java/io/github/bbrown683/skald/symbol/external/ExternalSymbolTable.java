@@ -3,74 +3,114 @@ package io.github.bbrown683.skald.symbol.external;
 import org.apache.commons.lang3.StringUtils;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
+// The imports of one compilation. Packages are loaded through an ExternalSymbolCache, which is shared
+// process-wide by default, so N compilations importing java.lang pay its loading cost once rather than N times.
+// The table itself only records which names the compilation imported, and is safe to read from several threads.
 public class ExternalSymbolTable {
-    private final ExternalReferenceLoader symbolLoader = new ExternalReferenceLoader();
-    private final Map<String,Map<String, ExternalSymbol>> symbolMap = new HashMap<>();
+    private final ExternalSymbolCache symbolCache;
+    private final Map<String,String> typePackageMap = new ConcurrentHashMap<>(); // Simple type name to the package it resolves to
+    private final List<String> onDemandPackages = new CopyOnWriteArrayList<>();
 
     public ExternalSymbolTable() {
+        this(ExternalSymbolCache.shared());
+    }
+
+    // Uses a private cache around the given loader rather than the shared one.
+    public ExternalSymbolTable(ExternalReferenceLoader symbolLoader) {
+        this(new ExternalSymbolCache(symbolLoader));
+    }
+
+    // Imported types resolve their members lazily, on the first getSymbol lookup that needs them,
+    // and keep them in the loader's member cache.
+    public ExternalSymbolTable(ExternalSymbolCache symbolCache) {
+        this.symbolCache = symbolCache;
         // Add the java.lang package by default as it is always imported by the JVM
         addImport("java.lang.*");
     }
 
     public void addImport(String importPath) {
-        String path;
-        String packagePath;
-
         boolean isPackage = importPath.endsWith(".*");
         if (isPackage) { // Strip the .* from the end of the package path
-            packagePath = StringUtils.substringBefore(importPath, ".*");
-            path = packagePath;
+            String packagePath = StringUtils.substringBefore(importPath, ".*");
+            symbolCache.getPackage(packagePath);
+            if (!onDemandPackages.contains(packagePath)) {
+                onDemandPackages.add(packagePath);
+            }
         } else { // Strip the class name from the end of the package path
-            packagePath = StringUtils.substringBeforeLast(importPath, ".");
-            path = importPath;
+            String packagePath = StringUtils.substringBeforeLast(importPath, ".");
+            String typeName = StringUtils.substringAfterLast(importPath, ".");
+            if (symbolCache.getPackage(packagePath).containsKey(typeName)) { // Single type imports shadow types imported on demand
+                typePackageMap.put(typeName, packagePath);
+            }
         }
+    }
 
-        var symbols = symbolLoader.getSymbols(path, isPackage);
-        if(symbolMap.containsKey(packagePath)) {
-            symbolMap.get(packagePath).putAll(symbols);
-        } else {
-            symbolMap.put(packagePath, symbols);
+    // Finds the package a simple type name was imported from. Names found through on-demand imports
+    // are remembered, so each name probes the imported packages at most once.
+    private String getPackagePath(String typeName) {
+        var packagePath = typePackageMap.get(typeName);
+        if (packagePath == null) {
+            for (var onDemandPackage : onDemandPackages) {
+                if (symbolCache.getPackage(onDemandPackage).containsKey(typeName)) {
+                    packagePath = onDemandPackage;
+                    typePackageMap.putIfAbsent(typeName, packagePath);
+                    break;
+                }
+            }
         }
+        return packagePath;
     }
 
-    // TODO: Should probably be a list, in the event of overloading
+    // Resolves a type by its simple or fully qualified name, then looks the symbol up in that type's member index.
+    // For ExternalTypeSymbol lookups the symbol name is the type name and the parent name is ignored.
     public <T extends ExternalSymbol> List<T> getSymbol(String symbolName, String symbolParentName, Class<T> clazz) {
-        for (var packagePath : symbolMap.keySet()) {
-            var symbol = getSymbol(symbolName, symbolParentName, packagePath, clazz);
-            if (!symbol.isEmpty()) {
-                return symbol;
+        String typeName = clazz == ExternalTypeSymbol.class ? symbolName : symbolParentName;
+        if (typeName == null) {
+            return Collections.emptyList();
+        }
+
+        String packagePath;
+        if (typeName.contains(".")) { // Fully qualified type
+            packagePath = StringUtils.substringBeforeLast(typeName, ".");
+            typeName = StringUtils.substringAfterLast(typeName, ".");
+        } else {
+            packagePath = getPackagePath(typeName);
+            if (packagePath == null) {
+                return Collections.emptyList();
             }
         }
-        return Collections.emptyList();
+        return getSymbol(clazz == ExternalTypeSymbol.class ? typeName : symbolName, typeName, packagePath, clazz);
     }
 
+    @SuppressWarnings("unchecked")
     public <T extends ExternalSymbol> List<T> getSymbol(String symbolName, String symbolParentName, String packagePath, Class<T> clazz) {
-        var symbols = new ArrayList<T>();
+        var packageSymbols = symbolCache.getPackage(packagePath);
 
-        var packageSymbols = symbolMap.get(packagePath);
-        if(packageSymbols != null) {
-            if(clazz == ExternalTypeSymbol.class) {
-                symbols.add(clazz.cast(packageSymbols.get(symbolName)));
-            } else {
-                var symbol = packageSymbols.get(symbolParentName);
-                if(symbol instanceof ExternalTypeSymbol typeReference) {
-                    if (clazz == ExternalVariableSymbol.class) {
-                        for (var field : typeReference.getFields()) {
-                            if (field.getName().equals(symbolName)) {
-                                symbols.add(clazz.cast(field));
-                            }
-                        }
-                    } else if (clazz == ExternalFunctionSymbol.class) {
-                        for (var function : typeReference.getFunctions()) {
-                            if (function.getName().equals(symbolName)) {
-                                symbols.add(clazz.cast(function));
-                            }
-                        }
-                    }
-                }
+        if(clazz == ExternalTypeSymbol.class) {
+            var symbol = packageSymbols.get(symbolName);
+            return symbol instanceof ExternalTypeSymbol ? List.of(clazz.cast(symbol)) : Collections.emptyList();
+        }
+
+        if(packageSymbols.get(symbolParentName) instanceof ExternalTypeSymbol typeReference) {
+            var members = typeReference.getMembers();
+            if (clazz == ExternalVariableSymbol.class) {
+                return (List<T>) members.getFields(symbolName);
+            } else if (clazz == ExternalFunctionSymbol.class) {
+                return (List<T>) members.getFunctions(symbolName);
             }
         }
-        return symbols;
+        return Collections.emptyList();
+    }
+
+    // Overloads of a function on an imported type that take the given number of arguments.
+    public List<ExternalFunctionSymbol> getFunctions(String functionName, String typeName, int arity) {
+        var typeSymbols = getSymbol(typeName, null, ExternalTypeSymbol.class);
+        if (typeSymbols.isEmpty()) {
+            return Collections.emptyList();
+        }
+        return typeSymbols.getFirst().getMembers().getFunctions(functionName, arity);
     }
 }
@@ -0,0 +1,53 @@
+package io.github.bbrown683.skald.symbol.external;
+
+import java.util.*;
+
+// The fields and functions of an ExternalTypeSymbol, resolved together on first use.
+// Members are indexed by name, and functions additionally by arity, so resolving a reference
+// or an overloaded call site is a couple of hash probes rather than a scan over every member.
+public class ExternalTypeMembers {
+    private final List<ExternalVariableSymbol> fields;
+    private final List<ExternalFunctionSymbol> functions;
+    private final Map<String, List<ExternalVariableSymbol>> fieldIndex = new HashMap<>();
+    private final Map<String, List<ExternalFunctionSymbol>> functionIndex = new HashMap<>();
+    private final Map<String, Map<Integer, List<ExternalFunctionSymbol>>> overloadIndex = new HashMap<>();
+
+    public ExternalTypeMembers(List<ExternalVariableSymbol> fields, List<ExternalFunctionSymbol> functions) {
+        this.fields = fields;
+        this.functions = functions;
+        for (var field : fields) {
+            fieldIndex.computeIfAbsent(field.getName(), k -> new ArrayList<>(1)).add(field);
+        }
+        for (var function : functions) {
+            functionIndex.computeIfAbsent(function.getName(), k -> new ArrayList<>(1)).add(function);
+            overloadIndex.computeIfAbsent(function.getName(), k -> new HashMap<>())
+                    .computeIfAbsent(function.getParameters().size(), k -> new ArrayList<>(1))
+                    .add(function);
+        }
+    }
+
+    public List<ExternalVariableSymbol> getFields() {
+        return fields;
+    }
+
+    public List<ExternalFunctionSymbol> getFunctions() {
+        return functions;
+    }
+
+    public List<ExternalVariableSymbol> getFields(String name) {
+        return fieldIndex.getOrDefault(name, Collections.emptyList());
+    }
+
+    public List<ExternalFunctionSymbol> getFunctions(String name) {
+        return functionIndex.getOrDefault(name, Collections.emptyList());
+    }
+
+    // Overloads of a function that take the given number of parameters.
+    public List<ExternalFunctionSymbol> getFunctions(String name, int arity) {
+        var overloads = overloadIndex.get(name);
+        if (overloads == null) {
+            return Collections.emptyList();
+        }
+        return overloads.getOrDefault(arity, Collections.emptyList());
+    }
+}
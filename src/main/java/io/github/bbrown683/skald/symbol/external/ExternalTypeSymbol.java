@@ -1,10 +1,12 @@
 package io.github.bbrown683.skald.symbol.external;
 
 import java.util.List;
+import java.util.function.Supplier;
 
 public class ExternalTypeSymbol extends ExternalSymbol {
-    private final List<ExternalVariableSymbol> fields;
-    private final List<ExternalFunctionSymbol> functions;
+    private final ExternalTypeMembers members;
+    private final ExternalMemberCache memberCache;
+    private final Supplier<ExternalTypeMembers> memberResolver;
     private final List<ExternalTypeSymbol> subTypes;
     private final String superType;
 
@@ -16,18 +18,44 @@ public class ExternalTypeSymbol extends ExternalSymbol {
                               List<ExternalTypeSymbol> subTypes,
                               String superType) {
         super(name, isPublic, isStatic);
-        this.fields = fields;
-        this.functions = functions;
+        this.members = new ExternalTypeMembers(fields, functions);
+        this.memberCache = null;
+        this.memberResolver = null;
         this.subTypes = subTypes;
         this.superType = superType;
     }
 
+    // Members are only resolved when first looked up, and are kept in the cache until evicted.
+    public ExternalTypeSymbol(String name,
+                              boolean isPublic,
+                              boolean isStatic,
+                              List<ExternalTypeSymbol> subTypes,
+                              String superType,
+                              ExternalMemberCache memberCache,
+                              Supplier<ExternalTypeMembers> memberResolver) {
+        super(name, isPublic, isStatic);
+        this.members = null;
+        this.memberCache = memberCache;
+        this.memberResolver = memberResolver;
+        this.subTypes = subTypes;
+        this.superType = superType;
+    }
+
+    public ExternalTypeMembers getMembers() {
+        return members != null ? members : memberCache.get(this, memberResolver);
+    }
+
+    // Resolves the members without adding them to the cache, for callers that visit every type of a package once.
+    public ExternalTypeMembers resolveMembers() {
+        return members != null ? members : memberResolver.get();
+    }
+
     public List<ExternalVariableSymbol> getFields() {
-        return fields;
+        return getMembers().getFields();
     }
 
     public List<ExternalFunctionSymbol> getFunctions() {
-        return functions;
+        return getMembers().getFunctions();
     }
 
     public List<ExternalTypeSymbol> getSubTypes() {
@@ -37,4 +65,4 @@ public class ExternalTypeSymbol extends ExternalSymbol {
     public String getSuperType() {
         return superType;
     }
-}
\ No newline at end of file
+}
@@ -3,7 +3,9 @@ package io.github.bbrown683.skald.symbol.local;
 import org.antlr.v4.runtime.ParserRuleContext;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 // Local symbols are symbols visible to the ClassFile they are declared in.
 // They provide scope information.
@@ -12,6 +14,8 @@ public abstract class LocalSymbol {
     protected final ParserRuleContext ctx; // The context in the parse tree where this symbol was declared
     protected LocalSymbol parent;
     protected final List<LocalSymbol> children = new ArrayList<>();
+    protected int order; // Index of this symbol in its parent's children, i.e. its declaration order
+    private Map<String, List<LocalSymbol>> scope; // Children by name in declaration order, excluding markers
 
     public LocalSymbol(String name, ParserRuleContext ctx) {
         this.name = name;
@@ -35,8 +39,15 @@ public abstract class LocalSymbol {
     }
 
     public void addChild(LocalSymbol child) {
+        child.order = children.size();
         children.add(child);
         child.parent = this;
+        if (!(child instanceof LocalMarkerSymbol)) {
+            if (scope == null) {
+                scope = new HashMap<>();
+            }
+            scope.computeIfAbsent(child.name, k -> new ArrayList<>(1)).add(child);
+        }
     }
 
     // Returns a list of all visible symbols. Does not return block symbols.
@@ -46,18 +57,17 @@ public abstract class LocalSymbol {
         var symbol = this;
         while (symbol != null) {
             var parent = symbol.parent;
-            if(parent != null) { // Scan under parent for symbols
-                var parentChildren = parent.children;
-                // Check for symbols before the current symbol in the parent's children list
-                var symbolIndex = parentChildren.indexOf(symbol);
-                for(int i = 0; i < symbolIndex; i++) {
-                    var sibling = parentChildren.get(i);
-                    if (!(sibling instanceof LocalMarkerSymbol) && !visibleSymbols.contains(sibling))
-                        visibleSymbols.add(sibling);
+            if(parent != null) {
+                if(!parent.isTopLevel()) { // Check for symbols before the current symbol in the parent's children list
+                    for(int i = 0; i < symbol.order; i++) {
+                        var sibling = parent.children.get(i);
+                        if (!(sibling instanceof LocalMarkerSymbol))
+                            visibleSymbols.add(sibling);
+                    }
                 }
-            } else { // Add symbols from the root symbol
+            } else { // Add symbols from the root symbol, which are visible regardless of declaration order
                 for(var child : symbol.children) {
-                    if (child != this && !(child instanceof LocalMarkerSymbol) && !visibleSymbols.contains(child))
+                    if (child != this && !(child instanceof LocalMarkerSymbol))
                         visibleSymbols.add(child);
                 }
             }
@@ -83,13 +93,47 @@ public abstract class LocalSymbol {
     }
 
     // TODO: Should probably be a list, in the event of overloading
+    // Finds the same symbol getVisibleSymbols would list first, but probes each enclosing scope's
+    // name table instead of building the list, so a lookup costs O(depth) and allocates nothing.
     public <T extends LocalSymbol> T findSymbol(String symbolName, Class<T> clazz) {
-        var visibleSymbols = getVisibleSymbols();
-        for (var visibleSymbol : visibleSymbols) {
-            if(symbolName.equals(visibleSymbol.getName()) && visibleSymbol.getClass().equals(clazz)) {
-                return clazz.cast(visibleSymbol);
+        var symbol = this;
+        while (true) {
+            var parent = symbol.parent;
+            var scopeOwner = parent != null ? parent : symbol;
+            // Below the root only symbols declared before the current one are visible.
+            int visibleCount = parent != null && !parent.isTopLevel() ? symbol.order : Integer.MAX_VALUE;
+            var declared = scopeOwner.scope != null ? scopeOwner.scope.get(symbolName) : null;
+            if (declared != null) {
+                for (var candidate : declared) {
+                    if (candidate.order >= visibleCount) {
+                        break;
+                    }
+                    if (candidate != this && candidate.getClass().equals(clazz)) {
+                        return clazz.cast(candidate);
+                    }
+                }
+            }
+            if (parent == null || parent.isTopLevel()) { // The root scope has been searched
+                break;
             }
+            symbol = parent;
         }
         return null;
     }
+
+    // Finds a symbol as seen from the end of this symbol's scope: its own children come first,
+    // followed by everything findSymbol would find from this symbol's position.
+    public <T extends LocalSymbol> T findVisibleSymbol(String symbolName, Class<T> clazz) {
+        if (parent != null) {
+            var declared = scope != null ? scope.get(symbolName) : null;
+            if (declared != null) {
+                for (var candidate : declared) {
+                    if (candidate.getClass().equals(clazz)) {
+                        return clazz.cast(candidate);
+                    }
+                }
+            }
+        }
+        return findSymbol(symbolName, clazz);
+    }
 }
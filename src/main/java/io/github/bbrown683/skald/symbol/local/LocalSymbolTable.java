@@ -1,20 +1,31 @@
 package io.github.bbrown683.skald.symbol.local;
 
+import io.github.bbrown683.skald.jvm.FunctionType;
 import org.antlr.v4.runtime.ParserRuleContext;
+import org.apache.bcel.generic.Type;
 
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 public class LocalSymbolTable {
     private final Map<ParserRuleContext, LocalSymbol> symbolMap = new HashMap<>();
+    private final Map<String, FunctionType> functionTypes = new LinkedHashMap<>();
+    private final LocalSymbol rootSymbol;
     private LocalSymbol currentSymbol;
     private LocalSymbol previousSymbol;
 
     public LocalSymbolTable(LocalSymbol rootSymbol) {
+        this.rootSymbol = rootSymbol;
         currentSymbol = rootSymbol;
         symbolMap.put(currentSymbol.getCtx(), currentSymbol);
     }
 
+    public LocalSymbol getRootSymbol() {
+        return rootSymbol;
+    }
+
     // Goes down a level in the symbol table
     public void enterScope() {
         currentSymbol = previousSymbol;
@@ -25,13 +36,40 @@ public class LocalSymbolTable {
         currentSymbol = currentSymbol.getParent();
     }
 
-    // Adds a symbol at the current level in the symbol table
+    // Adds a symbol at the current level in the symbol table.
+    // The current scope also indexes it by name, so LocalSymbol.findSymbol does not rescan the scope.
     public void addSymbol(LocalSymbol symbol) {
         currentSymbol.addChild(symbol);
         symbolMap.put(symbol.getCtx(), symbol);
         previousSymbol = symbol;
     }
 
+    // Finds a symbol visible at the point the next symbol would be added.
+    public <T extends LocalSymbol> T findSymbol(String symbolName, Class<T> clazz) {
+        return currentSymbol.findVisibleSymbol(symbolName, clazz);
+    }
+
+    // Unions are declared at the top level, and values of one have the type of its generated class.
+    public LocalUnionSymbol findUnion(Type type) {
+        for (var symbol : rootSymbol.getChildren()) {
+            if (symbol instanceof LocalUnionSymbol unionSymbol && unionSymbol.getType().equals(type)) {
+                return unionSymbol;
+            }
+        }
+        return null;
+    }
+
+    // Function types are structural, so every use of the same parameter and return types shares one type,
+    // and with it one interface. The interfaces are numbered in the order their types first appear.
+    public FunctionType getFunctionType(Type[] parameterTypes, Type returnType) {
+        return functionTypes.computeIfAbsent(FunctionType.describe(parameterTypes, returnType),
+                key -> new FunctionType(rootSymbol.getName() + "$Function" + functionTypes.size(), parameterTypes, returnType));
+    }
+
+    public Collection<FunctionType> getFunctionTypes() {
+        return functionTypes.values();
+    }
+
     public LocalSymbol getSymbol(ParserRuleContext ctx) {
         return symbolMap.get(ctx);
     }
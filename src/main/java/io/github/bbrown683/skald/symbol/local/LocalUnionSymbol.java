@@ -0,0 +1,50 @@
+package io.github.bbrown683.skald.symbol.local;
+
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.apache.bcel.generic.ObjectType;
+import org.apache.bcel.generic.Type;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// A union declared in the source file. It is generated as its own class, with one final subclass per member
+// holding the member's value. Members are numbered in declaration order, and the number is the tag every
+// value of the member carries.
+public class LocalUnionSymbol extends LocalTypeSymbol {
+    public record Member(String name, int tag, Type type, String className) {}
+
+    private final String className;
+    private final List<Member> members = new ArrayList<>();
+
+    public LocalUnionSymbol(String name, ParserRuleContext ctx, String packagePath, String className) {
+        super(name, ctx, packagePath, true, false);
+        this.className = className;
+    }
+
+    public String getClassName() {
+        return className;
+    }
+
+    public ObjectType getType() {
+        return new ObjectType(className);
+    }
+
+    public List<Member> getMembers() {
+        return members;
+    }
+
+    public Member addMember(String memberName, Type type) {
+        var member = new Member(memberName, members.size(), type, className + "$" + memberName);
+        members.add(member);
+        return member;
+    }
+
+    public Member findMember(String memberName) {
+        for (var member : members) {
+            if (member.name().equals(memberName)) {
+                return member;
+            }
+        }
+        return null;
+    }
+}
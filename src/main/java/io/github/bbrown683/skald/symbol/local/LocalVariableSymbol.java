@@ -11,8 +11,15 @@ public class LocalVariableSymbol extends LocalSymbol {
     private final boolean isArray;
     private final boolean isParameter;
     private final Object value;
+    private final Object constantValue;
 
     public LocalVariableSymbol(String name, ParserRuleContext ctx, Type type, boolean isPublic, boolean isStatic, boolean isMutable, boolean isArray, boolean isParameter, Object value) {
+        this(name, ctx, type, isPublic, isStatic, isMutable, isArray, isParameter, value, null);
+    }
+
+    // The constant value is the initializer evaluated at compile time and converted to the variable's type,
+    // or null when the initializer is only known at runtime.
+    public LocalVariableSymbol(String name, ParserRuleContext ctx, Type type, boolean isPublic, boolean isStatic, boolean isMutable, boolean isArray, boolean isParameter, Object value, Object constantValue) {
         super(name, ctx);
         this.type = type;
         this.isPublic = isPublic;
@@ -21,6 +28,7 @@ public class LocalVariableSymbol extends LocalSymbol {
         this.isArray = isArray;
         this.isParameter = isParameter;
         this.value = value;
+        this.constantValue = constantValue;
     }
 
     public Type getType() {
@@ -50,4 +58,8 @@ public class LocalVariableSymbol extends LocalSymbol {
     public Object getValue() {
         return value;
     }
+
+    public Object getConstantValue() {
+        return constantValue;
+    }
 }
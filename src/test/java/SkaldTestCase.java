@@ -1,14 +1,77 @@
 import io.github.bbrown683.skald.antlr4.*;
+import io.github.bbrown683.skald.compiler.CompileMetrics;
+import io.github.bbrown683.skald.compiler.CompiledClass;
+import io.github.bbrown683.skald.compiler.IncrementalCompiler;
+import io.github.bbrown683.skald.compiler.JarClassOutput;
+import io.github.bbrown683.skald.compiler.ParallelCompiler;
+import io.github.bbrown683.skald.compiler.SkaldClassLoader;
+import io.github.bbrown683.skald.compiler.SkaldCompiler;
+import io.github.bbrown683.skald.compiler.SourceParser;
+import io.github.bbrown683.skald.Main;
+import io.github.bbrown683.skald.daemon.CompileClient;
+import io.github.bbrown683.skald.daemon.CompileDaemon;
+import io.github.bbrown683.skald.diagnostics.DiagnosticSink;
+import io.github.bbrown683.skald.diagnostics.Diagnostics;
+import io.github.bbrown683.skald.diagnostics.JsonDiagnosticSink;
+import io.github.bbrown683.skald.diagnostics.TextDiagnosticSink;
+import io.github.bbrown683.skald.jvm.PeepholeOptimizer;
+import io.github.bbrown683.skald.jvm.StringConcatenation;
+import io.github.bbrown683.skald.jvm.UnsignedType;
+import io.github.bbrown683.skald.symbol.external.ExternalEnumSymbol;
+import io.github.bbrown683.skald.symbol.external.ExternalFunctionSymbol;
+import io.github.bbrown683.skald.symbol.external.ExternalMemberCache;
+import io.github.bbrown683.skald.symbol.external.ExternalReferenceLoader;
+import io.github.bbrown683.skald.symbol.external.ExternalSymbol;
+import io.github.bbrown683.skald.symbol.external.ExternalSymbolCache;
+import io.github.bbrown683.skald.symbol.external.ExternalSymbolIndex;
 import io.github.bbrown683.skald.symbol.external.ExternalSymbolTable;
+import io.github.bbrown683.skald.symbol.external.ExternalTypeSymbol;
+import io.github.bbrown683.skald.symbol.local.*;
 import org.antlr.v4.runtime.CharStream;
 import org.antlr.v4.runtime.CharStreams;
 import org.antlr.v4.runtime.CommonTokenStream;
+import org.apache.bcel.classfile.BootstrapMethods;
+import org.apache.bcel.classfile.ClassParser;
+import org.apache.bcel.classfile.ConstantString;
 import org.apache.bcel.classfile.JavaClass;
+import org.apache.bcel.classfile.Method;
+import org.apache.bcel.classfile.StackMap;
+import org.apache.bcel.Const;
+import org.apache.bcel.generic.*;
+import org.apache.bcel.generic.Type;
 import org.apache.bcel.util.BCELifier;
+import org.junit.jupiter.api.Assumptions;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.JarFile;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
 
 public class SkaldTestCase {
     private InputStream loadFile(String fileName) {
@@ -59,4 +122,971 @@ public class SkaldTestCase {
         externalSymbolTable.addImport("java.util.List");
         externalSymbolTable.addImport("java.util.Scanner");
     }
+
+    @Test
+    public void testSymbolIndex(@TempDir Path cacheDirectory) {
+        var symbolIndex = new ExternalSymbolIndex(cacheDirectory, "test");
+        var reflected = new ExternalReferenceLoader(null, ExternalReferenceLoader.Mode.REFLECTION).getSymbols("java.io", true);
+
+        // First import builds the index, the second is served from the mapped file. Writing the index resolves
+        // the members of every type in the package, but not through the member cache.
+        var buildingLoader = new ExternalReferenceLoader(symbolIndex, ExternalReferenceLoader.Mode.REFLECTION);
+        var built = buildingLoader.getSymbols("java.io.PrintStream", false);
+        assertEquals(0, buildingLoader.getMemberCache().size());
+        var classFileLoader = new ExternalReferenceLoader(new ExternalSymbolIndex(cacheDirectory.resolve("class-file"), "test"), ExternalReferenceLoader.Mode.CLASS_FILE);
+        assertFalse(classFileLoader.getSymbols("java.io", true).isEmpty());
+        assertEquals(0, classFileLoader.getMemberCache().size());
+        var indexed = new ExternalReferenceLoader(new ExternalSymbolIndex(cacheDirectory, "test")).getSymbols("java.io", true);
+        assertTrue(symbolIndex.containsPackage("java.io"));
+        assertEquals(reflected.keySet(), indexed.keySet());
+
+        var printStream = (ExternalTypeSymbol) indexed.get("PrintStream");
+        assertEquals(((ExternalTypeSymbol) built.get("PrintStream")).getFunctions().size(), printStream.getFunctions().size());
+        assertTrue(printStream.getFunctions().stream().anyMatch(f -> f.getName().equals("println") && f.getParameters().size() == 1));
+
+        // An index written by another runtime is ignored.
+        assertFalse(new ExternalSymbolIndex(cacheDirectory, "other").containsPackage("java.io"));
+    }
+
+    @Test
+    public void testClassFileLoader() {
+        var reflected = new ExternalReferenceLoader(null, ExternalReferenceLoader.Mode.REFLECTION).getSymbols("java.util", true);
+        var parsed = new ExternalReferenceLoader(null, ExternalReferenceLoader.Mode.CLASS_FILE).getSymbols("java.util", true);
+        assertEquals(reflected.keySet(), parsed.keySet());
+
+        // Inherited members are collected from the superclass and interface class files.
+        for (var typeName : List.of("ArrayList", "Scanner", "HashMap")) {
+            var reflectedType = (ExternalTypeSymbol) reflected.get(typeName);
+            var parsedType = (ExternalTypeSymbol) parsed.get(typeName);
+            assertEquals(getSignatures(reflectedType), getSignatures(parsedType), typeName);
+            assertEquals(reflectedType.getSuperType(), parsedType.getSuperType());
+        }
+
+        // Enums are read as enum symbols, by name only, like the reflection loader does.
+        for (var mode : ExternalReferenceLoader.Mode.values()) {
+            var timeUnit = new ExternalReferenceLoader(null, mode).getSymbols("java.util.concurrent.TimeUnit", false).get("TimeUnit");
+            assertInstanceOf(ExternalEnumSymbol.class, timeUnit, mode.name());
+            assertTrue(timeUnit.isPublic());
+        }
+    }
+
+    private Set<String> getSignatures(ExternalTypeSymbol typeSymbol) {
+        var signatures = new HashSet<String>();
+        typeSymbol.getFields().forEach(f -> signatures.add(f.getName() + ":" + f.getType().getSignature()));
+        typeSymbol.getFunctions().forEach(f -> signatures.add(f.getName() + f.getParameters().stream().map(p -> p.getType().getSignature()).toList() + f.getReturnType().getSignature()));
+        return signatures;
+    }
+
+    @Test
+    public void testLazyMembers() {
+        var memberCache = new ExternalMemberCache(2);
+        var symbolLoader = new ExternalReferenceLoader(null, ExternalReferenceLoader.Mode.CLASS_FILE, memberCache);
+        var externalSymbolTable = new ExternalSymbolTable(symbolLoader);
+        externalSymbolTable.addImport("java.io.*");
+        assertEquals(0, memberCache.size());
+
+        var println = externalSymbolTable.getSymbol("println", "PrintStream", "java.io", ExternalFunctionSymbol.class);
+        assertFalse(println.isEmpty());
+        assertEquals(1, memberCache.size());
+
+        // Resolving more types than the cache holds evicts the least recently used, which resolve again on lookup.
+        externalSymbolTable.getSymbol("read", "Reader", "java.io", ExternalFunctionSymbol.class);
+        externalSymbolTable.getSymbol("write", "Writer", "java.io", ExternalFunctionSymbol.class);
+        assertEquals(2, memberCache.size());
+        assertEquals(println.size(), externalSymbolTable.getSymbol("println", "PrintStream", "java.io", ExternalFunctionSymbol.class).size());
+    }
+
+    @Test
+    public void testOverloadIndex() {
+        var externalSymbolTable = new ExternalSymbolTable();
+        externalSymbolTable.addImport("java.io.PrintStream");
+
+        var overloads = externalSymbolTable.getFunctions("println", "PrintStream", 1);
+        assertFalse(overloads.isEmpty());
+        assertTrue(overloads.stream().allMatch(f -> f.getName().equals("println") && f.getParameters().size() == 1));
+        assertEquals(1, externalSymbolTable.getFunctions("println", "java.io.PrintStream", 0).size());
+        assertTrue(externalSymbolTable.getFunctions("println", "Missing", 1).isEmpty());
+        assertEquals(1, externalSymbolTable.getSymbol("String", null, ExternalTypeSymbol.class).size());
+    }
+
+    @Test
+    public void testScopedLookup() {
+        var localSymbolTable = new LocalSymbolTable(new LocalClassFileSymbol("Scope", null));
+        var global = new LocalVariableSymbol("shared", null, Type.INT, false, true, false, false, false, 1);
+        localSymbolTable.addSymbol(global);
+        localSymbolTable.addSymbol(new LocalFunctionSymbol("main", null, Type.VOID, true, true));
+        localSymbolTable.enterScope();
+        var locals = new ArrayList<LocalVariableSymbol>();
+        for (int i = 0; i < 200; i++) {
+            var local = new LocalVariableSymbol("local" + i, null, Type.INT, false, false, false, false, false, i);
+            localSymbolTable.addSymbol(local);
+            locals.add(local);
+        }
+        var block = new LocalMarkerSymbol("if", null);
+        localSymbolTable.addSymbol(block);
+        localSymbolTable.enterScope();
+        var shadow = new LocalVariableSymbol("shared", null, Type.INT, false, false, false, false, false, 2);
+        localSymbolTable.addSymbol(shadow);
+        var inner = new LocalVariableSymbol("inner", null, Type.INT, false, false, false, false, false, 3);
+        localSymbolTable.addSymbol(inner);
+        localSymbolTable.exitScope();
+        var late = new LocalVariableSymbol("late", null, Type.INT, false, false, false, false, false, 4);
+        localSymbolTable.addSymbol(late);
+
+        // Nearest scope wins, and only earlier declarations are visible below the root.
+        assertSame(shadow, inner.findSymbol("shared", LocalVariableSymbol.class));
+        assertSame(global, late.findSymbol("shared", LocalVariableSymbol.class));
+        assertSame(locals.get(199), inner.findSymbol("local199", LocalVariableSymbol.class));
+        assertNull(locals.get(10).findSymbol("local11", LocalVariableSymbol.class));
+        assertNull(late.findSymbol("inner", LocalVariableSymbol.class));
+        assertNull(inner.findSymbol("late", LocalVariableSymbol.class));
+        assertNotNull(locals.get(0).findSymbol("main", LocalFunctionSymbol.class));
+
+        // Agrees with the first matching entry of getVisibleSymbols.
+        for (var symbol : List.of(inner, late, locals.get(50), global)) {
+            for (var name : List.of("shared", "local49", "local50", "inner", "late", "main")) {
+                var expected = symbol.getVisibleSymbols().stream()
+                        .filter(v -> v.getName().equals(name) && v.getClass().equals(LocalVariableSymbol.class))
+                        .findFirst().orElse(null);
+                assertSame(expected, symbol.findSymbol(name, LocalVariableSymbol.class), symbol.getName() + " -> " + name);
+            }
+        }
+    }
+
+    @Test
+    public void testParallelCompiler(@TempDir Path directory) throws Exception {
+        var sourceDirectory = Files.createDirectories(directory.resolve("src/nested"));
+        var outputDirectory = directory.resolve("out");
+        for (int i = 0; i < 8; i++) {
+            try (var variable = loadFile("Variable.lang"); var test = loadFile("Test.lang")) {
+                Files.write(sourceDirectory.resolve("Variable" + i + ".lang"), variable.readAllBytes());
+                Files.write(sourceDirectory.getParent().resolve("Test" + i + ".lang"), test.readAllBytes());
+            }
+        }
+
+        var sourceFiles = ParallelCompiler.findSourceFiles(List.of(directory.resolve("src")));
+        assertEquals(16, sourceFiles.size());
+        var failures = new ParallelCompiler(4).compile(sourceFiles, outputDirectory);
+        assertTrue(failures.isEmpty(), failures.toString());
+        for (int i = 0; i < 8; i++) {
+            assertTrue(Files.isRegularFile(outputDirectory.resolve("Variable" + i + ".class")));
+            assertTrue(Files.isRegularFile(outputDirectory.resolve("Test" + i + ".class")));
+        }
+
+        // A class generated by two files is written once, for the file that is not reported as failing.
+        var duplicateDirectory = Files.createDirectories(directory.resolve("duplicate/nested"));
+        var first = Files.writeString(duplicateDirectory.getParent().resolve("Duplicate.lang"), "static var first : int = 1;");
+        var second = Files.writeString(duplicateDirectory.resolve("Duplicate.lang"), "static var second : int = 2;");
+        var duplicateFailures = new ParallelCompiler(2).compile(List.of(first, second), outputDirectory);
+        assertEquals(1, duplicateFailures.size(), duplicateFailures.toString());
+        var writtenFile = duplicateFailures.containsKey(first) ? second : first;
+        var written = new ClassParser(outputDirectory.resolve("Duplicate.class").toString()).parse();
+        assertEquals(writtenFile == first ? "first" : "second", written.getFields()[0].getName());
+    }
+
+    @Test
+    public void testSharedSymbolCache() throws Exception {
+        var loadCounts = new ConcurrentHashMap<String, AtomicInteger>();
+        var symbolLoader = new ExternalReferenceLoader(null) {
+            @Override
+            public Map<String, ExternalSymbol> getSymbols(String importPath, boolean isPackage) {
+                loadCounts.computeIfAbsent(importPath, key -> new AtomicInteger()).incrementAndGet();
+                return super.getSymbols(importPath, isPackage);
+            }
+        };
+        var symbolCache = new ExternalSymbolCache(symbolLoader);
+
+        var executor = Executors.newFixedThreadPool(16);
+        try {
+            var tasks = new ArrayList<Callable<Boolean>>();
+            for (int i = 0; i < 16; i++) {
+                tasks.add(() -> {
+                    var externalSymbolTable = new ExternalSymbolTable(symbolCache);
+                    externalSymbolTable.addImport("java.util.*");
+                    return !externalSymbolTable.getSymbol("ArrayList", null, ExternalTypeSymbol.class).isEmpty()
+                            && !externalSymbolTable.getFunctions("println", "java.io.PrintStream", 1).isEmpty();
+                });
+            }
+            for (var future : executor.invokeAll(tasks)) {
+                assertTrue(future.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        // Every package is loaded by exactly one of the compilations.
+        assertEquals(Set.of("java.lang", "java.util", "java.io"), loadCounts.keySet());
+        loadCounts.values().forEach(count -> assertEquals(1, count.get()));
+    }
+
+    @Test
+    public void testIncrementalCompiler(@TempDir Path directory) throws Exception {
+        var sourceDirectory = Files.createDirectories(directory.resolve("src"));
+        var outputDirectory = directory.resolve("out");
+        var library = sourceDirectory.resolve("Library.lang");
+        var application = sourceDirectory.resolve("Application.lang");
+        var unrelated = sourceDirectory.resolve("Unrelated.lang");
+        Files.writeString(library, "package demo.lib;\npub fn f(x: int[]) {}\n");
+        Files.writeString(application, "package demo.app;\nimport demo.lib.*;\npub fn g() {}\n");
+        Files.writeString(unrelated, "package demo.other;\npub fn h() {}\n");
+
+        var sourceFiles = ParallelCompiler.findSourceFiles(List.of(sourceDirectory));
+        var compiler = new IncrementalCompiler(new ParallelCompiler(2));
+        var result = compiler.compile(sourceFiles, outputDirectory);
+        assertTrue(result.failures().isEmpty(), result.failures().toString());
+        assertEquals(3, result.compiledFiles().size());
+
+        // Nothing changed.
+        assertTrue(compiler.compile(sourceFiles, outputDirectory).compiledFiles().isEmpty());
+
+        // The body changed but the signatures did not, so dependents are up to date.
+        Files.writeString(library, "package demo.lib;\n// Comment\npub fn f(x: int[]) {}\n");
+        assertEquals(List.of(library), compiler.compile(sourceFiles, outputDirectory).compiledFiles());
+
+        // The signature changed, so the file importing its package is compiled again.
+        Files.writeString(library, "package demo.lib;\npub fn f(x: long[]) {}\n");
+        assertEquals(Set.of(library, application), new HashSet<>(compiler.compile(sourceFiles, outputDirectory).compiledFiles()));
+
+        // A missing class file is generated again.
+        Files.delete(outputDirectory.resolve("Unrelated.class"));
+        assertEquals(List.of(unrelated), compiler.compile(sourceFiles, outputDirectory).compiledFiles());
+
+        // Nested classes are tracked like the class of the file: a missing one is generated again, and those
+        // a file no longer generates are deleted, as are all of them when the file is removed.
+        Files.writeString(unrelated, "package demo.other;\ntype Shape { Circle of int, Square of long }\npub fn h() {}\n");
+        assertEquals(List.of(unrelated), compiler.compile(sourceFiles, outputDirectory).compiledFiles());
+        var circle = outputDirectory.resolve("Unrelated$Shape$Circle.class");
+        assertTrue(Files.isRegularFile(circle) && Files.isRegularFile(outputDirectory.resolve("Unrelated$Shape$Square.class")));
+        Files.delete(circle);
+        assertEquals(List.of(unrelated), compiler.compile(sourceFiles, outputDirectory).compiledFiles());
+        assertTrue(Files.isRegularFile(circle));
+        Files.writeString(unrelated, "package demo.other;\ntype Shape { Circle of int }\npub fn h() {}\n");
+        compiler.compile(sourceFiles, outputDirectory);
+        assertTrue(Files.isRegularFile(circle));
+        assertFalse(Files.exists(outputDirectory.resolve("Unrelated$Shape$Square.class")));
+        Files.delete(unrelated);
+        compiler.compile(List.of(library, application), outputDirectory);
+        assertFalse(Files.exists(circle) || Files.exists(outputDirectory.resolve("Unrelated$Shape.class")) || Files.exists(outputDirectory.resolve("Unrelated.class")));
+    }
+
+    @Test
+    public void testTwoStageParser() throws IOException {
+        for (var fileName : List.of("Test.lang", "Variable.lang")) {
+            String source;
+            try (var inputStream = loadFile(fileName)) {
+                source = new String(inputStream.readAllBytes());
+            }
+            var twoStageTree = new SourceParser(true).parse(fileName, CharStreams.fromString(source));
+            var llTree = new SourceParser(false).parse(fileName, CharStreams.fromString(source));
+            assertEquals(llTree.toStringTree(), twoStageTree.toStringTree());
+        }
+
+        // Invalid sources fall back to LL, which reports the error.
+        assertThrows(RuntimeException.class, () -> new SourceParser(true).parse("Invalid", CharStreams.fromString("pub fn main( {}")));
+
+        // A lexer error leaves a token stream SLL can parse, so both modes must still reject it.
+        for (boolean twoStage : new boolean[] { true, false }) {
+            var exception = assertThrows(RuntimeException.class, () -> new SourceParser(twoStage).parse("Unlexable",
+                    CharStreams.fromString("pub static fn main(args: string[]) { var a : int = 5#; }")));
+            assertTrue(exception.getMessage().contains("token recognition error at: '#'"), exception.getMessage());
+        }
+    }
+
+    @Test
+    public void testCompileMetrics() throws IOException {
+        CompiledClass compiledClass;
+        try (var inputStream = loadFile("Test.lang")) {
+            compiledClass = new SkaldCompiler().compile("Test", CharStreams.fromStream(inputStream));
+        }
+        var metrics = compiledClass.metrics();
+        for (var phase : List.of(CompileMetrics.Phase.LEX, CompileMetrics.Phase.PARSE, CompileMetrics.Phase.SYMBOLS, CompileMetrics.Phase.CODEGEN)) {
+            assertTrue(metrics.getWallNanos(phase) > 0, phase.name());
+        }
+        assertTrue(metrics.getSymbolsResolved() > 0);
+        assertTrue(metrics.getInstructionsEmitted() > 0);
+        assertTrue(metrics.getConstantPoolEntries() > 0);
+
+        var total = CompileMetrics.sum("Total", List.of(metrics, metrics));
+        assertEquals(2, total.getFileCount());
+        assertEquals(2 * metrics.getInstructionsEmitted(), total.getInstructionsEmitted());
+        assertEquals(2 * metrics.getTotalWallNanos(), total.getTotalWallNanos());
+    }
+
+    @Test
+    public void testDiagnostics() throws IOException {
+        var events = new ArrayList<String>();
+        DiagnosticSink sink = (level, event, fields) -> {
+            synchronized (events) {
+                events.add(level + " " + event + " " + List.of(fields));
+            }
+        };
+        var previousLevel = Diagnostics.getLevel();
+        try {
+            Diagnostics.configure(Diagnostics.Level.TRACE, sink);
+            try (var inputStream = loadFile("Variable.lang")) {
+                new SkaldCompiler().compile("Variable", CharStreams.fromStream(inputStream));
+            }
+            assertTrue(events.contains("TRACE push [type, int, value, 2147483647]"), events.toString());
+            assertTrue(events.stream().anyMatch(event -> event.startsWith("DEBUG function [name, main")), events.toString());
+
+            events.clear();
+            Diagnostics.configure(Diagnostics.Level.INFO, sink);
+            try (var inputStream = loadFile("Variable.lang")) {
+                new SkaldCompiler().compile("Variable", CharStreams.fromStream(inputStream));
+            }
+            assertTrue(events.isEmpty(), events.toString());
+        } finally {
+            Diagnostics.configure(previousLevel, new TextDiagnosticSink(Diagnostics.newErrorStream()));
+        }
+
+        var output = new ByteArrayOutputStream();
+        new JsonDiagnosticSink(new PrintStream(output, true)).emit(Diagnostics.Level.TRACE, "push", "type", "string", "value", "a \"quoted\" value");
+        assertEquals("{\"level\":\"TRACE\",\"thread\":\"" + Thread.currentThread().getName() + "\",\"event\":\"push\",\"type\":\"string\",\"value\":\"a \\\"quoted\\\" value\"}",
+                output.toString().strip());
+    }
+
+    @Test
+    public void testInMemoryCompile(@TempDir Path directory) throws Exception {
+        String source = "pub static fn main(args: string[]) {\n    var greeting : string = \"Hello\";\n}\n";
+        var classes = new SkaldCompiler().compile(Map.of("Script", source));
+        assertEquals(Set.of("Script"), classes.keySet());
+
+        var jarFile = directory.resolve("script.jar");
+        try (var classOutput = new JarClassOutput(jarFile)) {
+            new SkaldCompiler().compile(Map.of("Script", source), classOutput);
+        }
+        try (var jar = new JarFile(jarFile.toFile())) {
+            assertNotNull(jar.getEntry("Script.class"));
+        }
+
+        // Classes compiled for a newer runtime than the one running the tests cannot be defined.
+        Assumptions.assumeTrue(Runtime.version().feature() >= 23);
+        var scriptClass = new SkaldClassLoader(classes).loadClass("Script");
+        scriptClass.getMethod("main", String[].class).invoke(null, (Object) new String[0]);
+    }
+
+    @Test
+    public void testConstantFolding() throws Exception {
+        String source = """
+                pub static fn main(args: string[]) {
+                    var a : int = 2 * (3 + 4);
+                    var b : long = a + 1;
+                    var s : string = "x" + a;
+                    mut var m : int = 5;
+                    var n : int = m * 3 + a;
+                    var c : int = a-1;
+                    var d : int = 2-1;
+                    var e : int = -(a + 1);
+                    var k : long = -m;
+                }
+                """;
+        var parser = new SkaldParser(new CommonTokenStream(new SkaldLexer(CharStreams.fromString(source))));
+        var symbolVisitor = new SymbolVisitor("Folded");
+        symbolVisitor.visit(parser.classFile());
+        var function = symbolVisitor.getLocalSymbolTable().getRootSymbol().getChildren().getFirst();
+        assertEquals(14, function.findVisibleSymbol("a", LocalVariableSymbol.class).getConstantValue());
+        assertEquals(15L, function.findVisibleSymbol("b", LocalVariableSymbol.class).getConstantValue());
+        assertEquals("x14", function.findVisibleSymbol("s", LocalVariableSymbol.class).getConstantValue());
+        assertNull(function.findVisibleSymbol("n", LocalVariableSymbol.class).getConstantValue()); // m is mutable
+        // The sign is not part of a number's token, so a-1 subtracts and -(...) negates.
+        assertEquals(13, function.findVisibleSymbol("c", LocalVariableSymbol.class).getConstantValue());
+        assertEquals(1, function.findVisibleSymbol("d", LocalVariableSymbol.class).getConstantValue());
+        assertEquals(-15, function.findVisibleSymbol("e", LocalVariableSymbol.class).getConstantValue());
+        assertThrows(RuntimeException.class, () -> new SkaldCompiler().compile(Map.of("NegatedUnsigned", "static mut var u : uint = 1;\nstatic var v : uint = -u;")));
+
+        // Only the operation reading the mutable variable is left to run.
+        var bytes = new SkaldCompiler().compile(Map.of("Folded", source)).get("Folded");
+        var javaClass = new ClassParser(new ByteArrayInputStream(bytes), "Folded.class").parse();
+        var main = Arrays.stream(javaClass.getMethods()).filter(method -> method.getName().equals("main")).findFirst().orElseThrow();
+        var opcodes = Arrays.stream(new InstructionList(main.getCode().getCode()).getInstructions()).map(Instruction::getName).toList();
+        assertEquals(1, opcodes.stream().filter("imul"::equals).count(), opcodes.toString());
+        assertEquals(1, opcodes.stream().filter("iadd"::equals).count(), opcodes.toString());
+        assertFalse(opcodes.contains("ladd"), opcodes.toString());
+        assertEquals(1, opcodes.stream().filter("ineg"::equals).count(), opcodes.toString());
+
+        Assumptions.assumeTrue(Runtime.version().feature() >= 23);
+        var foldedClass = new SkaldClassLoader(Map.of("Folded", bytes)).loadClass("Folded");
+        foldedClass.getMethod("main", String[].class).invoke(null, (Object) new String[0]);
+    }
+
+    @Test
+    public void testStaticConstantFields() throws Exception {
+        String source = """
+                pub static var LIMIT : int = 42;
+                static var GREETING : string = "hi";
+                static mut var COUNTER : int = 7;
+                static var DOUBLED : int = COUNTER * 2;
+                static var COPIED : int = COUNTER;
+                var instanceValue : int = 3;
+
+                pub static fn read() {
+                    var x : int = COUNTER;
+                }
+                """;
+        var bytes = new SkaldCompiler().compile(Map.of("Fields", source)).get("Fields");
+        var javaClass = new ClassParser(new ByteArrayInputStream(bytes), "Fields.class").parse();
+        var constants = new HashSet<String>();
+        for (var field : javaClass.getFields()) {
+            if (field.getConstantValue() != null) {
+                constants.add(field.getName());
+            }
+        }
+        assertEquals(Set.of("LIMIT", "GREETING"), constants);
+
+        // Only the static fields that are not constants are assigned, and only once by the static initializer.
+        var methods = Arrays.stream(javaClass.getMethods()).collect(Collectors.toMap(Method::getName, method -> method));
+        var initOpcodes = Arrays.stream(new InstructionList(methods.get("<init>").getCode().getCode()).getInstructions()).map(Instruction::getName).toList();
+        var clinitOpcodes = Arrays.stream(new InstructionList(methods.get("<clinit>").getCode().getCode()).getInstructions()).map(Instruction::getName).toList();
+        assertFalse(initOpcodes.contains("putstatic"), initOpcodes.toString());
+        assertEquals(1, initOpcodes.stream().filter("putfield"::equals).count(), initOpcodes.toString());
+        assertEquals(3, clinitOpcodes.stream().filter("putstatic"::equals).count(), clinitOpcodes.toString());
+
+        // Other static fields are read from this class, into a field or a local.
+        var clinit = methods.get("<clinit>").getCode().toString();
+        assertTrue(Pattern.compile("getstatic\\s+Fields.COUNTER I.*\\s+\\d+:\\s+putstatic\\s+Fields.COPIED").matcher(clinit).find(), clinit);
+        var read = methods.get("read").getCode().toString();
+        assertTrue(Pattern.compile("getstatic\\s+Fields.COUNTER I").matcher(read).find(), read); // Its unused store is optimized away
+
+        Assumptions.assumeTrue(Runtime.version().feature() >= 23);
+        var fieldsClass = new SkaldClassLoader(Map.of("Fields", bytes)).loadClass("Fields");
+        var doubled = fieldsClass.getDeclaredField("DOUBLED");
+        doubled.setAccessible(true);
+        assertEquals(14, doubled.get(null));
+        var copied = fieldsClass.getDeclaredField("COPIED");
+        copied.setAccessible(true);
+        assertEquals(7, copied.get(null));
+        fieldsClass.getDeclaredMethod("read").invoke(null);
+        var instanceValue = fieldsClass.getDeclaredField("instanceValue");
+        instanceValue.setAccessible(true);
+        assertEquals(3, instanceValue.get(fieldsClass.getDeclaredConstructor().newInstance()));
+    }
+
+    @Test
+    public void testConstantPush() throws Exception {
+        String source = """
+                pub static fn main(args: string[]) {
+                    var a : int = 5;
+                    var b : int = 100;
+                    var c : int = 1000;
+                    var d : int = 100000;
+                    var e : char = 'é';
+                    var f : long = 1;
+                    var g : long = 2;
+                    var h : float = 2.0;
+                    var i : float = 2.5;
+                    var j : double = 1.0;
+                    var k : string = "shared";
+                    var l : string = "shared";
+                }
+                """;
+        // Without the optimizer, so that the unused variables keep their pushes.
+        var compiler = new SkaldCompiler(ExternalSymbolCache.shared(), new SourceParser(), false);
+        var bytes = compiler.compile(Map.of("Pushes", source)).get("Pushes");
+        var javaClass = new ClassParser(new ByteArrayInputStream(bytes), "Pushes.class").parse();
+        var main = Arrays.stream(javaClass.getMethods()).filter(method -> method.getName().equals("main")).findFirst().orElseThrow();
+        var instructions = new InstructionList(main.getCode().getCode()).getInstructions();
+        var pushes = new ArrayList<String>();
+        for (int i = 0; i < instructions.length - 1; i += 2) { // Each push is followed by its store, and the last by a return
+            pushes.add(instructions[i].getName());
+        }
+        assertEquals(List.of("iconst_5", "bipush", "sipush", "ldc", "sipush", "lconst_1", "ldc2_w", "fconst_2", "ldc", "dconst_1", "ldc", "ldc"), pushes);
+        assertEquals(233, ((SIPUSH) instructions[8]).getValue());
+        assertEquals(((LDC) instructions[20]).getIndex(), ((LDC) instructions[22]).getIndex()); // One pool entry for both strings
+    }
+
+    @Test
+    public void testPeepholeOptimizer() {
+        var classGen = new ClassGen("Peephole", "java.lang.Object", "Peephole.lang", Const.ACC_PUBLIC, null);
+        var instructionList = new InstructionList();
+        instructionList.append(new BIPUSH((byte) 10));
+        instructionList.append(new ISTORE(0));
+        instructionList.append(new ILOAD(0));
+        instructionList.append(new ISTORE(0)); // Stores the value it just loaded
+        var jumpToNext = instructionList.append(new GOTO(null));
+        var next = instructionList.append(new ILOAD(0));
+        jumpToNext.setTarget(next);
+        instructionList.append(InstructionConst.ICONST_1);
+        instructionList.append(InstructionConst.POP);
+        var jumpToReturn = instructionList.append(new GOTO(null));
+        instructionList.append(InstructionConst.ICONST_2); // Unreachable
+        var returnHandle = instructionList.append(InstructionConst.IRETURN);
+        ((GOTO) jumpToReturn.getInstruction()).setTarget(returnHandle);
+
+        var methodGen = new MethodGen(Const.ACC_STATIC, Type.INT, Type.NO_ARGS, new String[0], "value", "Peephole", instructionList, classGen.getConstantPool());
+        assertEquals(9, new PeepholeOptimizer().optimize(methodGen));
+        var opcodes = Arrays.stream(instructionList.getInstructions()).map(Instruction::getName).toList();
+        assertEquals(List.of("bipush", "ireturn"), opcodes);
+    }
+
+    @Test
+    public void testLocalSlotReuse() throws Exception {
+        String source = """
+                static mut var verbose : boolean = false;
+
+                fn choose(flag: boolean, x: long) {
+                    if flag {
+                        mut var a : int = 1;
+                        var b : int = a + 2;
+                    } else if verbose {
+                        mut var d : double = 2.5;
+                        var e : double = d * 2;
+                    } else {
+                        mut var c : long = 7;
+                        var f : long = c + x;
+                    }
+                }
+
+                pub static fn main(args: string[]) {
+                    mut var a : int = 1;
+                    var b : int = a + 1;
+                    var c : int = b + 1;
+                    var d : int = c + 1;
+                }
+                """;
+        // Without the optimizer, so that every variable keeps its store and load.
+        var compiler = new SkaldCompiler(ExternalSymbolCache.shared(), new SourceParser(), false);
+        var bytes = compiler.compile(Map.of("Slots", source)).get("Slots");
+        var javaClass = new ClassParser(new ByteArrayInputStream(bytes), "Slots.class").parse();
+        var methods = Arrays.stream(javaClass.getMethods()).collect(Collectors.toMap(Method::getName, method -> method));
+
+        // Each variable of the chain is dead once the next is computed, so all four share the slot after args.
+        assertEquals(2, methods.get("main").getCode().getMaxLocals());
+        // The blocks of the if statement reuse one slot after the parameters, even for the wide types.
+        var choose = methods.get("choose").getCode();
+        assertEquals(5, choose.getMaxLocals());
+        assertTrue(Arrays.stream(choose.getAttributes()).anyMatch(attribute -> attribute instanceof StackMap));
+
+        Assumptions.assumeTrue(Runtime.version().feature() >= 23);
+        var slotsClass = new SkaldClassLoader(Map.of("Slots", bytes)).loadClass("Slots");
+        var chooseMethod = slotsClass.getDeclaredMethod("choose", boolean.class, long.class);
+        chooseMethod.setAccessible(true);
+        chooseMethod.invoke(null, true, 3L);
+        chooseMethod.invoke(null, false, 3L);
+    }
+
+    @Test
+    public void testUnsignedArithmetic() throws Exception {
+        String source = """
+                static var BIG : uint = 4000000000;
+                static var THIRD : uint = BIG / 3;
+                static var LARGEST : ulong = 18446744073709551615;
+                static mut var x : uint = 4000000000;
+                static mut var b : ubyte = 200;
+                static mut var m : ulong = 18446744073709551615;
+                static var quotient : uint = x / 3;
+                static var greater : bool = x > 1;
+                static var same : bool = x == BIG;
+                static var different : bool = m != 1;
+                static var widened : ulong = x + 0;
+                static var sum : int = b + 100;
+                static var wrapped : ubyte = b + 100;
+                static var text : string = "" + x + " " + m;
+                static var tenth : ulong = m / 10;
+                """;
+        var parser = new SkaldParser(new CommonTokenStream(new SkaldLexer(CharStreams.fromString(source))));
+        var symbolVisitor = new SymbolVisitor("Unsigned");
+        symbolVisitor.visit(parser.classFile());
+        var root = symbolVisitor.getLocalSymbolTable().getRootSymbol();
+        assertEquals((int) 4000000000L, root.findVisibleSymbol("BIG", LocalVariableSymbol.class).getConstantValue());
+        assertEquals(1333333333, root.findVisibleSymbol("THIRD", LocalVariableSymbol.class).getConstantValue());
+        assertEquals(-1L, root.findVisibleSymbol("LARGEST", LocalVariableSymbol.class).getConstantValue());
+        assertThrows(RuntimeException.class, () -> ConstantFolder.getOperandType("+",
+                new ConstantFolder.Operand(UnsignedType.UINT, null), new ConstantFolder.Operand(Type.INT, null)));
+
+        // Runtime values stay primitive and use the unsigned methods of Integer and Long.
+        var bytes = new SkaldCompiler().compile(Map.of("Unsigned", source)).get("Unsigned");
+        var javaClass = new ClassParser(new ByteArrayInputStream(bytes), "Unsigned.class").parse();
+        var clinit = Arrays.stream(javaClass.getMethods()).filter(method -> method.getName().equals("<clinit>")).findFirst().orElseThrow();
+        var code = clinit.getCode().toString();
+        for (var intrinsic : List.of("Integer.divideUnsigned", "Integer.compareUnsigned", "Integer.signum", "Integer.toUnsignedLong", "Integer.toUnsignedString", "Long.toUnsignedString", "Long.divideUnsigned")) {
+            assertTrue(code.contains(intrinsic), intrinsic);
+        }
+        assertFalse(code.contains("valueOf"), code);
+
+        Assumptions.assumeTrue(Runtime.version().feature() >= 23);
+        var unsignedClass = new SkaldClassLoader(Map.of("Unsigned", bytes)).loadClass("Unsigned");
+        var values = new HashMap<String, Object>();
+        for (var field : unsignedClass.getDeclaredFields()) {
+            field.setAccessible(true);
+            values.put(field.getName(), field.get(null));
+        }
+        assertEquals(1333333333, values.get("quotient"));
+        assertEquals(true, values.get("greater"));
+        assertEquals(true, values.get("same"));
+        assertEquals(true, values.get("different"));
+        assertEquals(4000000000L, values.get("widened"));
+        assertEquals(300, values.get("sum"));
+        assertEquals((byte) 44, values.get("wrapped"));
+        assertEquals("4000000000 18446744073709551615", values.get("text"));
+        assertEquals(1844674407370955161L, values.get("tenth"));
+    }
+
+    @Test
+    public void testMatchStatement() throws Exception {
+        String source = """
+                static var LIMIT : int = 40;
+
+                fn dense(x: int) {
+                    match x {
+                        1 -> var a : int = x + 1;
+                        2 -> { var b : int = x * 2; var c : int = b + 1; }
+                        5 -> var d : int = 5;
+                        _ -> var e : int = x - 1;
+                    }
+                }
+
+                fn sparse(x: int, s: string, l: long) {
+                    match x {
+                        1 -> var a : int = x + 1;
+                        1000 -> var b : int = x + 2;
+                        LIMIT -> var c : int = x + 3;
+                    }
+                    match s {
+                        "Aa" -> var d : string = s + 1;
+                        "BB" -> var e : string = s + 2;
+                        _ -> var f : string = s + 3;
+                    }
+                    match l {
+                        10000000000 -> var g : long = l + 1;
+                        7 -> var h : long = l + 2;
+                    }
+                }
+                """;
+        var bytes = new SkaldCompiler().compile(Map.of("Match", source)).get("Match");
+        var javaClass = new ClassParser(new ByteArrayInputStream(bytes), "Match.class").parse();
+        var methods = Arrays.stream(javaClass.getMethods()).collect(Collectors.toMap(Method::getName, method -> method.getCode().toString()));
+        assertTrue(methods.get("dense").contains("tableswitch"), methods.get("dense"));
+        var sparse = methods.get("sparse");
+        assertTrue(sparse.contains("lookupswitch"), sparse);
+        assertFalse(sparse.contains("tableswitch"), sparse);
+        // "Aa" and "BB" share a hash code, so their bucket compares against both.
+        assertTrue(sparse.contains("String.hashCode") && sparse.contains("String.equals"), sparse);
+        assertTrue(sparse.contains("Long.hashCode"), sparse);
+
+        assertThrows(RuntimeException.class, () -> new SkaldCompiler().compile(Map.of("Duplicate", """
+                fn f(x: int) {
+                    match x {
+                        1 -> var a : int = 1;
+                        1 -> var b : int = 2;
+                    }
+                }
+                """)));
+
+        Assumptions.assumeTrue(Runtime.version().feature() >= 23);
+        var matchClass = new SkaldClassLoader(Map.of("Match", bytes)).loadClass("Match");
+        var denseMethod = matchClass.getDeclaredMethod("dense", int.class);
+        denseMethod.setAccessible(true);
+        for (int x = 0; x <= 6; x++) {
+            denseMethod.invoke(null, x);
+        }
+        var sparseMethod = matchClass.getDeclaredMethod("sparse", int.class, String.class, long.class);
+        sparseMethod.setAccessible(true);
+        sparseMethod.invoke(null, 1000, "BB", 10000000000L);
+        sparseMethod.invoke(null, 2, "Ab", 8L);
+    }
+
+    @Test
+    public void testUnionTypes() throws Exception {
+        String source = """
+                type Shape {
+                    Circle of double,
+                    Square of int,
+                    Label of string
+                }
+
+                fn describe(s: Shape) {
+                    match s {
+                        Circle(r) -> var area : double = r * r;
+                        Square(side) -> var perimeter : int = side * 4;
+                        Label(text) -> var shout : string = text + "!";
+                    }
+                }
+                """;
+        var classes = new SkaldCompiler().compile(Map.of("Union", source));
+        assertEquals(Set.of("Union", "Union$Shape", "Union$Shape$Circle", "Union$Shape$Square", "Union$Shape$Label"), classes.keySet());
+
+        var shape = new ClassParser(new ByteArrayInputStream(classes.get("Union$Shape")), "Union$Shape.class").parse();
+        assertTrue(shape.isAbstract());
+        assertTrue(Arrays.stream(shape.getAttributes()).anyMatch(attribute -> attribute.getName().equals("PermittedSubclasses")));
+        var circle = new ClassParser(new ByteArrayInputStream(classes.get("Union$Shape$Circle")), "Union$Shape$Circle.class").parse();
+        assertTrue(circle.isFinal());
+        assertEquals("Union$Shape", circle.getSuperclassName());
+        assertEquals(Type.DOUBLE, circle.getFields()[0].getType()); // Not boxed
+
+        // The match switches on the tag instead of testing each member.
+        var union = new ClassParser(new ByteArrayInputStream(classes.get("Union")), "Union.class").parse();
+        var describe = Arrays.stream(union.getMethods()).filter(method -> method.getName().equals("describe")).findFirst().orElseThrow();
+        var code = describe.getCode().toString();
+        assertTrue(code.contains("tableswitch") && code.contains("Union$Shape.tag"), code);
+        assertFalse(code.contains("instanceof"), code);
+
+        assertThrows(RuntimeException.class, () -> new SkaldCompiler().compile(Map.of("NotMember", source.replace("Square(side)", "Triangle(side)"))));
+        assertThrows(RuntimeException.class, () -> new SkaldCompiler().compile(Map.of("NotUnion", """
+                fn f(x: int) {
+                    match x {
+                        Circle(r) -> var a : int = 1;
+                    }
+                }
+                """)));
+
+        // A member bound by the wrong case would fail its cast.
+        Assumptions.assumeTrue(Runtime.version().feature() >= 23);
+        var classLoader = new SkaldClassLoader(classes);
+        var shapeClass = classLoader.loadClass("Union$Shape");
+        assertTrue(shapeClass.isSealed());
+        var describeMethod = classLoader.loadClass("Union").getDeclaredMethod("describe", shapeClass);
+        describeMethod.setAccessible(true);
+        var values = List.of(
+                classLoader.loadClass("Union$Shape$Circle").getConstructor(double.class).newInstance(2.0),
+                classLoader.loadClass("Union$Shape$Square").getConstructor(int.class).newInstance(3),
+                classLoader.loadClass("Union$Shape$Label").getConstructor(String.class).newInstance("label"));
+        for (int i = 0; i < values.size(); i++) {
+            assertEquals(i, shapeClass.getField("tag").get(values.get(i)));
+            describeMethod.invoke(null, values.get(i));
+        }
+        assertEquals(3, values.get(1).getClass().getMethod("value").invoke(values.get(1)));
+    }
+
+    @Test
+    public void testStringConcatenation() throws Exception {
+        String source = """
+                static mut var count : int = 3;
+                static mut var total : ulong = 18446744073709551615;
+                static mut var name : string = "skald";
+                static var message : string = name + " ran " + count + " times (" + ("x" + 2) + ") " + total;
+                static var again : string = name + " ran " + count + " times (" + ("x" + 2) + ") " + total;
+                static var letter : string = name + 'z';
+                """;
+        var bytes = new SkaldCompiler().compile(Map.of("Concat", source)).get("Concat");
+        var javaClass = new ClassParser(new ByteArrayInputStream(bytes), "Concat.class").parse();
+        var clinit = Arrays.stream(javaClass.getMethods()).filter(method -> method.getName().equals("<clinit>")).findFirst().orElseThrow();
+        var code = clinit.getCode().toString();
+        assertTrue(code.contains("invokedynamic"), code);
+        assertFalse(code.contains("StringBuilder"), code);
+
+        // Constant parts are folded into the recipe, and joins with the same recipe share a bootstrap method.
+        var bootstrapMethods = (BootstrapMethods) Arrays.stream(javaClass.getAttributes())
+                .filter(attribute -> attribute instanceof BootstrapMethods).findFirst().orElseThrow();
+        assertEquals(2, bootstrapMethods.getBootstrapMethods().length);
+        var constantPool = javaClass.getConstantPool();
+        var recipe = constantPool.getConstant(bootstrapMethods.getBootstrapMethods()[0].getBootstrapArguments()[0], ConstantString.class).getBytes(constantPool);
+        assertEquals("\u0001 ran \u0001 times (x2) \u0001", recipe);
+
+        // Text holding a tag character is passed as a constant, and full calls continue in a second one.
+        var concatenation = new StringConcatenation();
+        concatenation.appendConstant("\u0001");
+        assertEquals("\u0002", concatenation.getRecipe());
+        assertEquals(List.of("\u0001"), concatenation.getConstants());
+        for (int i = 0; i < StringConcatenation.MAX_ARGUMENT_SLOTS / 2; i++) {
+            concatenation.appendArgument(Type.LONG);
+        }
+        assertFalse(concatenation.hasRoomFor(Type.INT));
+
+        Assumptions.assumeTrue(Runtime.version().feature() >= 23);
+        var concatClass = new SkaldClassLoader(Map.of("Concat", bytes)).loadClass("Concat");
+        var values = new HashMap<String, Object>();
+        for (var field : concatClass.getDeclaredFields()) {
+            field.setAccessible(true);
+            values.put(field.getName(), field.get(null));
+        }
+        assertEquals("skald ran 3 times (x2) 18446744073709551615", values.get("message"));
+        assertEquals(values.get("message"), values.get("again"));
+        assertEquals("skaldz", values.get("letter"));
+    }
+
+    @Test
+    public void testLambdas() throws Exception {
+        String source = """
+                static mut var base : int = 10;
+                static var twice : fn(int) -> int = fn(x: int) -> x * 2;
+                static var add = fn(a: int, b: long) -> a + b + base;
+                static var apply : fn(fn(int) -> int, int) -> int = fn(f: fn(int) -> int, v: int) -> f(v) + 1;
+                static var doubled : int = twice(21);
+                static var sum : long = add(1, 2);
+                static var applied : int = apply(twice, 5);
+                static var logger : fn(int) -> unit = log;
+
+                fn log(x: int) {
+                    var next : int = x + 1;
+                }
+
+                fn scaled(k: int) {
+                    var scale = fn(x: int) -> x * k;
+                    var n : int = scale(4);
+                    logger(n);
+                }
+                """;
+        var classes = new SkaldCompiler().compile(Map.of("Lambda", source));
+        assertEquals(Set.of("Lambda", "Lambda$Function0", "Lambda$Function1", "Lambda$Function2", "Lambda$Function3"), classes.keySet());
+
+        // Every function type is an interface whose method takes and returns primitives unboxed.
+        var function = new ClassParser(new ByteArrayInputStream(classes.get("Lambda$Function1")), "Lambda$Function1.class").parse();
+        assertTrue(function.isInterface());
+        assertEquals("(IJ)J", function.getMethods()[0].getSignature());
+
+        var lambda = new ClassParser(new ByteArrayInputStream(classes.get("Lambda")), "Lambda.class").parse();
+        var methods = Arrays.stream(lambda.getMethods()).collect(Collectors.toMap(Method::getName, method -> method));
+        assertTrue(methods.get("lambda$static$0").isPrivate() && methods.get("lambda$static$0").isSynthetic());
+        assertTrue(methods.get("<clinit>").getCode().toString().contains("invokedynamic"));
+        var bootstrapMethods = (BootstrapMethods) Arrays.stream(lambda.getAttributes())
+                .filter(attribute -> attribute instanceof BootstrapMethods).findFirst().orElseThrow();
+        var constantPool = lambda.getConstantPool();
+        assertTrue(constantPool.constantToString(bootstrapMethods.getBootstrapMethods()[0].getBootstrapMethodRef(), Const.CONSTANT_MethodHandle).contains("LambdaMetafactory"));
+
+        // A captured parameter is passed to the lambda ahead of its own parameters.
+        assertEquals("(II)I", methods.get("lambda$scaled$3").getSignature());
+        var scaled = methods.get("scaled").getCode().toString();
+        assertTrue(scaled.contains("invokeinterface") && !scaled.contains("java.lang.reflect"), scaled);
+
+        assertThrows(RuntimeException.class, () -> new SkaldCompiler().compile(Map.of("WrongParameters", "static var f : fn(int) -> int = fn(x: long) -> x;")));
+        assertThrows(RuntimeException.class, () -> new SkaldCompiler().compile(Map.of("NotFunction", "static var i : int = 1;\nstatic var j : int = i(2);")));
+
+        Assumptions.assumeTrue(Runtime.version().feature() >= 23);
+        var classLoader = new SkaldClassLoader(classes);
+        var lambdaClass = classLoader.loadClass("Lambda");
+        var values = new HashMap<String, Object>();
+        for (var field : lambdaClass.getDeclaredFields()) {
+            field.setAccessible(true);
+            values.put(field.getName(), field.get(null));
+        }
+        assertEquals(42, values.get("doubled"));
+        assertEquals(13L, values.get("sum"));
+        assertEquals(11, values.get("applied"));
+        var scaledMethod = lambdaClass.getDeclaredMethod("scaled", int.class);
+        scaledMethod.setAccessible(true);
+        scaledMethod.invoke(null, 3);
+    }
+
+    @Test
+    public void testQueries() throws Exception {
+        String source = """
+                fn ints(values: int[], out: fn(long) -> unit) {
+                    var total : long = from v in values where v > 2 let w = v * 2 select w + 1 sum;
+                    out(total);
+                    var evens : long = from v in values where v % 2 == 0 select v count;
+                    out(evens);
+                    var highest : long = from v in values select v * 3 max;
+                    out(highest);
+                    var folded : long = from v in values aggregate acc = 100 into acc - v;
+                    out(folded);
+                }
+
+                fn bytes(values: ubyte[], out: fn(long) -> unit) {
+                    var total : long = from b in values select b sum;
+                    out(total);
+                }
+
+                fn boxed(values: java.util.List, out: fn(long) -> unit) {
+                    var total : long = from v : int in values where v < 100 select v sum;
+                    out(total);
+                }
+
+                fn lowest(values: double[], out: fn(long) -> unit) {
+                    var lowest : double = from v in values select v min;
+                }
+                """;
+        var classes = new SkaldCompiler().compile(Map.of("Query", source));
+        var query = new ClassParser(new ByteArrayInputStream(classes.get("Query")), "Query.class").parse();
+        var methods = Arrays.stream(query.getMethods()).collect(Collectors.toMap(Method::getName, method -> method));
+
+        // An array is read element by element into primitive locals, with no stream or collection in between.
+        var ints = methods.get("ints").getCode().toString();
+        assertTrue(ints.contains("iaload") && ints.contains("arraylength") && ints.contains("iinc"), ints);
+        assertFalse(ints.contains("java.util.stream") || ints.contains("java.util.Iterator") || ints.contains("valueOf") || ints.contains("invokedynamic"), ints);
+        // An Iterable is walked with its iterator and its elements unboxed.
+        var boxed = methods.get("boxed").getCode().toString();
+        assertTrue(boxed.contains("java.util.Iterator.hasNext") && boxed.contains("java.lang.Integer.intValue"), boxed);
+
+        // The value of a query initializing an instance field is stored in a local before this is pushed, as
+        // frames are written with an empty stack.
+        String fieldSource = """
+                static mut var values : java.util.List = java.util.Collections.EMPTY_LIST;
+                var total : long = from v : int in values select v sum;
+                """;
+        var fieldClasses = new SkaldCompiler().compile(Map.of("QueryField", fieldSource));
+        var fieldClass = new ClassParser(new ByteArrayInputStream(fieldClasses.get("QueryField")), "QueryField.class").parse();
+        var constructor = Arrays.stream(fieldClass.getMethods()).filter(method -> method.getName().equals("<init>")).findFirst().orElseThrow();
+        var constructorCode = constructor.getCode().toString();
+        assertTrue(Pattern.compile("aload_0\\s+\\d+:\\s+lload_?\\d*\\s+\\d+:\\s+putfield\\s+QueryField.total").matcher(constructorCode).find(), constructorCode);
+
+        assertThrows(RuntimeException.class, () -> new SkaldCompiler().compile(Map.of("NotBoolean", "fn f(v: int[]) {\nvar n : int = from x in v where x + 1 select x count;\n}")));
+        assertThrows(RuntimeException.class, () -> new SkaldCompiler().compile(Map.of("NotNumeric", "fn f(v: bool[]) {\nvar n : int = from x in v select x sum;\n}")));
+        assertThrows(RuntimeException.class, () -> new SkaldCompiler().compile(Map.of("UnknownAggregate", "fn f(v: int[]) {\nvar n : int = from x in v select x average;\n}")));
+        assertThrows(RuntimeException.class, () -> new SkaldCompiler().compile(Map.of("NotQueryable", "fn f(v: int) {\nvar n : int = from x in v select x count;\n}")));
+
+        Assumptions.assumeTrue(Runtime.version().feature() >= 23);
+        var classLoader = new SkaldClassLoader(classes);
+        var queryClass = classLoader.loadClass("Query");
+        var instance = queryClass.getDeclaredConstructor().newInstance();
+        var outputType = classLoader.loadClass("Query$Function0");
+        var results = new ArrayList<Object>();
+        var output = Proxy.newProxyInstance(classLoader, new Class<?>[] { outputType }, (proxy, method, arguments) -> results.add(arguments[0]));
+        var arguments = Map.of("ints", new int[] { 1, 2, 3, 4, 5 }, "bytes", new byte[] { 1, (byte) 200, 3 },
+                "boxed", List.of(5, 500, 7), "lowest", new double[0]);
+        var invoked = new HashMap<String, Object>();
+        for (var method : queryClass.getDeclaredMethods()) {
+            method.setAccessible(true);
+            try {
+                method.invoke(Modifier.isStatic(method.getModifiers()) ? null : instance, arguments.get(method.getName()), output);
+                invoked.put(method.getName(), List.copyOf(results));
+            } catch (InvocationTargetException e) {
+                invoked.put(method.getName(), e.getCause().getClass());
+            }
+            results.clear();
+        }
+        assertEquals(List.of(27L, 2L, 15L, 85L), invoked.get("ints"));
+        assertEquals(List.of(204L), invoked.get("bytes"));
+        assertEquals(List.of(12L), invoked.get("boxed"));
+        assertEquals(NoSuchElementException.class, invoked.get("lowest"));
+
+        var fieldLoader = new SkaldClassLoader(fieldClasses);
+        var queryFieldClass = fieldLoader.loadClass("QueryField");
+        var valuesField = queryFieldClass.getDeclaredField("values");
+        valuesField.setAccessible(true);
+        valuesField.set(null, List.of(1, 2, 3));
+        var totalField = queryFieldClass.getDeclaredField("total");
+        totalField.setAccessible(true);
+        assertEquals(6L, totalField.get(queryFieldClass.getDeclaredConstructor().newInstance()));
+    }
+
+    @Test
+    public void testCompileDaemon(@TempDir Path directory) throws Exception {
+        try (var test = loadFile("Test.lang")) {
+            Files.write(directory.resolve("Test.lang"), test.readAllBytes());
+        }
+        var socketFile = directory.resolve("skald.sock");
+        var daemon = new CompileDaemon(socketFile, Main::run);
+        var daemonThread = Thread.ofPlatform().start(() -> {
+            try {
+                daemon.serve();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+
+        var client = new CompileClient(socketFile);
+        for (int i = 0; i < 2; i++) { // The second request is served by the warm daemon
+            var out = new ByteArrayOutputStream();
+            int exitCode = client.compile(List.of("-d", "out", "Test.lang"), directory, new PrintStream(out, true), System.err);
+            assertEquals(0, exitCode);
+            assertTrue(out.toString().contains("Compiled 1 of 1 file(s)"), out.toString());
+            assertTrue(Files.isRegularFile(directory.resolve("out/Test.class")));
+        }
+
+        // Diagnostics and syntax errors go to the client that asked for them, and options do not outlive the request.
+        var err = new ByteArrayOutputStream();
+        assertEquals(0, client.compile(List.of("--log-level", "DEBUG", "-d", "out", "Test.lang"), directory, System.out, new PrintStream(err, true)));
+        assertTrue(err.toString().contains("DEBUG function"), err.toString());
+        Files.writeString(directory.resolve("Broken.lang"), "var = ;");
+        err.reset();
+        assertEquals(1, client.compile(List.of("-d", "out", "Broken.lang"), directory, System.out, new PrintStream(err, true)));
+        assertTrue(err.toString().contains("syntax error(s)") && err.toString().contains("line 1:"), err.toString());
+        assertFalse(err.toString().contains("DEBUG"), err.toString());
+        assertEquals(Diagnostics.Level.WARNING, Diagnostics.getLevel());
+
+        client.shutdown();
+        daemonThread.join(5000);
+        assertFalse(daemonThread.isAlive());
+        assertFalse(Files.exists(socketFile));
+    }
 }